@@ -0,0 +1,60 @@
+package blockchain.benchmarks;
+
+import blockchain.BCNode;
+import blockchain.Block;
+import blockchain.Miner;
+import blockchain.NetworkMode;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// Helpers shared by the benchmarks: building test chains and nodes
+public class BenchmarkSupport {
+	// Benchmarks that build chains or nodes run at this difficulty (every benchmark fork gets -Dblockchain.difficulty=1),
+	// so setting up a 100k block chain takes seconds instead of days. Mining itself is measured at every difficulty in MiningBenchmark
+	public static final int DIFFICULTY = 1;
+
+	// Method to mine a valid chain of the given length (including genesis) at the given difficulty
+	public static List<Block> mineChain(int length, int difficulty) throws Exception {
+		Miner miner = new Miner(1);
+		List<Block> chain = new ArrayList<>(length);
+		chain.add(new Block());
+		try {
+			while (chain.size() < length) {
+				chain.add(mineNext(miner, chain.get(chain.size() - 1), "block " + chain.size(), difficulty));
+			}
+		} finally {
+			miner.shutdown();
+		}
+		return chain;
+	}
+
+	// Method to mine a block that goes on top of tip
+	public static Block mineNext(Miner miner, Block tip, String data, int difficulty) throws Exception {
+		Block b = new Block(data);
+		b.previousHash = tip.hash;
+		if (!miner.mine(b, difficulty)) {
+			throw new IllegalStateException("Mining was cancelled");
+		}
+		return b;
+	}
+
+	// Method to start a node with no peers, listening on a free port
+	// It runs in NIO mode, so every benchmark measures the same networking code
+	public static BCNode startNode() throws Exception {
+		return new BCNode(0, new ArrayList<>(), 1, NetworkMode.NIO);
+	}
+
+	// Method to shut down a node from startNode
+	public static void stopNode(BCNode node) throws IOException {
+		node.shutdown();
+	}
+
+	// Method to throw away everything printed to System.out
+	// The node prints a line for things like every block it adds, which would otherwise be measured along with it
+	public static void quiet() {
+		System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+	}
+}
@@ -0,0 +1,111 @@
+package blockchain.benchmarks;
+
+import blockchain.BCNode;
+import blockchain.Block;
+import blockchain.ChainStore;
+import blockchain.Miner;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// How long a node takes to validate its whole chain (isValid) and to take a new block from a peer (addExistingBlock),
+// for chains from 10 to 100k blocks long.
+// With incrementalValidation (the default) a new block is only checked against the tip, so addExistingBlock should
+// barely change with the length of the chain; without it every block re-validates the whole chain.
+// addExistingBlock grows the chain, so each of its iterations is one shot that adds a batch of BATCH blocks mined
+// beforehand (in the iteration's setup, outside the measurement), and the chain is put back to its starting length
+// before the next shot. The score is per block
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dblockchain.difficulty=1")
+public class ChainBenchmark {
+	public static final int BATCH = 100;  // Blocks added in each addExistingBlock shot
+
+	// A node holding a chain of the given length, for isValid
+	@State(Scope.Benchmark)
+	public static class Chain {
+		@Param({"10", "1000", "10000", "100000"})
+		public int length;  // Blocks in the chain, including genesis
+
+		BCNode node;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			BenchmarkSupport.quiet();
+			List<Block> chain = BenchmarkSupport.mineChain(this.length, BenchmarkSupport.DIFFICULTY);
+			this.node = BenchmarkSupport.startNode();
+			this.node.chain = ChainStore.fromList(chain, BenchmarkSupport.DIFFICULTY);
+			this.node.verifiedHeight = this.length - 1;
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Exception {
+			BenchmarkSupport.stopNode(this.node);
+		}
+	}
+
+	// A node with a chain of the given length and the next BATCH blocks to add to it, for addExistingBlock
+	@State(Scope.Benchmark)
+	public static class Growing {
+		@Param({"10", "1000", "10000", "100000"})
+		public int length;  // Blocks in the chain, including genesis
+
+		@Param({"true", "false"})
+		public boolean incremental;  // The node's incrementalValidation setting
+
+		BCNode node;
+		List<Block> batch = new ArrayList<>(BATCH);  // The blocks the next shot adds, in order
+		private List<Block> chain;
+		private Miner miner;
+
+		@Setup(Level.Trial)
+		public void setup() throws Exception {
+			BenchmarkSupport.quiet();
+			this.chain = BenchmarkSupport.mineChain(this.length, BenchmarkSupport.DIFFICULTY);
+			this.node = BenchmarkSupport.startNode();
+			this.node.incrementalValidation = this.incremental;
+			this.miner = new Miner(1);
+		}
+
+		@Setup(Level.Iteration)
+		public void resetChain() throws Exception {
+			this.node.chain = ChainStore.fromList(this.chain, BenchmarkSupport.DIFFICULTY);
+			this.node.verifiedHeight = this.length - 1;
+			this.batch.clear();
+			Block tip = this.chain.get(this.chain.size() - 1);
+			for (int i = 0; i < BATCH; i++) {
+				tip = BenchmarkSupport.mineNext(this.miner, tip, "new block " + i, BenchmarkSupport.DIFFICULTY);
+				this.batch.add(tip);
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Exception {
+			this.miner.shutdown();
+			BenchmarkSupport.stopNode(this.node);
+		}
+	}
+
+	@Benchmark
+	public boolean isValid(Chain state) throws Exception {
+		return state.node.isValid(BenchmarkSupport.DIFFICULTY);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@Warmup(iterations = 10)
+	@Measurement(iterations = 20)
+	@OperationsPerInvocation(BATCH)
+	public int addExistingBlock(Growing state) throws Exception {
+		int added = 0;
+		for (Block b : state.batch) {
+			if (state.node.addExistingBlock(b)) {
+				added++;
+			}
+		}
+		return added;
+	}
+}
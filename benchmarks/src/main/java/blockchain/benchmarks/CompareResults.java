@@ -0,0 +1,113 @@
+package blockchain.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// CompareResults compares two benchmark runs saved as CSV (java -jar benchmarks.jar -rf csv -rff <file>),
+// like one from the last release and one from the current build, and lists every benchmark that got slower.
+// A benchmark only counts as a regression if it got worse by more than the threshold (10% by default)
+// and by more than the two runs' error margins put together, so noise alone doesn't fail the comparison.
+// Exits with 1 if there were any regressions, so it can fail a build.
+//   java -cp benchmarks.jar blockchain.benchmarks.CompareResults <old.csv> <new.csv> [threshold percent]
+public class CompareResults {
+	// One row of JMH's CSV output
+	static class Result {
+		String mode;   // thrpt (higher is better), or avgt/sample/ss (lower is better)
+		double score;
+		double error;  // The 99.9% error margin (NaN if there weren't enough samples)
+		String unit;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.out.println("Usage: CompareResults <old.csv> <new.csv> [threshold percent]");
+			System.exit(2);
+		}
+		Map<String, Result> before = read(args[0]);
+		Map<String, Result> after = read(args[1]);
+		double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+
+		int regressions = 0;
+		for (Map.Entry<String, Result> e : after.entrySet()) {
+			Result old = before.get(e.getKey());
+			Result now = e.getValue();
+			if (old == null || !old.unit.equals(now.unit)) {
+				System.out.printf("%-70s %14.3f %s (new)%n", e.getKey(), now.score, now.unit);
+				continue;
+			}
+			// How much worse the new score is, in percent (negative if it got better)
+			boolean higherIsBetter = now.mode.equals("thrpt");
+			double change = (higherIsBetter ? old.score - now.score : now.score - old.score) / old.score * 100;
+			double noise = (Double.isNaN(old.error) ? 0 : old.error) + (Double.isNaN(now.error) ? 0 : now.error);
+			boolean regressed = change > threshold && Math.abs(now.score - old.score) > noise;
+			if (regressed) {
+				regressions++;
+			}
+			System.out.printf("%-70s %14.3f -> %14.3f %s  %+6.1f%% %s%n", e.getKey(), old.score, now.score, now.unit,
+					(now.score - old.score) / old.score * 100, regressed ? "REGRESSION" : "");
+		}
+		System.out.println(regressions + " regression(s) over " + threshold + "%");
+		System.exit(regressions == 0 ? 0 : 1);
+	}
+
+	// Method to read a JMH CSV file, keyed by benchmark name plus its parameters
+	static Map<String, Result> read(String file) throws IOException {
+		List<String> lines = Files.readAllLines(Paths.get(file));
+		Map<String, Result> results = new LinkedHashMap<>();
+		if (lines.isEmpty()) {
+			return results;
+		}
+		List<String> header = split(lines.get(0));
+		for (String line : lines.subList(1, lines.size())) {
+			if (line.isBlank()) {
+				continue;
+			}
+			List<String> row = split(line);
+			StringBuilder key = new StringBuilder(row.get(header.indexOf("Benchmark")));
+			for (int i = 0; i < header.size(); i++) {
+				if (header.get(i).startsWith("Param: ") && i < row.size() && !row.get(i).isEmpty()) {
+					key.append(' ').append(header.get(i).substring(7)).append('=').append(row.get(i));
+				}
+			}
+			Result r = new Result();
+			r.mode = row.get(header.indexOf("Mode"));
+			r.score = number(row.get(header.indexOf("Score")));
+			r.error = number(row.get(header.indexOf("Score Error (99.9%)")));
+			r.unit = row.get(header.indexOf("Unit"));
+			results.put(key.toString(), r);
+		}
+		return results;
+	}
+
+	// Method to split a CSV line into its fields, dropping the quotes around them
+	static List<String> split(String line) {
+		List<String> fields = new ArrayList<>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (char c : line.toCharArray()) {
+			if (c == '"') {
+				quoted = !quoted;
+			} else if (c == ',' && !quoted) {
+				fields.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		fields.add(field.toString());
+		return fields;
+	}
+
+	// Method to read a number from the CSV, which might be written with a decimal comma depending on the locale
+	static double number(String s) {
+		if (s.isEmpty() || s.equals("NaN")) {
+			return Double.NaN;
+		}
+		return Double.parseDouble(s.replace(',', '.'));
+	}
+}
@@ -0,0 +1,135 @@
+package blockchain.benchmarks;
+
+import blockchain.BCNode;
+import blockchain.Block;
+import blockchain.Message;
+import blockchain.MessageWriter;
+import blockchain.Protocol;
+import blockchain.QueuedWriter;
+import blockchain.RelayMode;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.openjdk.jmh.annotations.*;
+
+// How long it takes to get a block out to N peers, in both relay modes and through both kinds of writer a node uses:
+// a QueuedWriter per peer (THREADS and VIRTUAL modes) or the NIO event loop (NIO mode).
+// The peers are real local sockets whose other ends just read the bytes, count them and throw them away. Each call sends
+// the block and then waits until the frame has arrived at every peer's end, so it measures the whole broadcast (encoding
+// the frame once, queueing it for every peer, and the writers getting it through the sockets) rather than just the
+// hand-off, and the queues never fill up. (A writer's queue empties when it takes the frame, before it's been written,
+// so waiting on the queues would stop the clock too early)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dblockchain.difficulty=1")
+@State(Scope.Benchmark)
+public class FanOutBenchmark {
+	public enum Writer { QUEUED, NIO }
+
+	@Param({"1", "8", "64", "256"})
+	public int peers;
+
+	@Param({"PUSH", "INVENTORY"})
+	public RelayMode relay;
+
+	@Param({"QUEUED", "NIO"})
+	public Writer writer;
+
+	private BCNode node;
+	private ServerSocket sink;   // Where the peers connect; every connection is drained by its own thread
+	private List<Socket> sinkSockets = new ArrayList<>();
+	private List<MessageWriter> writers = new ArrayList<>();
+	private AtomicLong received = new AtomicLong();  // Bytes read at the sink so far, across every peer
+	private int frameSize;                            // The size of the frame each peer gets per call
+
+	@Setup
+	public void setup() throws Exception {
+		BenchmarkSupport.quiet();
+		this.node = BenchmarkSupport.startNode();
+		this.node.addBlock(new Block("relayed block"));  // The block that gets sent (mined before there are any peers)
+		this.node.relay = this.relay;
+		this.sink = new ServerSocket(0);
+		Thread acceptor = new Thread(this::acceptPeers, "sink-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		for (int i = 0; i < this.peers; i++) {
+			if (this.writer == Writer.NIO) {
+				this.writers.add(this.node.nio.connect(this.sink.getLocalPort(), conn -> {}));
+			} else {
+				Socket s = new Socket("localhost", this.sink.getLocalPort());
+				s.setTcpNoDelay(true);
+				MessageWriter out = new QueuedWriter(s, QueuedWriter.DEFAULT_CAPACITY, this.node.threads);
+				this.node.addNode(s, null, out);
+				this.writers.add(out);
+			}
+		}
+		Block tip = this.node.chain.snapshot().tip();
+		Message m = this.relay == RelayMode.INVENTORY ? Message.inv(this.node.chain.size() - 1, tip.hash) : Message.block(tip);
+		this.frameSize = Protocol.encode(m).length;  // The same message sendBlock encodes
+		this.awaitQuiet();  // The NIO handshakes
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		BenchmarkSupport.stopNode(this.node);
+		this.sink.close();
+		synchronized (this.sinkSockets) {
+			for (Socket s : this.sinkSockets) {
+				s.close();
+			}
+		}
+	}
+
+	@Benchmark
+	public void sendBlock() {
+		long expected = this.received.get() + (long) this.frameSize * this.peers;
+		this.node.sendBlock(this.node.chain.snapshot().tip());
+		while (this.received.get() < expected) {
+			Thread.onSpinWait();
+		}
+	}
+
+	// Method to wait until nothing has arrived at the sink for a while (used before measuring, when we don't know how
+	// many bytes are on their way)
+	private void awaitQuiet() throws InterruptedException {
+		long last;
+		do {
+			last = this.received.get();
+			Thread.sleep(100);
+		} while (this.received.get() != last);
+	}
+
+	// Method to accept the peers' connections and drain each one on its own thread until it's closed
+	private void acceptPeers() {
+		try {
+			while (true) {
+				Socket s = this.sink.accept();
+				synchronized (this.sinkSockets) {
+					this.sinkSockets.add(s);
+				}
+				Thread drain = new Thread(() -> {
+					byte[] buffer = new byte[64 * 1024];
+					try (InputStream in = s.getInputStream()) {
+						int n;
+						while ((n = in.read(buffer)) >= 0) {
+							this.received.addAndGet(n);  // Count it and throw it away
+						}
+					} catch (IOException e) {
+						// Closed at tear down
+					}
+				}, "sink-drain");
+				drain.setDaemon(true);
+				drain.start();
+			}
+		} catch (IOException e) {
+			// The sink was closed at tear down
+		}
+	}
+}
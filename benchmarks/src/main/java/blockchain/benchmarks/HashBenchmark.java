@@ -0,0 +1,38 @@
+package blockchain.benchmarks;
+
+import blockchain.Block;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// How fast a block's hash can be calculated, for different amounts of data in the block.
+// calculateHash is what validation uses; calculateHashBytes skips the hex conversion
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dblockchain.difficulty=1")
+@State(Scope.Thread)
+public class HashBenchmark {
+	@Param({"16", "1024", "65536"})
+	public int dataSize;  // Characters of data in the block
+
+	private Block block;
+
+	@Setup
+	public void setup() throws Exception {
+		this.block = new Block("x".repeat(this.dataSize));
+		this.block.previousHash = this.block.hash;
+	}
+
+	@Benchmark
+	public String calculateHash() throws Exception {
+		this.block.nonce++;  // A different header every time, like when mining
+		return this.block.calculateHash();
+	}
+
+	@Benchmark
+	public byte[] calculateHashBytes() {
+		this.block.nonce++;
+		return this.block.calculateHashBytes();
+	}
+}
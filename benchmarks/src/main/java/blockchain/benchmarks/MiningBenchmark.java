@@ -0,0 +1,40 @@
+package blockchain.benchmarks;
+
+import blockchain.Block;
+import blockchain.Miner;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// How long it takes to mine one block at each difficulty, on every core.
+// Mining time is random (each hash is a fresh try), so the higher difficulties need plenty of iterations to settle down;
+// each extra zero makes a block about 16 times more work
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dblockchain.difficulty=1")
+@State(Scope.Benchmark)
+public class MiningBenchmark {
+	@Param({"1", "2", "3", "4", "5", "6"})
+	public int difficulty;
+
+	private Miner miner;
+	private Block tip;
+	private long count;  // Makes every block different, so no two mine the same nonces
+
+	@Setup
+	public void setup() throws Exception {
+		this.miner = new Miner(Runtime.getRuntime().availableProcessors());
+		this.tip = new Block();
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.miner.shutdown();
+	}
+
+	@Benchmark
+	public Block mine() throws Exception {
+		return BenchmarkSupport.mineNext(this.miner, this.tip, "block " + this.count++, this.difficulty);
+	}
+}
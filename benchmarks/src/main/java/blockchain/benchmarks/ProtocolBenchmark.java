@@ -0,0 +1,66 @@
+package blockchain.benchmarks;
+
+import blockchain.Block;
+import blockchain.ChainSync;
+import blockchain.Message;
+import blockchain.Protocol;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// How fast blocks are turned into frames and back: one BLOCK message (how new blocks are relayed),
+// and one BLOCKS message with a full ChainSync batch (how the chain is downloaded)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dblockchain.difficulty=1")
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+	@Param({"16", "1024", "65536"})
+	public int dataSize;  // Characters of data in each block
+
+	private Message block;
+	private Message batch;
+	private byte[] blockFrame;
+	private byte[] batchFrame;
+
+	@Setup
+	public void setup() throws Exception {
+		List<Block> chain = BenchmarkSupport.mineChain(ChainSync.BLOCK_BATCH, BenchmarkSupport.DIFFICULTY);
+		for (Block b : chain) {
+			b.data = "x".repeat(this.dataSize);  // The hashes don't match any more, but encoding doesn't care
+		}
+		this.block = Message.block(chain.get(chain.size() - 1));
+		this.batch = Message.blocks(0, chain);
+		this.blockFrame = Protocol.encode(this.block);
+		this.batchFrame = Protocol.encode(this.batch);
+	}
+
+	@Benchmark
+	public byte[] encodeBlock() {
+		return Protocol.encode(this.block);
+	}
+
+	@Benchmark
+	public Message decodeBlock() throws Exception {
+		return decode(this.blockFrame);
+	}
+
+	@Benchmark
+	public byte[] encodeBatch() {
+		return Protocol.encode(this.batch);
+	}
+
+	@Benchmark
+	public Message decodeBatch() throws Exception {
+		return decode(this.batchFrame);
+	}
+
+	// Method to decode a whole frame, the way MessageReader does once it has read it
+	private static Message decode(byte[] frame) throws Exception {
+		byte[] payload = Arrays.copyOfRange(frame, Protocol.HEADER_SIZE, frame.length);
+		return Protocol.decode(frame[1], frame[2], payload);
+	}
+}
@@ -0,0 +1,192 @@
+package blockchain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BlockLogTest {
+	@TempDir
+	Path dir;
+
+	private Path segment() {
+		return this.dir.resolve("blocks-00000.dat");
+	}
+
+	private Path index() {
+		return this.dir.resolve("index-v2.dat");
+	}
+
+	// Method to write blocks to a fresh log and close it
+	private void write(List<Block> blocks) throws IOException {
+		BlockLog log = new BlockLog(this.dir);
+		for (Block b : blocks) {
+			log.append(b);
+		}
+		log.close();
+	}
+
+	// Method to add bytes to the end of a file, like a write that was cut short by a crash
+	private static void appendBytes(Path file, byte[] bytes) throws IOException {
+		Files.write(file, bytes, StandardOpenOption.APPEND);
+	}
+
+	private static void assertHolds(BlockLog log, List<Block> blocks) throws IOException {
+		assertEquals(blocks.size(), log.size());
+		for (int h = 0; h < blocks.size(); h++) {
+			Block b = log.read(h);
+			assertEquals(blocks.get(h).hash, log.getHash(h));
+			assertEquals(blocks.get(h).hash, b.hash);
+			assertEquals(blocks.get(h).data, b.data);
+			assertEquals(blocks.get(h).previousHash, b.previousHash);
+		}
+	}
+
+	@Test
+	void blocksSurviveReopening() throws Exception {
+		List<Block> chain = ProtocolTest.chain(50, 100);
+		this.write(chain);
+		BlockLog log = new BlockLog(this.dir);
+		try {
+			assertHolds(log, chain);
+			assertEquals(10, log.read(40, 20).size());
+			assertThrows(IndexOutOfBoundsException.class, () -> log.getHash(50));
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	void tornWriteIsCutOff() throws Exception {
+		List<Block> chain = ProtocolTest.chain(11, 100);
+		this.write(chain.subList(0, 10));
+		long segmentSize = Files.size(this.segment());
+		long indexSize = Files.size(this.index());
+
+		// The crash hit halfway through the next record, and after part of its index entry
+		appendBytes(this.segment(), ByteBuffer.allocate(20).putInt(500).putInt(12345).array());
+		appendBytes(this.index(), new byte[BlockLog.INDEX_ENTRY_SIZE / 2]);
+
+		BlockLog log = new BlockLog(this.dir);
+		try {
+			assertHolds(log, chain.subList(0, 10));
+			assertEquals(segmentSize, Files.size(this.segment()));
+			assertEquals(indexSize, Files.size(this.index()));
+			log.append(chain.get(10));
+		} finally {
+			log.close();
+		}
+		BlockLog reopened = new BlockLog(this.dir);
+		try {
+			assertHolds(reopened, chain);
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Test
+	void entryPastTheEndIsDropped() throws Exception {
+		// The index entry made it to disk but the end of its record didn't
+		List<Block> chain = ProtocolTest.chain(10, 100);
+		this.write(chain);
+		try (FileChannel channel = FileChannel.open(this.segment(), StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 5);
+		}
+		BlockLog log = new BlockLog(this.dir);
+		try {
+			assertHolds(log, chain.subList(0, 9));
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	void corruptLastRecordIsDropped() throws Exception {
+		List<Block> chain = ProtocolTest.chain(10, 100);
+		this.write(chain);
+		try (FileChannel channel = FileChannel.open(this.segment(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			ByteBuffer last = ByteBuffer.allocate(1);
+			channel.read(last, channel.size() - 1);
+			last.put(0, (byte) (last.get(0) ^ 1));
+			last.rewind();
+			channel.write(last, channel.size() - 1);
+		}
+		BlockLog log = new BlockLog(this.dir);
+		try {
+			assertHolds(log, chain.subList(0, 9));
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	void lostIndexIsRebuilt() throws Exception {
+		List<Block> chain = ProtocolTest.chain(30, 100);
+		this.write(chain);
+		Files.delete(this.index());
+		appendBytes(this.segment(), new byte[] { 0, 0, 1 });  // And a torn record at the end, which the rebuild stops at
+
+		BlockLog log = new BlockLog(this.dir);
+		try {
+			assertHolds(log, chain);
+			assertEquals((long) chain.size() * BlockLog.INDEX_ENTRY_SIZE, Files.size(this.index()));
+		} finally {
+			log.close();
+		}
+	}
+
+	@Test
+	void truncatedHeightsStayGone() throws Exception {
+		List<Block> chain = ProtocolTest.chain(10, 100);
+		List<Block> fork = ProtocolTest.chain(8, 50);  // A different chain, standing in for the branch a reorg switched to
+		BlockLog log = new BlockLog(this.dir);
+		for (Block b : chain) {
+			log.append(b);
+		}
+		log.truncate(6);
+		log.append(fork.get(6));
+		log.append(fork.get(7));
+		log.close();
+
+		BlockLog reopened = new BlockLog(this.dir);
+		try {
+			assertEquals(8, reopened.size());
+			assertEquals(chain.get(5).hash, reopened.getHash(5));
+			assertEquals(fork.get(6).hash, reopened.getHash(6));
+			assertEquals(fork.get(7).hash, reopened.read(7).hash);
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Test
+	void chainIsLoadedFromTheIndex() throws Exception {
+		List<Block> chain = ProtocolTest.chain(40, 100);
+		BlockLog log = new BlockLog(this.dir);
+		log.syncWith(ChainStore.fromList(chain, 1));
+		log.close();
+
+		BlockLog reopened = new BlockLog(this.dir);
+		try {
+			ChainStore store = ChainStore.fromLog(reopened, 1);
+			assertEquals(chain.size(), store.size());
+			assertEquals(chain.get(39).hash, store.tip().hash);
+			for (int h = 0; h < chain.size(); h++) {
+				Block b = store.get(h);
+				assertEquals(chain.get(h).hash, b.hash);
+				assertEquals(chain.get(h).data, b.data);
+				assertEquals(chain.get(h).timestamp, b.timestamp);
+				assertEquals(chain.get(h).nonce, b.nonce);
+			}
+		} finally {
+			reopened.close();
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package blockchain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+class BlockTest {
+	// Method to mine a block on top of parent by trying nonces until its hash has N leading zeros
+	static Block mined(Block parent, String data, int N) {
+		Block b = new Block(data, parent.timestamp + 1, 0, parent.hash, null);
+		while (!Block.hasLeadingZeros(b.calculateHashBytes(), N)) {
+			b.nonce++;
+		}
+		b.hash = Block.toHex(b.calculateHashBytes());
+		return b;
+	}
+
+	@Test
+	void leadingZerosAreCountedInHexDigits() {
+		byte[] hash = new byte[Block.HASH_SIZE];
+		hash[2] = 0x0f;
+		assertTrue(Block.hasLeadingZeros(hash, 4));
+		assertTrue(Block.hasLeadingZeros(hash, 5));   // The high nibble of byte 2 is zero too
+		assertFalse(Block.hasLeadingZeros(hash, 6));
+		hash[0] = 0x10;
+		assertFalse(Block.hasLeadingZeros(hash, 1));
+		assertTrue(Block.hasLeadingZeros(hash, 0));
+	}
+
+	@Test
+	void minedBlockHasAValidHash() throws Exception {
+		Block b = mined(new Block(), "data", 2);
+		assertTrue(b.hasValidHash(2));
+		assertTrue(b.hash.startsWith("00"));
+		assertEquals(b.calculateHash(), b.hash);
+	}
+
+	@Test
+	void anyChangeBreaksTheHash() throws Exception {
+		Block genesis = new Block();
+		Block b = mined(genesis, "data", 2);
+		b.data = "tampered";
+		assertFalse(b.hasValidHash(2));
+
+		b = mined(genesis, "data", 2);
+		b.nonce++;
+		assertFalse(b.hasValidHash(2));
+
+		b = mined(genesis, "data", 2);
+		b.timestamp++;
+		assertFalse(b.hasValidHash(2));
+
+		b = mined(genesis, "data", 2);
+		b.previousHash = b.hash;
+		assertFalse(b.hasValidHash(2));
+	}
+
+	@Test
+	void hashMustMeetTheDifficulty() throws Exception {
+		Block b = mined(new Block(), "data", 1);
+		while (b.hash.startsWith("00")) {
+			b = mined(new Block(), "data " + b.nonce, 1);  // Find one that meets 1 but not 2
+		}
+		assertTrue(b.hasValidHash(1));
+		assertFalse(b.hasValidHash(2));
+	}
+
+	@Test
+	void malformedHashesAreRejected() throws Exception {
+		Block b = mined(new Block(), "data", 1);
+		String good = b.hash;
+		for (String bad : new String[] { null, "", "0", good.substring(1), good + "0", "z" + good.substring(1) }) {
+			b.hash = bad;
+			assertNull(b.getHashBytes(), String.valueOf(bad));
+			assertFalse(b.hasValidHash(1), String.valueOf(bad));
+		}
+		b.hash = good.toUpperCase();
+		assertTrue(b.hasValidHash(1));  // Hex digits are read either way
+		assertThrows(IllegalArgumentException.class, () -> Block.fromHex("xyz"));
+	}
+
+	@Test
+	void cachedHashBytesFollowTheHash() throws Exception {
+		Block a = mined(new Block(), "a", 1);
+		Block b = mined(new Block(), "b", 1);
+		Block c = new Block(a);
+		assertArrayEquals(Block.fromHex(a.hash), c.getHashBytes());
+		c.hash = b.hash;
+		assertArrayEquals(Block.fromHex(b.hash), c.getHashBytes());
+		assertEquals(a.hash, Block.toHex(Block.fromHex(a.hash)));
+	}
+}
@@ -0,0 +1,59 @@
+package blockchain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class BodyCacheTest {
+	private static final String BODY = "x".repeat(1000);
+
+	// Method to make a cache with room for about count bodies, holding heights 0..count-1
+	private static BodyCache full(int count) {
+		BodyCache cache = new BodyCache(count * 1100L);
+		for (int h = 0; h < count; h++) {
+			cache.put(h, BODY);
+		}
+		return cache;
+	}
+
+	@Test
+	void leastRecentlyUsedGoFirst() {
+		BodyCache cache = full(4);
+		cache.touch(0);
+		cache.put(4, BODY);
+		cache.put(5, BODY);
+		List<Integer> dropped = new ArrayList<>();
+		cache.trim(6, dropped::add);
+		assertEquals(List.of(1, 2), dropped);  // 0 was used more recently than them
+		assertEquals(4, cache.size());
+	}
+
+	@Test
+	void onlyStoredBodiesAreDropped() {
+		BodyCache cache = full(4);
+		cache.put(4, BODY);
+		cache.put(5, BODY);
+		List<Integer> dropped = new ArrayList<>();
+		cache.trim(0, dropped::add);  // Nothing's in the log yet
+		assertTrue(dropped.isEmpty());
+		cache.trim(1, dropped::add);  // Only height 0 can be read back, so the cache stays over budget
+		assertEquals(List.of(0), dropped);
+		assertEquals(5, cache.size());
+	}
+
+	@Test
+	void removeFromForgetsTheTop() {
+		BodyCache cache = full(6);
+		long bytes = cache.bytes();
+		cache.removeFrom(4);
+		assertEquals(4, cache.size());
+		assertTrue(cache.bytes() < bytes);
+		cache.put(3, "short");  // Replacing a body updates its cost rather than adding to it
+		assertEquals(4, cache.size());
+		cache.removeFrom(0);
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.bytes());
+	}
+}
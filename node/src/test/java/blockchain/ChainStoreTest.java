@@ -0,0 +1,196 @@
+package blockchain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ChainStoreTest {
+	@TempDir
+	Path dir;
+
+	private Block genesis;
+	private ChainStore store;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		this.genesis = new Block();
+		this.store = new ChainStore(this.genesis, 1);
+	}
+
+	// Method to make a block on top of parent (the store doesn't check hashes against the difficulty, so nothing is mined)
+	private static Block child(Block parent, String data) throws Exception {
+		Block b = new Block(data, parent.timestamp + 1, 0, parent.hash, null);
+		b.hash = b.calculateHash();
+		return b;
+	}
+
+	private ChainStore.Result add(Block b) {
+		return this.store.add(b, new ArrayList<>());
+	}
+
+	private static List<String> hashes(List<Block> blocks) {
+		List<String> hashes = new ArrayList<>();
+		for (Block b : blocks) {
+			hashes.add(b.hash);
+		}
+		return hashes;
+	}
+
+	@Test
+	void blocksExtendTheTip() throws Exception {
+		Block a1 = child(this.genesis, "a1");
+		Block a2 = child(a1, "a2");
+		assertEquals(ChainStore.Result.EXTENDED, this.add(a1));
+		assertEquals(ChainStore.Result.EXTENDED, this.add(a2));
+		assertEquals(3, this.store.size());
+		assertEquals(a2.hash, this.store.tip().hash);
+		assertEquals(a1.hash, this.store.get(1).hash);
+		assertEquals(2, this.store.getHeight(a2.hash));
+		assertEquals(a2.hash, this.store.snapshot().tipHash());
+	}
+
+	@Test
+	void duplicatesAreNoticed() throws Exception {
+		Block a1 = child(this.genesis, "a1");
+		this.add(a1);
+		assertEquals(ChainStore.Result.DUPLICATE, this.add(a1));
+		assertEquals(ChainStore.Result.DUPLICATE, this.add(this.genesis));
+		assertEquals(2, this.store.size());
+	}
+
+	@Test
+	void heavierBranchReorganizes() throws Exception {
+		Block a1 = child(this.genesis, "a1");
+		Block a2 = child(a1, "a2");
+		this.add(a1);
+		this.add(a2);
+
+		// A competing branch from genesis only takes over once it has more blocks (a tie keeps the chain we had)
+		Block b1 = child(this.genesis, "b1");
+		Block b2 = child(b1, "b2");
+		Block b3 = child(b2, "b3");
+		assertEquals(ChainStore.Result.SIDE_BRANCH, this.add(b1));
+		assertEquals(ChainStore.Result.SIDE_BRANCH, this.add(b2));
+		assertEquals(a2.hash, this.store.tip().hash);
+
+		List<Block> connected = new ArrayList<>();
+		List<Block> disconnected = new ArrayList<>();
+		assertEquals(ChainStore.Result.REORGANIZED, this.store.add(b3, connected, disconnected));
+		assertEquals(List.of(b3.hash), hashes(connected));
+		assertEquals(List.of(a1.hash, a2.hash), hashes(disconnected));
+		assertEquals(4, this.store.size());
+		assertEquals(List.of(this.genesis.hash, b1.hash, b2.hash, b3.hash), hashes(this.store.toList()));
+
+		// The old branch is still known, so it can take over again if it grows
+		assertEquals(2, this.store.getHeight(a2.hash));
+		assertNotNull(this.store.getBlock(a2.hash));
+		Block a3 = child(a2, "a3");
+		Block a4 = child(a3, "a4");
+		assertEquals(ChainStore.Result.SIDE_BRANCH, this.add(a3));
+		disconnected.clear();
+		assertEquals(ChainStore.Result.REORGANIZED, this.store.add(a4, new ArrayList<>(), disconnected));
+		assertEquals(List.of(b1.hash, b2.hash, b3.hash), hashes(disconnected));
+		assertEquals(a4.hash, this.store.tip().hash);
+		assertEquals(a1.hash, this.store.get(1).hash);
+	}
+
+	@Test
+	void orphanIsConnectedWhenItsParentArrives() throws Exception {
+		Block a1 = child(this.genesis, "a1");
+		Block a2 = child(a1, "a2");
+		Block a3 = child(a2, "a3");
+		assertEquals(ChainStore.Result.ORPHAN, this.add(a3));
+		assertEquals(ChainStore.Result.ORPHAN, this.add(a2));
+		assertTrue(this.store.isOrphan(a3.hash));
+		assertTrue(this.store.has(a3.hash));
+		assertEquals(-1, this.store.getHeight(a3.hash));
+		assertEquals(2, this.store.orphanCount());
+		assertEquals(1, this.store.size());
+		assertEquals(ChainStore.Result.DUPLICATE, this.add(a3));
+
+		List<Block> connected = new ArrayList<>();
+		assertEquals(ChainStore.Result.EXTENDED, this.store.add(a1, connected));
+		assertEquals(List.of(a1.hash, a2.hash, a3.hash), hashes(connected));
+		assertFalse(this.store.isOrphan(a3.hash));
+		assertEquals(0, this.store.orphanCount());
+		assertEquals(a3.hash, this.store.tip().hash);
+	}
+
+	@Test
+	void orphansCanReorganize() throws Exception {
+		Block a1 = child(this.genesis, "a1");
+		this.add(a1);
+		Block b1 = child(this.genesis, "b1");
+		Block b2 = child(b1, "b2");
+		assertEquals(ChainStore.Result.ORPHAN, this.add(b2));
+
+		// b1 alone only ties with a1, but with its waiting child the branch is heavier
+		List<Block> connected = new ArrayList<>();
+		List<Block> disconnected = new ArrayList<>();
+		assertEquals(ChainStore.Result.REORGANIZED, this.store.add(b1, connected, disconnected));
+		assertEquals(List.of(b1.hash, b2.hash), hashes(connected));
+		assertEquals(List.of(a1.hash), hashes(disconnected));
+		assertEquals(b2.hash, this.store.tip().hash);
+	}
+
+	@Test
+	void orphanPoolIsBounded() throws Exception {
+		this.store = new ChainStore(this.genesis, 1, 3);
+		List<Block> orphans = new ArrayList<>();
+		for (int i = 0; i < 5; i++) {
+			Block missing = child(this.genesis, "missing " + i);
+			orphans.add(child(missing, "orphan " + i));
+			assertEquals(ChainStore.Result.ORPHAN, this.add(orphans.get(i)));
+		}
+		assertEquals(3, this.store.orphanCount());
+		assertFalse(this.store.has(orphans.get(0).hash));  // The oldest ones were thrown out
+		assertFalse(this.store.has(orphans.get(1).hash));
+		assertTrue(this.store.isOrphan(orphans.get(4).hash));
+	}
+
+	@Test
+	void malformedHashesAreUnknown() throws Exception {
+		Block bad = new Block("bad", 1, 0, "not a hash", "also not a hash");
+		assertEquals(ChainStore.Result.ORPHAN, this.add(bad));
+		assertEquals(-1, this.store.getHeight("zz"));
+		assertNull(this.store.getBlock("zz"));
+	}
+
+	@Test
+	void snapshotKeepsItsChainThroughAReorg() throws Exception {
+		List<Block> chain = ProtocolTest.chain(10, 100);
+		BlockLog log = new BlockLog(this.dir);
+		try {
+			log.syncWith(ChainStore.fromList(chain, 1));
+			ChainStore store = ChainStore.fromLog(log, 1);  // Every body is in the log, none in memory
+			ChainSnapshot before = store.snapshot();
+
+			// A longer branch from height 5 takes over, and the log follows it, so heights 6-9 in the log aren't ours any more
+			Block parent = chain.get(5);
+			for (int i = 0; i < 6; i++) {
+				Block b = child(parent, "fork " + i);
+				store.add(b, new ArrayList<>());
+				parent = b;
+			}
+			log.syncWith(store);
+			assertEquals(parent.hash, log.getHash(11));
+
+			assertEquals(10, before.size());
+			for (int h = 0; h < chain.size(); h++) {
+				Block b = before.get(h);
+				assertEquals(chain.get(h).hash, b.hash);
+				assertEquals(chain.get(h).data, b.data, "height " + h);  // 6-9 come from the side branches now
+			}
+			assertEquals(12, store.snapshot().size());
+			assertEquals("fork 0", store.get(6).data);
+			assertEquals(chain.get(8).data, store.getBlock(chain.get(8).hash).data);
+		} finally {
+			log.close();
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package blockchain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ChainValidatorTest {
+	private static final int N = 1;
+
+	// Method to mine a chain of length blocks, starting with a genesis block
+	private static List<Block> mined(int length) throws Exception {
+		List<Block> chain = new ArrayList<>();
+		chain.add(new Block());
+		while (chain.size() < length) {
+			chain.add(BlockTest.mined(chain.get(chain.size() - 1), "block " + chain.size(), N));
+		}
+		return chain;
+	}
+
+	// Method to replace the block at a height with one whose hash doesn't match its contents
+	private static void tamper(List<Block> chain, int height) {
+		Block b = new Block(chain.get(height));
+		b.data = "tampered";
+		chain.set(height, b);
+	}
+
+	@Test
+	void validChainPasses() throws Exception {
+		List<Block> chain = mined(ChainValidator.THRESHOLD * 3);  // Big enough to be split across tasks
+		assertEquals(-1, ChainValidator.firstInvalid(chain, N));
+		assertEquals(-1, ChainValidator.firstInvalid(mined(1), N));
+	}
+
+	@Test
+	void lowestBadHeightIsReported() throws Exception {
+		List<Block> chain = mined(ChainValidator.THRESHOLD * 3);
+		tamper(chain, ChainValidator.THRESHOLD * 2 + 7);
+		tamper(chain, 300);
+		tamper(chain, ChainValidator.THRESHOLD * 3 - 1);
+		assertEquals(300, ChainValidator.firstInvalid(chain, N));
+	}
+
+	@Test
+	void brokenLinkIsCaught() throws Exception {
+		List<Block> chain = mined(20);
+		Block other = BlockTest.mined(chain.get(3), "somewhere else", N);
+		chain.set(10, other);  // A valid block, but its parent is height 3
+		assertEquals(10, ChainValidator.firstInvalid(chain, N));
+		assertFalse(ChainValidator.isValid(chain.get(9), other, N));
+		assertTrue(ChainValidator.isValid(chain.get(3), other, N));
+	}
+
+	@Test
+	void blocksAreCheckedAgainstWhatComesBefore() throws Exception {
+		List<Block> chain = mined(30);
+		assertEquals(-1, ChainValidator.firstInvalid(chain.get(9), chain.subList(10, 30), N));
+		assertEquals(0, ChainValidator.firstInvalid(chain.get(8), chain.subList(10, 30), N));
+		tamper(chain, 15);
+		assertEquals(5, ChainValidator.firstInvalid(chain.get(9), chain.subList(10, 30), N));
+	}
+
+	@Test
+	void storeIsCheckedFromItsSnapshot() throws Exception {
+		List<Block> chain = mined(50);
+		assertEquals(-1, ChainValidator.firstInvalid(ChainStore.fromList(chain, N), N));
+		tamper(chain, 42);
+		assertEquals(42, ChainValidator.firstInvalid(ChainStore.fromList(chain, N), N));
+	}
+}
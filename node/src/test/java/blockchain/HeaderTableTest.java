@@ -0,0 +1,76 @@
+package blockchain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+class HeaderTableTest {
+	private static final int HEIGHTS = 4096 + 500;  // More than one chunk, so truncates can cut into the second
+
+	// Method to make a made-up hash for a height on a branch (only the table's bookkeeping is tested, so nothing is hashed)
+	private static byte[] hash(int branch, int height) {
+		return ByteBuffer.allocate(Block.HASH_SIZE).putInt(branch).putInt(Block.HASH_SIZE - 4, height).array();
+	}
+
+	// Method to fill a table with heights from..to-1 of a branch
+	private static void fill(HeaderTable table, int branch, int from, int to) {
+		for (int h = from; h < to; h++) {
+			table.add(hash(branch, h), 1000L * branch + h, h, "body " + branch + "/" + h);
+		}
+	}
+
+	@Test
+	void headersComeBackByHeightAndByHash() {
+		HeaderTable table = new HeaderTable();
+		fill(table, 0, 0, HEIGHTS);
+		assertEquals(HEIGHTS, table.size());
+		for (int h = 0; h < HEIGHTS; h += 97) {
+			assertArrayEquals(hash(0, h), table.hash(h));
+			assertEquals(Block.toHex(hash(0, h)), table.hashHex(h));
+			assertEquals(h, table.timestamp(h));
+			assertEquals(h, table.nonce(h));
+			assertEquals("body 0/" + h, table.body(h));
+			assertEquals(h, table.indexOf(hash(0, h)));
+		}
+		assertEquals(-1, table.indexOf(hash(1, 5)));
+	}
+
+	@Test
+	void truncatedHeadersAreForgotten() {
+		HeaderTable table = new HeaderTable();
+		fill(table, 0, 0, HEIGHTS);
+		table.truncate(4100);
+		assertEquals(4100, table.size());
+		assertEquals(-1, table.indexOf(hash(0, 4100)));
+		assertEquals(-1, table.indexOf(hash(0, HEIGHTS - 1)));
+		assertEquals(4099, table.indexOf(hash(0, 4099)));
+
+		fill(table, 1, 4100, 4200);
+		assertEquals(4150, table.indexOf(hash(1, 4150)));
+		assertEquals(-1, table.indexOf(hash(0, 4150)));
+	}
+
+	@Test
+	void copyKeepsItsHeadersAcrossATruncate() {
+		HeaderTable table = new HeaderTable();
+		fill(table, 0, 0, HEIGHTS);
+		HeaderTable copy = new HeaderTable(table);
+
+		// A reorg cuts into the middle of the second chunk (and, separately, at a chunk boundary) and writes a new branch
+		table.truncate(4200);
+		fill(table, 1, 4200, HEIGHTS + 100);
+		table.truncate(4096);
+		fill(table, 2, 4096, HEIGHTS + 200);
+		table.setBody(10, null);  // Dropping a body is the one change copies are allowed to see
+
+		assertEquals(HEIGHTS, copy.size());
+		for (int h = 4000; h < HEIGHTS; h++) {
+			assertArrayEquals(hash(0, h), copy.hash(h), "height " + h);
+			assertEquals(h, copy.timestamp(h));
+			assertEquals("body 0/" + h, copy.body(h));
+		}
+		assertArrayEquals(hash(2, 4300), table.hash(4300));
+		assertNull(copy.body(10));
+	}
+}
@@ -0,0 +1,53 @@
+package blockchain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class InventoryTest {
+	private final Inventory inventory = new Inventory();
+	private final MessageWriter first = new MessageWriter(new ByteArrayOutputStream());
+	private final MessageWriter second = new MessageWriter(new ByteArrayOutputStream());
+
+	@Test
+	void blockIsRequestedOnce() {
+		assertTrue(this.inventory.shouldRequest("a", this.first));
+		assertFalse(this.inventory.shouldRequest("a", this.second));
+		assertFalse(this.inventory.shouldRequest("a", this.first));
+		assertEquals(2, this.inventory.ignored());
+		assertTrue(this.inventory.retries().isEmpty());  // Not timed out yet
+
+		this.inventory.markSeen("a");
+		assertFalse(this.inventory.shouldRequest("a", this.second));
+		assertTrue(this.inventory.retries().isEmpty());
+	}
+
+	@Test
+	void unansweredRequestGoesToTheNextAnnouncer() throws Exception {
+		this.inventory.shouldRequest("a", this.first);
+		this.inventory.shouldRequest("a", this.second);
+		this.inventory.shouldRequest("b", this.first);
+		this.inventory.forget(this.first);  // Only the second peer is left to ask for either block
+		this.inventory.markSeen("b");
+		Thread.sleep(Inventory.REQUEST_TIMEOUT_MS + 100);
+
+		List<Inventory.Retry> retries = this.inventory.retries();
+		assertEquals(1, retries.size());
+		assertEquals("a", retries.get(0).hash);
+		assertSame(this.second, retries.get(0).peer);
+		assertTrue(this.inventory.retries().isEmpty());  // Asking again restarts the wait
+		assertFalse(this.inventory.shouldRequest("a", this.first));
+	}
+
+	@Test
+	void oldestHashesAreForgotten() {
+		Inventory small = new Inventory(2);
+		small.markSeen("a");
+		small.markSeen("b");
+		small.markSeen("c");
+		assertTrue(small.shouldRequest("a", this.first));  // Pushed out by c
+		assertFalse(small.shouldRequest("c", this.first));
+	}
+}
@@ -0,0 +1,76 @@
+package blockchain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class MempoolTest {
+	private final Mempool mempool = new Mempool();
+
+	// Method to make a block holding the given entries
+	private static Block block(String... entries) {
+		return new Block(Block.joinEntries(List.of(entries)), 0, 0, "0", null);
+	}
+
+	@Test
+	void entriesAreDeduplicated() {
+		assertEquals(Mempool.Result.ADDED, this.mempool.add("a"));
+		assertEquals(Mempool.Result.DUPLICATE, this.mempool.add("a"));
+		assertEquals(Mempool.Result.ADDED, this.mempool.add("b"));
+		assertEquals(2, this.mempool.size());
+		assertEquals(List.of("a", "b"), this.mempool.select(Mempool.MAX_BLOCK_BYTES));
+	}
+
+	@Test
+	void badEntriesAreRefused() {
+		assertEquals(Mempool.Result.INVALID, this.mempool.add(null));
+		assertEquals(Mempool.Result.INVALID, this.mempool.add(""));
+		assertEquals(Mempool.Result.INVALID, this.mempool.add("two" + Block.ENTRY_SEPARATOR + "lines"));
+		assertEquals(Mempool.Result.INVALID, this.mempool.add("x".repeat(Mempool.MAX_ENTRY_BYTES + 1)));
+		assertEquals(Mempool.Result.ADDED, this.mempool.add("x".repeat(Mempool.MAX_ENTRY_BYTES)));
+		assertEquals(1, this.mempool.size());
+	}
+
+	@Test
+	void selectTakesTheOldestThatFit() {
+		this.mempool.add("first");
+		this.mempool.add("second");
+		this.mempool.add("third");
+		assertEquals(List.of("first", "second"), this.mempool.select(("first" + "second").length() + 2));
+		assertEquals(List.of(), this.mempool.select(3));
+		assertEquals(3, this.mempool.size());  // Selecting doesn't take anything out
+	}
+
+	@Test
+	void committedEntriesLeaveAndStayOut() {
+		this.mempool.add("a");
+		this.mempool.add("b");
+		this.mempool.commit(block("a", "c"));
+		assertEquals(1, this.mempool.size());
+		assertEquals(List.of("b"), this.mempool.select(Mempool.MAX_BLOCK_BYTES));
+		assertEquals(Mempool.Result.DUPLICATE, this.mempool.add("a"));
+		assertEquals(Mempool.Result.DUPLICATE, this.mempool.add("c"));  // Seen in a block even though it was never submitted here
+	}
+
+	@Test
+	void restoredEntriesComeBackOnce() {
+		Block stale = block("a", "b");
+		this.mempool.add("a");
+		this.mempool.add("b");
+		this.mempool.commit(stale);
+		assertEquals(0, this.mempool.size());
+
+		// A reorg takes the block off the chain, and the new branch has one of its entries
+		this.mempool.restore(stale);
+		this.mempool.commit(block("b"));
+		assertEquals(List.of("a"), this.mempool.select(Mempool.MAX_BLOCK_BYTES));
+		assertEquals(Mempool.Result.DUPLICATE, this.mempool.add("a"));
+		assertEquals(Mempool.Result.DUPLICATE, this.mempool.add("b"));
+
+		// Re-adding an entry after its old place in the queue was left behind doesn't hand it out twice
+		this.mempool.commit(block("a"));
+		this.mempool.restore(block("a"));
+		assertEquals(List.of("a"), this.mempool.select(Mempool.MAX_BLOCK_BYTES));
+	}
+}
@@ -0,0 +1,109 @@
+package blockchain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class MerkleTest {
+	// Method to make count distinct entries
+	private static List<String> entries(int count) {
+		List<String> entries = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			entries.add("entry " + i);
+		}
+		return entries;
+	}
+
+	@Test
+	void everyEntryVerifiesAgainstTheRoot() {
+		// Odd sizes leave a node without a sibling on some level, which is carried up as it is
+		for (int count = 1; count <= 17; count++) {
+			List<String> entries = entries(count);
+			byte[] root = Merkle.root(entries);
+			for (int i = 0; i < count; i++) {
+				List<byte[]> proof = Merkle.proof(entries, i);
+				assertTrue(Merkle.verify(entries.get(i), i, count, proof, root), "entry " + i + " of " + count);
+			}
+		}
+	}
+
+	@Test
+	void singleEntryRootIsItsLeafHash() {
+		assertArrayEquals(Merkle.leafHash("only"), Merkle.root(List.of("only")));
+		assertTrue(Merkle.proof(List.of("only"), 0).isEmpty());
+	}
+
+	@Test
+	void emptyRootIsZeros() {
+		assertArrayEquals(new byte[Block.HASH_SIZE], Merkle.root(List.of()));
+	}
+
+	@Test
+	void wrongEntryFails() {
+		List<String> entries = entries(6);
+		byte[] root = Merkle.root(entries);
+		assertFalse(Merkle.verify("entry 9", 2, 6, Merkle.proof(entries, 2), root));
+	}
+
+	@Test
+	void wrongIndexFails() {
+		List<String> entries = entries(6);
+		byte[] root = Merkle.root(entries);
+		List<byte[]> proof = Merkle.proof(entries, 2);
+		assertFalse(Merkle.verify("entry 2", 3, 6, proof, root));
+		assertFalse(Merkle.verify("entry 2", -1, 6, proof, root));
+		assertFalse(Merkle.verify("entry 2", 6, 6, proof, root));
+	}
+
+	@Test
+	void wrongCountFails() {
+		List<String> entries = entries(5);
+		byte[] root = Merkle.root(entries);
+		assertFalse(Merkle.verify("entry 4", 4, 8, Merkle.proof(entries, 4), root));
+	}
+
+	@Test
+	void tamperedProofFails() {
+		List<String> entries = entries(8);
+		byte[] root = Merkle.root(entries);
+		List<byte[]> proof = Merkle.proof(entries, 5);
+		byte[] sibling = proof.get(1).clone();
+		sibling[0] ^= 1;
+		proof.set(1, sibling);
+		assertFalse(Merkle.verify("entry 5", 5, 8, proof, root));
+	}
+
+	@Test
+	void shortOrLongProofFails() {
+		List<String> entries = entries(8);
+		byte[] root = Merkle.root(entries);
+		List<byte[]> proof = Merkle.proof(entries, 3);
+		assertFalse(Merkle.verify("entry 3", 3, 8, proof.subList(0, proof.size() - 1), root));
+		List<byte[]> longer = new ArrayList<>(proof);
+		longer.add(new byte[Block.HASH_SIZE]);
+		assertFalse(Merkle.verify("entry 3", 3, 8, longer, root));
+	}
+
+	@Test
+	void blockHeaderCommitsToEntryRoot() throws Exception {
+		List<String> entries = entries(5);
+		Block b = new Block(Block.joinEntries(entries));
+		assertEquals(entries, b.entries());
+		assertArrayEquals(Merkle.root(entries), b.merkleRoot());
+		assertArrayEquals(b.merkleRoot(), Arrays.copyOf(b.encodeHeader(), Block.HASH_SIZE));
+	}
+
+	@Test
+	void cachedRootFollowsTheData() throws Exception {
+		Block b = new Block(Block.joinEntries(entries(3)));
+		byte[] before = b.merkleRoot();
+		assertSame(before, b.merkleRoot());
+		b.data = Block.joinEntries(entries(4));
+		assertArrayEquals(Merkle.root(entries(4)), b.merkleRoot());
+		assertFalse(Arrays.equals(before, b.merkleRoot()));
+		assertEquals(b.calculateHash(), new Block(b).calculateHash());
+	}
+}
@@ -0,0 +1,63 @@
+package blockchain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class MetricsTest {
+	@Test
+	void percentilesAreTheTopOfTheirBucket() {
+		Histogram h = new Histogram();
+		for (int v = 1; v <= 100; v++) {
+			h.record(v);
+		}
+		assertEquals(100, h.count());
+		assertEquals(5050, h.sum());
+		assertEquals(100, h.max());
+		assertEquals(63, h.percentile(50));   // The 50th value (50) is in the 32-63 bucket
+		assertEquals(100, h.percentile(99));  // The 64-127 bucket, capped at the biggest value seen
+		assertEquals(1, h.percentile(0));
+	}
+
+	@Test
+	void zeroAndNegativeValuesShareTheFirstBucket() {
+		Histogram h = new Histogram();
+		h.record(-5);
+		h.record(0);
+		assertEquals(2, h.count());
+		assertEquals(0, h.sum());
+		assertEquals(0, h.percentile(100));
+		assertEquals(0, new Histogram().percentile(50));
+	}
+
+	@Test
+	void snapshotNamesEveryMetric() {
+		Metrics metrics = new Metrics();
+		metrics.counter("blocks").add(3);
+		metrics.histogram("validate_us").record(10);
+		metrics.gauge("height", () -> 7);
+		metrics.perPeerGauge("queue_size", () -> Map.of("9001", 2));
+		Map<String, Number> values = metrics.snapshot();
+		assertEquals(3L, values.get("blocks"));
+		assertEquals(1L, values.get("validate_us_count"));
+		assertEquals(10L, values.get("validate_us_max"));
+		assertEquals(7, values.get("height"));
+		assertEquals(2, values.get("peer.9001.queue_size"));
+		assertTrue(metrics.toText().contains("blocks 3\n"));
+	}
+
+	@Test
+	void inventoryReportsWhenABlockWasFirstAnnounced() throws Exception {
+		Inventory inventory = new Inventory();
+		long before = System.currentTimeMillis();
+		assertTrue(inventory.shouldRequest("a", null));
+		long after = System.currentTimeMillis();
+		Thread.sleep(5);
+		assertFalse(inventory.shouldRequest("a", null));  // Announced again, but the first announcement is what counts
+		long announced = inventory.markSeen("a");
+		assertTrue(announced >= before && announced <= after, "announced at " + announced);
+		assertEquals(0, inventory.markSeen("a"));  // Already seen
+		assertEquals(0, inventory.markSeen("b"));  // Never announced, like a pushed block
+	}
+}
@@ -0,0 +1,60 @@
+package blockchain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class MinerTest {
+	private final Miner miner = new Miner(4);
+
+	@AfterEach
+	void tearDown() {
+		this.miner.shutdown();
+	}
+
+	// Method to make an unmined block on top of genesis
+	private static Block block() throws Exception {
+		Block b = new Block("mine me", System.currentTimeMillis(), 0, new Block().hash, null);
+		b.hash = b.calculateHash();
+		return b;
+	}
+
+	@Test
+	void minedBlockMeetsTheDifficulty() throws Exception {
+		Block b = block();
+		assertTrue(this.miner.mine(b, 3));
+		assertTrue(b.hasValidHash(3));
+		assertEquals(b.calculateHash(), b.hash);
+	}
+
+	@Test
+	void staleRoundStopsAtOnce() throws Exception {
+		int round = this.miner.round();
+		this.miner.cancel();  // Like a block being accepted between reading the round and the tip
+		Block b = block();
+		String hash = b.hash;
+		assertFalse(this.miner.mine(b, Block.HASH_SIZE * 2, round));  // A difficulty nobody could ever meet
+		assertEquals(hash, b.hash);
+	}
+
+	@Test
+	void cancelStopsMining() throws Exception {
+		Block b = block();
+		CompletableFuture<Boolean> mined = CompletableFuture.supplyAsync(() -> {
+			try {
+				return this.miner.mine(b, Block.HASH_SIZE * 2);
+			} catch (InterruptedException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!mined.isDone() && System.currentTimeMillis() < deadline) {
+			Thread.sleep(50);
+			this.miner.cancel();  // Again until it stops, in case the first one came before mining started
+		}
+		assertFalse(mined.get(1, TimeUnit.SECONDS));
+	}
+}
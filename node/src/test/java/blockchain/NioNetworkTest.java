@@ -0,0 +1,76 @@
+package blockchain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+class NioNetworkTest {
+	// Method to feed bytes to a connection the way the I/O thread does, at most chunk bytes per read, and collect every
+	// message that comes out
+	private static List<Message> feed(NioNetwork.NioConnection conn, byte[] bytes, int chunk) throws ProtocolException {
+		List<Message> messages = new ArrayList<>();
+		int offset = 0;
+		while (offset < bytes.length) {
+			int n = Math.min(Math.min(chunk, conn.readBuffer.remaining()), bytes.length - offset);
+			conn.readBuffer.put(bytes, offset, n);
+			offset += n;
+			conn.readBuffer.flip();
+			Message m;
+			while ((m = conn.nextFrame()) != null) {
+				messages.add(m);
+			}
+			conn.readBuffer.compact();
+		}
+		return messages;
+	}
+
+	@Test
+	void framesSplitAcrossReadsComeThroughWhole() throws Exception {
+		List<Block> chain = ProtocolTest.chain(300, 0);
+		Random random = new Random(1);
+		for (Block b : chain) {
+			// Random data, so compression can't shrink the frame (the hashes don't match any more, but framing doesn't care)
+			StringBuilder data = new StringBuilder();
+			while (data.length() < 500) {
+				data.append(Long.toString(random.nextLong(), 36));
+			}
+			b.data = data.toString();
+		}
+		byte[] blocks = Protocol.encode(Message.blocks(0, chain));
+		assertTrue(blocks.length > 4 * NioNetwork.NioConnection.BUFFER_SIZE);  // So the big frame buffer has to grow
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		bytes.writeBytes(Protocol.encode(Message.ping()));
+		bytes.writeBytes(blocks);
+		bytes.writeBytes(Protocol.encode(Message.inv(299, chain.get(299).hash)));
+		for (int chunk : new int[] { 1, 7, 1000, NioNetwork.NioConnection.BUFFER_SIZE }) {
+			List<Message> messages = feed(new NioNetwork.NioConnection(null, null), bytes.toByteArray(), chunk);
+			assertEquals(3, messages.size(), "chunk " + chunk);
+			assertEquals(Protocol.PING, messages.get(0).type);
+			assertEquals(chain.size(), messages.get(1).blocks.size());
+			assertEquals(chain.get(299).hash, messages.get(1).blocks.get(299).hash);
+			assertEquals(chain.get(299).hash, messages.get(2).hash);
+		}
+	}
+
+	@Test
+	void oversizedHeaderIsRejected() {
+		byte[] header = ByteBuffer.allocate(Protocol.HEADER_SIZE).put(Protocol.VERSION).put(Protocol.GET_DATA).put((byte) 0)
+				.putInt(Protocol.MAX_PAYLOAD).array();
+		assertThrows(ProtocolException.class, () -> feed(new NioNetwork.NioConnection(null, null), header, header.length));
+	}
+
+	@Test
+	void claimedLengthAloneIsNotAFrame() throws Exception {
+		// A header claiming a huge chain waits for the bytes instead of producing anything
+		NioNetwork.NioConnection conn = new NioNetwork.NioConnection(null, null);
+		byte[] header = ByteBuffer.allocate(Protocol.HEADER_SIZE + 100).put(Protocol.VERSION).put(Protocol.CHAIN).put((byte) 0)
+				.putInt(Protocol.MAX_PAYLOAD).array();
+		assertTrue(feed(conn, header, header.length).isEmpty());
+	}
+}
@@ -0,0 +1,104 @@
+package blockchain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+// These start real nodes on local ports (at difficulty 1, see node/pom.xml)
+class NodeTest {
+	private List<BCNode> nodes = new ArrayList<>();
+
+	@AfterEach
+	void tearDown() throws Exception {
+		for (BCNode node : this.nodes) {
+			node.shutdown();
+		}
+	}
+
+	// Method to find a port nothing is listening on
+	private static int freePort() throws Exception {
+		try (ServerSocket s = new ServerSocket(0)) {
+			return s.getLocalPort();
+		}
+	}
+
+	// Method to start a node on a port, joining the nodes on the given ports (or starting a new chain if there are none)
+	private BCNode start(int port, List<Integer> peers) throws Exception {
+		BCNode node = new BCNode(port, new ArrayList<>(peers), 1);
+		this.nodes.add(node);
+		return node;
+	}
+
+	@Test
+	void receivedBlocksAreCheckedAgainstTheTip() throws Exception {
+		BCNode node = this.start(freePort(), List.of());
+		node.addBlock(new Block("mined here"));
+		assertEquals(2, node.chain.size());
+		assertEquals(1, node.verifiedHeight);
+
+		Block next = BlockTest.mined(node.chain.tip(), "from a peer", BCNode.DIFFICULTY);
+		Block tampered = new Block(next);
+		tampered.data = "tampered";
+		assertFalse(node.addExistingBlock(tampered));
+		assertTrue(node.addExistingBlock(next));
+		assertFalse(node.addExistingBlock(next));  // Already have it
+		assertEquals(3, node.chain.size());
+		assertEquals(2, node.verifiedHeight);  // The watermark follows the tip, so nothing behind it is checked again
+
+		Block easy = new Block("too easy", next.timestamp + 1, 0, next.hash, null);
+		while (Block.hasLeadingZeros(easy.calculateHashBytes(), BCNode.DIFFICULTY)) {
+			easy.nonce++;
+		}
+		easy.hash = easy.calculateHash();  // Its own hash, but without the leading zeros
+		assertFalse(node.addExistingBlock(easy));
+		assertEquals(next.hash, node.chain.tip().hash);
+	}
+
+	// Method to wait (up to 10 seconds) for something to become true
+	private static void await(String what, BooleanSupplier condition) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 10000;
+		while (!condition.getAsBoolean()) {
+			assertTrue(System.currentTimeMillis() < deadline, "timed out waiting for " + what);
+			Thread.sleep(20);
+		}
+	}
+
+	@Test
+	void joiningNodeDownloadsTheChain() throws Exception {
+		int port = freePort();
+		BCNode first = this.start(port, List.of());
+		// More than one batch of headers, so the download has to ask for them more than once
+		for (int i = 0; i < ChainSync.HEADER_BATCH + 50; i++) {
+			assertTrue(first.addExistingBlock(BlockTest.mined(first.chain.tip(), "block " + i, BCNode.DIFFICULTY)));
+		}
+
+		BCNode joined = this.start(freePort(), List.of(port));
+		assertEquals(first.chain.size(), joined.chain.size());
+		assertEquals(first.chain.tip().hash, joined.chain.tip().hash);
+		assertEquals(joined.chain.size() - 1, joined.verifiedHeight);
+		assertEquals(-1, ChainValidator.firstInvalid(joined.chain, BCNode.DIFFICULTY));
+
+		// Once it's in, new blocks reach it as they're mined
+		first.addBlock(new Block("after the sync"));
+		await("the new block", () -> joined.chain.size() == first.chain.size());
+		assertEquals(first.chain.tip().hash, joined.chain.tip().hash);
+	}
+
+	@Test
+	void lostPeerIsRedialled() throws Exception {
+		int port = freePort();
+		BCNode first = this.start(port, List.of());
+		BCNode joined = this.start(freePort(), List.of(port));
+		first.shutdown();
+		await("the peer to be dropped", () -> joined.metrics.counter("peers_removed").sum() == 1);
+
+		// It comes back on the same port, and the node that dialled it finds it again (after a backoff of a second or so)
+		this.start(port, List.of());
+		await("the redial", () -> joined.metrics.counter("peers_reconnected").sum() == 1);
+	}
+}
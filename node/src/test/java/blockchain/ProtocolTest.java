@@ -0,0 +1,296 @@
+package blockchain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import org.junit.jupiter.api.Test;
+
+class ProtocolTest {
+	// Method to make a chain of blocks with real hashes (nothing is mined; the Protocol doesn't check difficulty)
+	static List<Block> chain(int length, int dataSize) throws Exception {
+		List<Block> chain = new ArrayList<>();
+		chain.add(new Block());
+		while (chain.size() < length) {
+			Block b = new Block("x".repeat(dataSize) + chain.size(), 1000L + chain.size(), chain.size(), chain.get(chain.size() - 1).hash, null);
+			b.hash = b.calculateHash();
+			chain.add(b);
+		}
+		return chain;
+	}
+
+	// Method to encode a message into a frame and read it back the way a peer does: header first, then payload
+	private static Message roundTrip(Message m) throws ProtocolException {
+		return decodeFrame(Protocol.encode(m));
+	}
+
+	private static Message decodeFrame(byte[] frame) throws ProtocolException {
+		ByteBuffer header = ByteBuffer.wrap(frame, 0, Protocol.HEADER_SIZE);
+		byte version = header.get();
+		byte type = header.get();
+		byte flags = header.get();
+		int length = Protocol.checkHeader(version, type, flags, header.getInt());
+		assertEquals(frame.length - Protocol.HEADER_SIZE, length);
+		return Protocol.decode(type, flags, Arrays.copyOfRange(frame, Protocol.HEADER_SIZE, frame.length));
+	}
+
+	private static void assertSameBlock(Block expected, Block actual) {
+		assertEquals(expected.data, actual.data);
+		assertEquals(expected.timestamp, actual.timestamp);
+		assertEquals(expected.nonce, actual.nonce);
+		assertEquals(expected.previousHash, actual.previousHash);
+		assertEquals(expected.hash, actual.hash);
+	}
+
+	private static void assertSameBlocks(List<Block> expected, List<Block> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertSameBlock(expected.get(i), actual.get(i));
+		}
+	}
+
+	// Method to deflate bytes the way Protocol.compress does, claiming the given uncompressed length
+	private static byte[] compressed(byte[] data, int claimedLength) {
+		Deflater deflater = new Deflater();
+		deflater.setInput(data);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.writeBytes(ByteBuffer.allocate(4).putInt(claimedLength).array());
+		byte[] chunk = new byte[8192];
+		while (!deflater.finished()) {
+			out.write(chunk, 0, deflater.deflate(chunk));
+		}
+		deflater.end();
+		return out.toByteArray();
+	}
+
+	@Test
+	void messagesWithoutPayloadRoundTrip() throws Exception {
+		for (Message m : List.of(Message.chainRequest(), Message.noChainRequest(), Message.ping(), Message.pong())) {
+			byte[] frame = Protocol.encode(m);
+			assertEquals(Protocol.HEADER_SIZE, frame.length);
+			assertEquals(m.type, roundTrip(m).type);
+		}
+	}
+
+	@Test
+	void blockRoundTrips() throws Exception {
+		Block b = chain(2, 10).get(1);
+		Message m = roundTrip(Message.block(b));
+		assertEquals(Protocol.BLOCK, m.type);
+		assertSameBlock(b, m.block);
+	}
+
+	@Test
+	void genesisKeepsItsPreviousHash() throws Exception {
+		Block genesis = new Block();
+		assertEquals("0", roundTrip(Message.block(genesis)).block.previousHash);
+	}
+
+	@Test
+	void unicodeDataRoundTrips() throws Exception {
+		Block b = new Block(Block.joinEntries(List.of("héllo", "日本語", "")), 1000L, 7, new Block().hash, null);
+		b.hash = b.calculateHash();
+		assertSameBlock(b, roundTrip(Message.block(b)).block);
+	}
+
+	@Test
+	void blockListsRoundTrip() throws Exception {
+		List<Block> chain = chain(20, 10);
+		Message m = roundTrip(Message.chain(chain));
+		assertEquals(Protocol.CHAIN, m.type);
+		assertSameBlocks(chain, m.blocks);
+
+		m = roundTrip(Message.blocks(7, chain.subList(7, 12)));
+		assertEquals(Protocol.BLOCKS, m.type);
+		assertEquals(7, m.height);
+		assertSameBlocks(chain.subList(7, 12), m.blocks);
+	}
+
+	@Test
+	void requestsAndHashesRoundTrip() throws Exception {
+		List<Block> chain = chain(5, 1);
+		Message m = roundTrip(Message.getHeaders(3, 500));
+		assertEquals(Protocol.GET_HEADERS, m.type);
+		assertEquals(3, m.height);
+		assertEquals(500, m.count);
+
+		m = roundTrip(Message.getBlocks(4, 64));
+		assertEquals(Protocol.GET_BLOCKS, m.type);
+		assertEquals(4, m.height);
+		assertEquals(64, m.count);
+
+		List<String> hashes = new ArrayList<>();
+		for (Block b : chain.subList(1, 5)) {
+			hashes.add(b.hash);
+		}
+		m = roundTrip(Message.headers(1, hashes));
+		assertEquals(Protocol.HEADERS, m.type);
+		assertEquals(1, m.height);
+		assertEquals(hashes, m.hashes);
+
+		m = roundTrip(Message.inv(4, chain.get(4).hash));
+		assertEquals(Protocol.INV, m.type);
+		assertEquals(4, m.height);
+		assertEquals(chain.get(4).hash, m.hash);
+
+		m = roundTrip(Message.getData(chain.get(2).hash));
+		assertEquals(Protocol.GET_DATA, m.type);
+		assertEquals(chain.get(2).hash, m.hash);
+	}
+
+	@Test
+	void entriesRoundTrip() throws Exception {
+		List<String> entries = List.of("pay alice 5", "", "ünïcödé");
+		Message m = roundTrip(Message.entries(entries));
+		assertEquals(Protocol.ENTRIES, m.type);
+		assertEquals(entries, m.entries);
+	}
+
+	@Test
+	void bigPayloadsAreCompressed() throws Exception {
+		List<Block> chain = chain(200, 1000);
+		byte[] frame = Protocol.encode(Message.chain(chain));
+		assertEquals(Protocol.COMPRESSED, frame[2] & Protocol.COMPRESSED);
+		assertTrue(frame.length < Protocol.blocksSize(chain));
+		assertSameBlocks(chain, decodeFrame(frame).blocks);
+	}
+
+	@Test
+	void badHeadersAreRejected() {
+		assertThrows(ProtocolException.class, () -> Protocol.checkHeader((byte) (Protocol.VERSION + 1), Protocol.BLOCK, (byte) 0, 10));
+		assertThrows(ProtocolException.class, () -> Protocol.checkHeader(Protocol.VERSION, Protocol.BLOCK, (byte) 0, -1));
+		assertThrows(ProtocolException.class, () -> Protocol.checkHeader(Protocol.VERSION, Protocol.BLOCK, (byte) 0, Protocol.MAX_PAYLOAD + 1));
+	}
+
+	@Test
+	void headersClaimingMoreThanTheirTypeCanHoldAreRejected() throws Exception {
+		assertThrows(ProtocolException.class, () -> Protocol.checkHeader(Protocol.VERSION, Protocol.PING, (byte) 0, 1));
+		assertThrows(ProtocolException.class, () -> Protocol.checkHeader(Protocol.VERSION, Protocol.INV, (byte) 0, 4 + Block.HASH_SIZE + 1));
+		assertThrows(ProtocolException.class, () -> Protocol.checkHeader(Protocol.VERSION, Protocol.BLOCK, (byte) 0, Protocol.maxPayload(Protocol.BLOCK) + 1));
+		assertThrows(ProtocolException.class, () -> Protocol.checkHeader(Protocol.VERSION, Protocol.BLOCK, Protocol.COMPRESSED, 1024 * 1024));
+		assertThrows(ProtocolException.class, () -> Protocol.checkHeader(Protocol.VERSION, (byte) 99, (byte) 0, 0));
+		assertEquals(Protocol.maxPayload(Protocol.BLOCK), Protocol.checkHeader(Protocol.VERSION, Protocol.BLOCK, (byte) 0, Protocol.maxPayload(Protocol.BLOCK)));
+	}
+
+	@Test
+	void biggestBlockStillFits() throws Exception {
+		// A block packed with as much entry data as the mempool hands out (compressed on the wire, being over the threshold)
+		Random random = new Random(1);
+		StringBuilder data = new StringBuilder();
+		while (data.length() < Mempool.MAX_BLOCK_BYTES) {
+			data.append((char) ('a' + random.nextInt(26)));
+		}
+		Block b = new Block(data.toString(), 1000L, 0, new Block().hash, null);
+		b.hash = b.calculateHash();
+		assertSameBlock(b, roundTrip(Message.block(b)).block);
+	}
+
+	@Test
+	void readerDoesNotTrustTheDeclaredLength() throws Exception {
+		// A header claiming a 64 MB chain, followed by a few bytes and then nothing
+		byte[] forged = ByteBuffer.allocate(Protocol.HEADER_SIZE + 10).put(Protocol.VERSION).put(Protocol.CHAIN).put((byte) 0)
+				.putInt(Protocol.MAX_PAYLOAD).array();
+		assertThrows(EOFException.class, () -> new MessageReader(new ByteArrayInputStream(forged)).read());
+
+		// A header claiming more than its type can hold is refused before any payload is read
+		byte[] inv = ByteBuffer.allocate(Protocol.HEADER_SIZE).put(Protocol.VERSION).put(Protocol.INV).put((byte) 0)
+				.putInt(Protocol.MAX_PAYLOAD).array();
+		assertThrows(ProtocolException.class, () -> new MessageReader(new ByteArrayInputStream(inv)).read());
+
+		// Real frames, big and small, still come through whole
+		List<Block> chain = chain(500, 500);
+		ByteArrayOutputStream frames = new ByteArrayOutputStream();
+		frames.writeBytes(Protocol.encode(Message.blocks(0, chain)));
+		frames.writeBytes(Protocol.encode(Message.ping()));
+		MessageReader reader = new MessageReader(new ByteArrayInputStream(frames.toByteArray()));
+		assertSameBlocks(chain, reader.read().blocks);
+		assertEquals(Protocol.PING, reader.read().type);
+	}
+
+	@Test
+	void unknownTypeIsRejected() {
+		assertThrows(ProtocolException.class, () -> Protocol.decode((byte) 99, (byte) 0, new byte[0]));
+	}
+
+	@Test
+	void truncatedPayloadsAreRejected() throws Exception {
+		byte[] frame = Protocol.encode(Message.block(chain(2, 10).get(1)));
+		byte[] payload = Arrays.copyOfRange(frame, Protocol.HEADER_SIZE, frame.length);
+		for (int cut = 0; cut < payload.length; cut++) {
+			byte[] truncated = Arrays.copyOf(payload, cut);
+			assertThrows(ProtocolException.class, () -> Protocol.decode(Protocol.BLOCK, (byte) 0, truncated), "cut at " + cut);
+		}
+		assertThrows(ProtocolException.class, () -> Protocol.decode(Protocol.GET_DATA, (byte) 0, new byte[Block.HASH_SIZE - 1]));
+		assertThrows(ProtocolException.class, () -> Protocol.decode(Protocol.GET_BLOCKS, (byte) 0, new byte[4]));
+	}
+
+	@Test
+	void extraBytesAreRejected() throws Exception {
+		byte[] frame = Protocol.encode(Message.getData(chain(2, 1).get(1).hash));
+		byte[] payload = Arrays.copyOfRange(frame, Protocol.HEADER_SIZE, frame.length + 1);
+		assertThrows(ProtocolException.class, () -> Protocol.decode(Protocol.GET_DATA, (byte) 0, payload));
+		assertThrows(ProtocolException.class, () -> Protocol.decode(Protocol.PING, (byte) 0, new byte[1]));
+	}
+
+	@Test
+	void badCountsAndLengthsAreRejected() {
+		// Counts and lengths come from the peer, so they mustn't be trusted to size anything
+		ByteBuffer blocks = ByteBuffer.allocate(8).putInt(0).putInt(Integer.MAX_VALUE);
+		assertThrows(ProtocolException.class, () -> Protocol.decode(Protocol.BLOCKS, (byte) 0, blocks.array()));
+		ByteBuffer negative = ByteBuffer.allocate(4).putInt(-1);
+		assertThrows(ProtocolException.class, () -> Protocol.decode(Protocol.CHAIN, (byte) 0, negative.array()));
+		ByteBuffer hashes = ByteBuffer.allocate(8 + Block.HASH_SIZE).putInt(0).putInt(2);
+		assertThrows(ProtocolException.class, () -> Protocol.decode(Protocol.HEADERS, (byte) 0, hashes.array()));
+		ByteBuffer entries = ByteBuffer.allocate(12).putInt(1).putInt(1000).putInt(0);
+		assertThrows(ProtocolException.class, () -> Protocol.decode(Protocol.ENTRIES, (byte) 0, entries.array()));
+
+		// A block whose data length points past the end of the payload
+		ByteBuffer block = ByteBuffer.allocate(8 + 4 + Block.HASH_SIZE * 2 + 4 + 3);
+		block.position(8 + 4 + Block.HASH_SIZE * 2);
+		block.putInt(100);
+		assertThrows(ProtocolException.class, () -> Protocol.decode(Protocol.BLOCK, (byte) 0, block.array()));
+	}
+
+	@Test
+	void decompressionBombIsRejected() {
+		// A tiny payload claiming to inflate to MAX_PAYLOAD can't be real deflate output, so it's rejected before inflating
+		byte[] bomb = compressed(new byte[1024], Protocol.MAX_PAYLOAD);
+		ProtocolException e = assertThrows(ProtocolException.class, () -> Protocol.decode(Protocol.CHAIN, Protocol.COMPRESSED, bomb));
+		assertTrue(e.getMessage().startsWith("Bad uncompressed length"), e.getMessage());
+		byte[] tooBig = compressed(new byte[16], Protocol.MAX_PAYLOAD + 1);
+		assertThrows(ProtocolException.class, () -> Protocol.decode(Protocol.CHAIN, Protocol.COMPRESSED, tooBig));
+		byte[] negative = compressed(new byte[16], -1);
+		assertThrows(ProtocolException.class, () -> Protocol.decode(Protocol.CHAIN, Protocol.COMPRESSED, negative));
+	}
+
+	@Test
+	void badCompressedPayloadsAreRejected() throws Exception {
+		byte[] payload = Arrays.copyOfRange(Protocol.encode(Message.getBlocks(1, 2)), Protocol.HEADER_SIZE, Protocol.HEADER_SIZE + 8);
+
+		// Claims more bytes than it inflates to
+		byte[] overclaimed = compressed(payload, payload.length + 10);
+		assertThrows(ProtocolException.class, () -> Protocol.decode(Protocol.GET_BLOCKS, Protocol.COMPRESSED, overclaimed));
+
+		// Not deflate data at all
+		byte[] corrupt = compressed(payload, payload.length);
+		Arrays.fill(corrupt, 4, corrupt.length, (byte) 0xff);
+		assertThrows(ProtocolException.class, () -> Protocol.decode(Protocol.GET_BLOCKS, Protocol.COMPRESSED, corrupt));
+
+		// Too short to have a length
+		assertThrows(ProtocolException.class, () -> Protocol.decode(Protocol.GET_BLOCKS, Protocol.COMPRESSED, new byte[3]));
+
+		// And the real thing still decodes
+		Message m = Protocol.decode(Protocol.GET_BLOCKS, Protocol.COMPRESSED, compressed(payload, payload.length));
+		assertEquals(1, m.height);
+		assertEquals(2, m.count);
+	}
+}
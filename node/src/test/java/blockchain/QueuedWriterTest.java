@@ -0,0 +1,96 @@
+package blockchain;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.ServerSocket;
+import java.net.Socket;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class QueuedWriterTest {
+	private static final int CAPACITY = 4;
+	private static final byte[] FRAME = new byte[1024 * 1024];  // Big enough that a peer that isn't reading stops the writer quickly
+
+	private ServerSocket server;
+	private Socket socket;    // Our end, which the writer writes to
+	private Socket stalled;   // The peer's end, which never reads
+	private QueuedWriter writer;
+
+	@BeforeEach
+	void setUp() throws Exception {
+		this.server = new ServerSocket(0);
+		this.socket = new Socket("localhost", this.server.getLocalPort());
+		this.stalled = this.server.accept();
+		this.writer = new QueuedWriter(this.socket, CAPACITY);
+	}
+
+	@AfterEach
+	void tearDown() throws Exception {
+		this.writer.close();
+		this.stalled.close();
+		this.server.close();
+	}
+
+	// Method to fill the peer's queue once its writer is stuck on the stalled socket, ending with one frame thrown away
+	// (the socket's buffers take a few frames first, so the queue has to stay full for a while before we trust it)
+	private void fillQueue() throws Exception {
+		long deadline = System.currentTimeMillis() + 10000;
+		do {
+			assertTrue(System.currentTimeMillis() < deadline, "the writer never got stuck");
+			while (this.writer.queueSize() < CAPACITY) {
+				this.writer.writeFrame(FRAME);
+			}
+			Thread.sleep(200);
+		} while (this.writer.queueSize() < CAPACITY);
+		long before = this.writer.droppedFrames();
+		this.writer.writeFrame(FRAME);
+		assertEquals(before + 1, this.writer.droppedFrames());
+	}
+
+	@Test
+	void fullQueueDropsFramesThenThePeer() throws Exception {
+		this.fillQueue();
+		long dropped = this.writer.droppedFrames();
+		for (int i = 1; i < QueuedWriter.MAX_DROPS - 1; i++) {
+			this.writer.writeFrame(FRAME);
+		}
+		assertFalse(this.socket.isClosed());
+		assertEquals(dropped + QueuedWriter.MAX_DROPS - 2, this.writer.droppedFrames());
+
+		this.writer.writeFrame(FRAME);  // The MAX_DROPSth in a row
+		assertTrue(this.socket.isClosed());
+		assertEquals(dropped + QueuedWriter.MAX_DROPS - 1, this.writer.droppedFrames());
+
+		this.writer.writeFrame(FRAME);  // Anything after that is ignored
+		assertEquals(dropped + QueuedWriter.MAX_DROPS - 1, this.writer.droppedFrames());
+	}
+
+	@Test
+	void frameThatMustNotBeLostDisconnectsAtOnce() throws Exception {
+		this.fillQueue();
+		assertFalse(this.socket.isClosed());
+		this.writer.writeFrameOrDisconnect(FRAME);
+		assertTrue(this.socket.isClosed());
+	}
+
+	@Test
+	void framesFromManyThreadsAreCountedExactly() throws Exception {
+		this.fillQueue();
+		long before = this.writer.droppedFrames();
+		Thread[] threads = new Thread[8];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				for (int i = 0; i < 5; i++) {
+					this.writer.writeFrame(FRAME);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(before + 40, this.writer.droppedFrames());  // 41 in a row is still fewer than MAX_DROPS, so the peer stays
+		assertFalse(this.socket.isClosed());
+	}
+}
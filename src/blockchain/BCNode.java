@@ -1,199 +1,907 @@
 package blockchain;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.Inet4Address;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import javax.management.JMException;
+import com.sun.net.httpserver.HttpServer;
 
 
 public class BCNode {
-	public ArrayList<Block> chain;  // The blockchain itself, an arraylist to hold all the blocks
+	public volatile ChainStore chain;  // The blockchain itself, with every known branch indexed by hash
 	public int myPort;              // The port number this node will listen on
 	public List<Integer> remotePorts;  // A list of ports that other nodes are listening on
 	public ServerSocket serversocket;  // The server socket that allows this node to accept connections
 	
 	// Lists to manage communication with other nodes
-	public List<Socket> nodeSockets = new ArrayList<>();  // Sockets for each node we're connected to
-    public List<ObjectInputStream> nodeInputStreams = new ArrayList<>();  // Input streams for each connected node
-    public List<ObjectOutputStream> nodeOutputStreams = new ArrayList<>();  // Output streams for each connected node
+	// (copy-on-write, so they can be looked at, e.g. for metrics, without waiting on the node)
+	public List<Socket> nodeSockets = new CopyOnWriteArrayList<>();  // Sockets for each node we're connected to
+    public List<MessageReader> nodeInputStreams = new CopyOnWriteArrayList<>();  // Input streams for each connected node
+    public List<MessageWriter> nodeOutputStreams = new CopyOnWriteArrayList<>();  // Output streams for each connected node
+    
+	public Miner miner;  // The pool of worker threads that mines new blocks
+	public NioNetwork nio;  // The selector event loop for peers, when running in NIO mode (null otherwise)
+	public ChainSync sync;  // The chain download, if this node joined an existing network (null otherwise)
+	public BlockLog log;    // Where the chain is saved on disk (null if it's only kept in memory)
+	public RelayMode relay = RelayMode.PUSH;     // Whether new blocks are sent to peers in full or just announced
+	public Inventory inventory = new Inventory();  // The block hashes we've recently seen or asked for, so announced blocks are only fetched once
+	public Mempool mempool = new Mempool();  // Entries waiting to be put in a block
+	private volatile boolean mempoolMining;  // Set while the background thread is mining blocks out of the mempool
+	private List<Block> heldBlocks = new ArrayList<>();  // Blocks that arrived while we were still downloading the chain
+	public Metrics metrics = new Metrics();  // Counters and timings for this node, readable over JMX or HTTP (see registerMetrics)
+	private ScheduledExecutorService health;  // Sends heartbeats to quiet peers and redials lost ones (see startHealthChecks)
+	private Map<MessageWriter, Integer> dialled = new ConcurrentHashMap<>();  // Peers we connected to, and the port to redial if we lose them
+	private Map<Integer, Long> redialDelay = new ConcurrentHashMap<>();      // The last redial delay used for each port
+	private AtomicInteger connectionCount = new AtomicInteger();  // Numbers the connections we make
+	public NetworkMode mode;    // How this node talks to its peers
+	public ThreadFactory threads;  // Makes the threads that read from and write to peers (virtual threads in VIRTUAL mode, see Threads)
+	private Set<Thread> peerThreads = ConcurrentHashMap.newKeySet();  // The peer threads still running, so shutdown can wait for them
+	private volatile boolean closed;  // Set once shutdown has started, so lost peers aren't redialled
+	// Guards the chain and the peer lists. It's a ReentrantLock rather than synchronized because a virtual thread that
+	// blocks while holding a monitor also holds on to the OS thread it's running on (Java 21-23), and there are only a few of those
+	private final ReentrantLock lock = new ReentrantLock();
+	
+	public static final int CONNECT_TIMEOUT_MS = 3000;     // How long to wait for a peer to accept our connection
+	public static final int HANDSHAKE_TIMEOUT_MS = 5000;   // How long a peer that connects to us has to send its handshake
+	public static final int HEARTBEAT_INTERVAL_MS = 5000;  // A peer we haven't heard from in this long gets a PING
+	public static final int PEER_TIMEOUT_MS = 15000;       // A peer we haven't heard from in this long (even after a PING) is dropped
+	public static final int RECONNECT_MIN_MS = 1000;       // How long to wait before redialling a lost peer the first time
+	public static final int RECONNECT_MAX_MS = 60000;      // The wait doubles after every failed redial, up to this
+	public static final int SHUTDOWN_WAIT_MS = 5000;       // How long shutdown waits for the peer threads to finish
+	
+	// How many leading zeros a block's hash needs; every node in a network has to agree on it
+	// (-Dblockchain.difficulty=... lowers it for benchmarks and local test networks)
+	public static final int DIFFICULTY = Integer.getInteger("blockchain.difficulty", 5);
+	public boolean incrementalValidation = true;  // Check only new blocks against the tip instead of re-validating the whole chain
+	public int verifiedHeight;  // Every block up to this height has been validated (the watermark)
 
+	// Constructor for creating a BCNode that mines on every available core
+	public BCNode(int myPort, List<Integer> remotePorts) throws NoSuchAlgorithmException, UnknownHostException, IOException {
+		this(myPort, remotePorts, Runtime.getRuntime().availableProcessors());
+	}
+	
+	// Constructor for creating a BCNode that uses a blocking thread per peer
+	public BCNode(int myPort, List<Integer> remotePorts, int miningThreads) throws NoSuchAlgorithmException, UnknownHostException, IOException {
+		this(myPort, remotePorts, miningThreads, NetworkMode.THREADS);
+	}
+	
 	// Constructor for creating a BCNode, which sets up networking and initializes the blockchain
-	public BCNode(int myPort, List<Integer> remotePorts) throws NoSuchAlgorithmException, UnknownHostException, IOException, ClassNotFoundException {
+	public BCNode(int myPort, List<Integer> remotePorts, int miningThreads, NetworkMode mode) throws NoSuchAlgorithmException, UnknownHostException, IOException {
+		this(myPort, remotePorts, miningThreads, mode, null);
+	}
+	
+	// Constructor for creating a BCNode that keeps its chain on disk in dataDir (or only in memory if dataDir is null)
+	public BCNode(int myPort, List<Integer> remotePorts, int miningThreads, NetworkMode mode, Path dataDir) throws NoSuchAlgorithmException, UnknownHostException, IOException {
 		this.myPort = myPort;  // Assign the port number for this node
 		this.remotePorts = remotePorts;  // Assign the ports of other nodes
 		this.chain = null;  // Initialize the blockchain as null for now
-		int numberOfConnections = 0;  // We'll use this to keep track of the number of other nodes we've connected to
+		this.mode = mode;
+		this.threads = Threads.factory("peer", mode == NetworkMode.VIRTUAL);
+		if (mode == NetworkMode.VIRTUAL && !Threads.virtualAvailable()) {
+			System.out.println("Virtual threads need Java 21 or later, using platform threads instead");
+		}
+		this.miner = new Miner(miningThreads);  // Split mining across this many worker threads
+		this.registerMetrics();
+		this.startHealthChecks();
+		if (dataDir != null) {
+			this.log = new BlockLog(dataDir);  // Open the chain we saved last time (if there is one)
+		}
+		
+		if (mode == NetworkMode.NIO) {
+			this.startNio(myPort, remotePorts);
+			return;
+		}
 		
 		// If there are no remote ports (this node is the first), create a new blockchain with the genesis block
 		if (remotePorts.size() == 0) {
-			this.chain = new ArrayList<Block>();  // Create a new blockchain (an empty arraylist of blocks)
-			this.chain.add(new Block());  // Add the first block (genesis block)
+			this.startChain();  // Create a new blockchain starting with the first block (genesis block), or load the saved one
 		} else {
-			// If there are remote ports, we need to connect to those nodes
-			for (int port : remotePorts) {
-				System.out.println("Port being added is " + port);  // Just print the port we're connecting to for debugging
-				Socket socket = new Socket("localhost", port);  // Create a socket to connect to the node at the specified port
-				ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());  // Set up an output stream to send data
-				ObjectInputStream in = new ObjectInputStream(socket.getInputStream());  // Set up an input stream to receive data
-				
-				// Add the socket, input stream, and output stream to our lists
-				this.nodeSockets.add(socket);
-				this.nodeInputStreams.add(in);
-				this.nodeOutputStreams.add(out);
-
-				// If we don't have a blockchain yet, request it from the first node we connect to
-				if (this.chain == null) {
-					out.writeObject("Chain Requested");  // Ask the remote node for its blockchain
-					out.reset();  // Reset the stream to ensure the message is sent
-					this.chain = (ArrayList<Block>) in.readObject();  // Read the blockchain from the remote node
-				} else {
-					out.writeObject("No Chain Request");  // If we already have a blockchain, no need to request it
-					out.reset();
-				}
-
-				// Start a new thread to handle incoming messages from this connection
-				ReadHandler ch = new ReadHandler(this, in, out, socket, numberOfConnections);
-				Thread t = new Thread(ch);
-				t.start();  // Start the thread
-				numberOfConnections++;  // Keep track of how many nodes we're connected to
-            }			
+			// If there are remote ports, we need to connect to those nodes and download the chain from them
+			this.joinNetwork(remotePorts);
 		}
 		
 		// Start a server socket to accept incoming connections from other nodes
 		try {
 			ServerSocket ss = new ServerSocket(myPort);  // Create a server socket that listens on our port
-			// Start a new thread to handle incoming connections
-			Thread th = new Thread(new ConnectionHandler(this, ss, this.nodeSockets, this.nodeInputStreams, this.nodeOutputStreams, numberOfConnections));
+			this.serversocket = ss;
+			// Start a new thread to handle incoming connections (a platform thread in every mode, since there's only one
+			// and it keeps the JVM running; each peer it accepts gets its own thread from this.threads)
+			Thread th = new Thread(new ConnectionHandler(this, ss, this.nodeSockets, this.nodeInputStreams, this.nodeOutputStreams, this.connectionCount.get()), "peer-acceptor");
 			th.start();
 		} catch (IOException e) {
 			e.printStackTrace();  // If something goes wrong with the server socket, print an error
 		}
 	}
 	
+	// Method to set up the node in NIO mode: the same startup as the blocking version, but every peer lives on one selector thread
+	private void startNio(int myPort, List<Integer> remotePorts) throws NoSuchAlgorithmException, UnsupportedEncodingException, IOException {
+		this.nio = new NioNetwork(this);
+		Thread io = new Thread(this.nio, "nio-io");
+		io.start();
+		
+		if (remotePorts.size() == 0) {
+			this.startChain();  // We're the first node, so start with the genesis block (or the saved chain)
+		} else {
+			this.joinNetwork(remotePorts);  // Connect to the peers and download the chain from them
+		}
+		this.nio.listen(myPort);  // Only accept peers once we have a chain to give them
+	}
+	
+	// Method to join an existing network: dial every peer at once, then download the chain from the ones that answered
+	// Peers that can't be reached don't hold up startup; they're redialled in the background. If none of them can be reached,
+	// a node with a saved chain starts from that (and catches up once they're back), and a node without one gives up
+	private void joinNetwork(List<Integer> remotePorts) throws NoSuchAlgorithmException, IOException {
+		List<MessageWriter> peers = this.dialPeers(remotePorts);
+		if (!peers.isEmpty()) {
+			this.syncChain(peers);  // Download the chain from all of them at once
+		} else if (this.log != null && this.log.size() > 0) {
+			System.out.println("Couldn't reach any peers, starting from the saved chain");
+			this.startChain();
+		} else {
+			throw new IOException("Couldn't reach any of the peers " + remotePorts);
+		}
+	}
+	
+	// Method to dial every peer in parallel, returning the ones that answered
+	private List<MessageWriter> dialPeers(List<Integer> ports) {
+		ExecutorService dialers = Executors.newCachedThreadPool(Threads.factory("peer-dialer", this.mode == NetworkMode.VIRTUAL));
+		List<CompletableFuture<MessageWriter>> dials = new ArrayList<>();
+		for (int port : ports) {
+			System.out.println("Port being added is " + port);  // Just print the port we're connecting to for debugging
+			dials.add(CompletableFuture.supplyAsync(() -> {
+				try {
+					return this.connectTo(port);
+				} catch (IOException e) {
+					System.out.println("Couldn't reach peer on port " + port + " (" + e.getMessage() + "), will keep trying");
+					this.reconnectLater(port, RECONNECT_MIN_MS);
+					return null;
+				}
+			}, dialers));
+		}
+		List<MessageWriter> peers = new ArrayList<>();
+		for (CompletableFuture<MessageWriter> dial : dials) {
+			MessageWriter out = dial.join();  // Every dial gives up after CONNECT_TIMEOUT_MS, so this doesn't wait long
+			if (out != null) {
+				peers.add(out);
+			}
+		}
+		dialers.shutdown();
+		return peers;
+	}
+	
+	// Method to connect to a peer (giving up after CONNECT_TIMEOUT_MS), send the handshake and start listening to it
+	private MessageWriter connectTo(int port) throws IOException {
+		MessageWriter out;
+		if (this.nio != null) {
+			out = this.nio.connect(port, conn -> this.dialled.put(conn, port));
+		} else {
+			Socket socket = new Socket();  // Create a socket to connect to the node at the specified port
+			try {
+				socket.connect(new InetSocketAddress("localhost", port), CONNECT_TIMEOUT_MS);
+			} catch (IOException e) {
+				socket.close();
+				throw e;
+			}
+			out = new QueuedWriter(socket, QueuedWriter.DEFAULT_CAPACITY, this.threads);  // Set up an output queue to send data
+			MessageReader in = new MessageReader(socket.getInputStream());  // Set up an input stream to receive data
+			
+			// Add the socket, input stream, and output stream to our lists
+			this.addNode(socket, in, out);
+			
+			// Don't ask for the whole chain in the handshake; it's downloaded in pieces from every peer (see ChainSync)
+			out.write(Message.noChainRequest());
+			
+			// Start a new thread to handle incoming messages from this connection
+			this.dialled.put(out, port);  // Before the reader starts, so a connection that drops straight away still gets redialled
+			this.startPeerThread("peer-" + port, new ReadHandler(this, in, out, socket, this.connectionCount.getAndIncrement()));
+		}
+		return out;
+	}
+	
+	// Method to redial a lost peer after a delay, doubling the delay (up to RECONNECT_MAX_MS) every time it fails
+	// A little randomness is added to the delay, so nodes that lost the same peer don't all redial it at the same moment
+	private void reconnectLater(int port, long delay) {
+		if (this.closed) {
+			return;
+		}
+		this.redialDelay.put(port, delay);
+		long wait = delay + ThreadLocalRandom.current().nextLong(delay / 4 + 1);
+		try {
+			this.health.schedule(() -> this.reconnect(port, delay), wait, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			// The node shut down in the meantime
+		}
+	}
+	
+	// Method to redial a lost peer now, trying again later if it still can't be reached
+	private void reconnect(int port, long delay) {
+		if (this.closed) {
+			return;
+		}
+		try {
+			this.connectTo(port);
+			this.metrics.counter("peers_reconnected").increment();
+			System.out.println("Reconnected to peer on port " + port);
+		} catch (IOException e) {
+			this.reconnectLater(port, Math.min(delay * 2, RECONNECT_MAX_MS));
+		}
+	}
+	
+	// Method to run one peer's blocking work (its handshake and read loop) on a thread of its own from this.threads.
+	// The node keeps track of the thread until it finishes, so shutdown can wait for every peer to be let go
+	public Thread startPeerThread(String name, Runnable task) {
+		Thread t = this.threads.newThread(() -> {
+			try {
+				task.run();
+			} finally {
+				this.peerThreads.remove(Thread.currentThread());
+			}
+		});
+		t.setName(name);
+		this.peerThreads.add(t);
+		t.start();
+		return t;
+	}
+	
+	// Method to start the background threads that keep an eye on our peers (see checkPeers) and on the blocks we've
+	// asked them for (see retryRequests)
+	private void startHealthChecks() {
+		this.health = Executors.newScheduledThreadPool(2, r -> {
+			Thread t = new Thread(r, "peer-health");
+			t.setDaemon(true);
+			return t;
+		});
+		this.health.scheduleWithFixedDelay(this::checkPeers, HEARTBEAT_INTERVAL_MS, HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		long sweep = Inventory.REQUEST_TIMEOUT_MS / 2;
+		this.health.scheduleWithFixedDelay(this::retryRequests, sweep, sweep, TimeUnit.MILLISECONDS);
+	}
+	
+	// Method to ask again for announced blocks whose request went unanswered (see Inventory.retries), so a lost GET_DATA
+	// or reply doesn't mean the block is never fetched
+	private void retryRequests() {
+		for (Inventory.Retry retry : this.inventory.retries()) {
+			try {
+				this.metrics.counter("blocks_rerequested").increment();
+				retry.peer.write(Message.getData(retry.hash));
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	// Method to check every peer is still alive: a peer that's been quiet for HEARTBEAT_INTERVAL_MS gets a PING
+	// (which it answers with a PONG), and one that's been quiet for PEER_TIMEOUT_MS is dropped.
+	// This catches peers that have hung or whose connection died without closing, which a blocked read would wait on forever.
+	// A dropped peer that we dialled gets redialled (see removeNode)
+	private void checkPeers() {
+		long now = System.currentTimeMillis();
+		for (MessageWriter out : this.nodeOutputStreams) {
+			long quiet = now - out.lastHeard();
+			try {
+				if (quiet >= PEER_TIMEOUT_MS) {
+					System.out.println("Nothing from peer " + out.peerName() + " in " + quiet + " ms, dropping it");
+					this.metrics.counter("peers_timed_out").increment();
+					out.close();  // The peer's reader fails, which removes the node
+				} else if (quiet >= HEARTBEAT_INTERVAL_MS) {
+					out.write(Message.ping());
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	// Method to set up the chain for the first node in a network: the saved chain if there is one, otherwise a new genesis block
+	private void startChain() throws NoSuchAlgorithmException, IOException {
+		ChainStore local = this.loadLocalChain();
+		if (local != null) {
+			this.chain = local;
+			System.out.println("Loaded " + this.chain.size() + " blocks from disk");
+		} else {
+			this.chain = new ChainStore(new Block(), DIFFICULTY);
+		}
+		this.verifiedHeight = this.chain.size() - 1;  // The genesis block is trusted, and so are the saved blocks (see loadLocalChain)
+		this.persist();
+	}
+	
+	// Method to rebuild the saved chain from the block log's index: only the headers are loaded, and bodies are read back
+	// from the log when they're needed, so this takes time proportional to the index rather than the whole chain
+	// The saved blocks aren't hashed again (they were checked before they were written); the audit option re-checks everything
+	private ChainStore loadLocalChain() throws IOException {
+		if (this.log == null || this.log.size() == 0) {
+			return null;
+		}
+		return ChainStore.fromLog(this.log, DIFFICULTY);
+	}
+	
+	// Method to download the chain from the given peers (see ChainSync), then catch up on blocks that arrived meanwhile
+	// If we have a saved chain, only the blocks after it are downloaded
+	private void syncChain(List<MessageWriter> peers) throws NoSuchAlgorithmException, IOException {
+		ChainStore local = this.loadLocalChain();
+		this.sync = new ChainSync(this, peers, local);
+		ChainStore synced = this.sync.run();
+		List<Block> held;
+		long heldSince = this.lockNode();
+		try {
+			this.chain = synced;
+			this.verifiedHeight = this.chain.size() - 1;  // Every block was checked as it came in
+			this.persist();
+			held = this.heldBlocks;
+			this.heldBlocks = new ArrayList<>();
+		} finally {
+			this.unlockNode(heldSince);
+		}
+		System.out.println("Synced " + this.chain.size() + " blocks");
+		for (Block b : held) {
+			if (this.addExistingBlock(b)) {
+				this.sendBlock(b);
+			}
+		}
+	}
+	
+	// Method to handle the messages that aren't blocks: serve requests for headers and blocks, pass chain sync replies on
+	// to our own sync, and fetch announced blocks we don't have yet.
+	// Requests are served from a snapshot of the chain, so serving a peer never waits on mining or validation
+	public void onPeerMessage(Message m, MessageWriter from) throws IOException {
+		ChainStore store = this.chain;
+		ChainSnapshot snapshot = store == null ? null : store.snapshot();
+		switch (m.type) {
+		case Protocol.GET_HEADERS:
+			int headerCount = Math.min(m.count, ChainSync.HEADER_BATCH);
+			from.write(Message.headers(m.height, snapshot == null ? new ArrayList<>() : snapshot.hashes(m.height, headerCount)));
+			break;
+		case Protocol.GET_BLOCKS:
+			int blockCount = Math.min(m.count, ChainSync.BLOCK_BATCH);
+			from.write(Message.blocks(m.height, snapshot == null ? new ArrayList<>() : snapshot.range(m.height, blockCount)));
+			break;
+		case Protocol.HEADERS:
+			if (this.sync != null) {
+				this.sync.onHeaders(from, m);
+			}
+			break;
+		case Protocol.BLOCKS:
+			if (this.sync != null) {
+				this.sync.onBlocks(from, m);
+			}
+			break;
+		case Protocol.INV:
+			// Only ask for an announced block if we don't have it and haven't already asked another peer for it
+			if (store == null) {
+				break;  // Still syncing; the block will come with the rest of the chain
+			}
+			if (store.has(m.hash)) {
+				this.inventory.markSeen(m.hash);
+			}
+			if (this.inventory.shouldRequest(m.hash, from)) {
+				from.write(Message.getData(m.hash));
+			}
+			break;
+		case Protocol.GET_DATA:
+			Block requested = store == null ? null : store.getBlock(m.hash);
+			if (requested != null) {
+				from.write(Message.block(requested));
+			}
+			break;
+		case Protocol.ENTRIES:
+			this.submit(m.entries, from);  // Anything new gets passed on to our other peers
+			break;
+		case Protocol.PING:
+			from.write(Message.pong());
+			break;
+		default:
+			break;
+		}
+	}
+	
+	// Method to bring the on-disk log up to date with the main chain (if this node has one)
+	private void persist() {
+		long heldSince = this.lockNode();
+		try {
+			if (this.log == null) {
+				return;
+			}
+			try {
+				this.log.syncWith(this.chain);
+			} catch (IOException e) {
+				e.printStackTrace();  // Keep running on the in-memory chain; the log catches up on the next block
+			}
+		} finally {
+			this.unlockNode(heldSince);
+		}
+	}
+	
+	// Method to add a connected node to the lists we send blocks to
+	public void addNode(Socket s, MessageReader in, MessageWriter out) {
+		long heldSince = this.lockNode();
+		try {
+			this.nodeSockets.add(s);
+			if (in != null) {
+				this.nodeInputStreams.add(in);
+				in.countBytes(this.metrics.counter("bytes_in"));
+			}
+			this.nodeOutputStreams.add(out);
+			out.countBytes(this.metrics.counter("bytes_in"), this.metrics.counter("bytes_out"));
+		} finally {
+			this.unlockNode(heldSince);
+		}
+	}
+	
+	// Method to set up the node's metrics and make them visible over JMX as blockchain:type=BCNode,port=<myPort>
+	// Times are in microseconds (_us) or milliseconds (_ms). Gauges are read straight from the node's state when they're
+	// looked at, without taking the node's lock, so looking at them never holds up mining or validation
+	private void registerMetrics() {
+		this.metrics.gauge("chain_height", () -> this.chain == null ? -1 : this.chain.snapshot().size() - 1);
+		this.metrics.gauge("chain_version", () -> this.chain == null ? -1 : this.chain.snapshot().version());
+		this.metrics.gauge("orphans", () -> this.chain == null ? 0 : this.chain.orphanCount());
+		this.metrics.gauge("cached_bodies", () -> this.chain == null ? 0 : this.chain.cachedBodies());
+		this.metrics.gauge("hash_rate", () -> this.miner.getTotalHashRate());
+		this.metrics.gauge("peers", () -> this.nodeOutputStreams.size());
+		this.metrics.gauge("mempool_entries", () -> this.mempool.size());
+		this.metrics.gauge("relay_ignored", () -> this.inventory.ignored());
+		this.metrics.perPeerGauge("queue_size", () -> this.perPeer(out -> out.queueSize()));
+		this.metrics.perPeerGauge("dropped_frames", () -> this.perPeer(out -> out.droppedFrames()));
+		try {
+			this.metrics.register(this.metricsName());
+		} catch (JMException e) {
+			e.printStackTrace();  // The metrics still work over HTTP, just not in jconsole
+		}
+	}
+	
+	// Method to get the name the node's metrics have in JMX
+	private String metricsName() {
+		return "blockchain:type=BCNode,port=" + this.myPort;
+	}
+	
+	// Method to read one number from every connected peer, by peer name
+	private Map<String, Number> perPeer(Function<MessageWriter, Number> value) {
+		Map<String, Number> values = new TreeMap<>();
+		for (MessageWriter out : this.nodeOutputStreams) {
+			values.put(out.peerName(), value.apply(out));
+		}
+		return values;
+	}
+	
+	// Method to take the node's lock, recording how long we waited for it (lock_wait_us)
+	// Every place that takes the lock goes through here, so the histograms show all the contention on it
+	// Returns when the lock was taken, to hand to unlockNode (or -1 if this thread already held it, so nothing is counted twice)
+	private long lockNode() {
+		if (this.lock.isHeldByCurrentThread()) {
+			this.lock.lock();
+			return -1;
+		}
+		long waitStart = System.nanoTime();
+		this.lock.lock();
+		long now = System.nanoTime();
+		this.metrics.histogram("lock_wait_us").record((now - waitStart) / 1000);
+		return now;
+	}
+	
+	// Method to let go of the node's lock, recording how long it was held (lock_hold_us) since heldSince (from lockNode)
+	private void unlockNode(long heldSince) {
+		if (heldSince >= 0) {
+			this.metrics.histogram("lock_hold_us").record((System.nanoTime() - heldSince) / 1000);
+		}
+		this.lock.unlock();
+	}
+	
 	// Method to send a block to all connected nodes
-	public synchronized void sendBlock(Block b) {
-		for (ObjectOutputStream out : this.nodeOutputStreams) {  // For each node we're connected to...
+	public void sendBlock(Block b) {
+		this.sendBlock(b, null);
+	}
+	
+	// Method to send a block to all connected nodes except the one it came from (from can be null)
+	// Peers have their own send queues, so this only queues the block and never waits on a slow peer. Nothing would send
+	// the block (or its announcement) again, so a peer whose queue is too full to take it is disconnected rather than
+	// left without it (see QueuedWriter). In INVENTORY relay mode only the block's hash and height go out, and peers
+	// that need the block ask for it
+	// The node's lock isn't needed: the message is encoded once up front, and the peer list is copy-on-write, so going
+	// over it sends to the peers as they were when we started without holding anyone else up
+	public void sendBlock(Block b, MessageWriter from) {
+		Message m = this.relay == RelayMode.INVENTORY ? Message.inv(this.chain.getHeight(b.hash), b.hash) : Message.block(b);
+		byte[] frame = Protocol.encode(m);  // Encode the message once and send the same bytes to everyone
+		for (MessageWriter out : this.nodeOutputStreams) {  // For each node we're connected to...
+			if (out == from) {
+				continue;  // Don't echo the block back to the node that sent it to us
+			}
 			try {
-				out.writeObject(b);  // Send the block
-				out.reset();  // Reset the stream so the block gets sent properly
+				out.writeFrameOrDisconnect(frame);  // Queue the block for sending
 			} catch (IOException e) {
 				e.printStackTrace();  // If something goes wrong with sending the block, print an error
 			}
 		}
-		System.out.println("Block sent to all nodes");  // Print a message saying the block was sent
+		this.metrics.counter("blocks_relayed").increment();
+	}
+	
+	// Method to add entries to the mempool (from the submission API, or gossiped by a peer) and pass the new ones on
+	// to every other peer; from is the peer they came from, or null. Returns what happened to each entry
+	public List<Mempool.Result> submit(List<String> entries, MessageWriter from) {
+		List<Mempool.Result> results = new ArrayList<>(entries.size());
+		List<String> added = new ArrayList<>();
+		for (String entry : entries) {
+			Mempool.Result result = this.mempool.add(entry);
+			results.add(result);
+			if (result == Mempool.Result.ADDED) {
+				added.add(entry);
+			}
+		}
+		if (added.isEmpty()) {
+			return results;  // Nothing new, so nothing to gossip (this is also what stops entries going round in circles)
+		}
+		byte[] frame = Protocol.encode(Message.entries(added));
+		for (MessageWriter out : this.nodeOutputStreams) {  // Copy-on-write, so this goes over the peers as they are now
+			if (out == from) {
+				continue;
+			}
+			try {
+				out.writeFrame(frame);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return results;
+	}
+	
+	// Method to mine one block holding as many mempool entries as fit, returning false if the mempool was empty
+	public boolean mineFromMempool() throws NoSuchAlgorithmException, IOException {
+		List<String> entries = this.mempool.select(Mempool.MAX_BLOCK_BYTES);
+		if (entries.isEmpty()) {
+			return false;
+		}
+		this.addBlock(new Block(Block.joinEntries(entries)));
+		return true;
+	}
+	
+	// Method to start or stop a background thread that keeps mining blocks out of the mempool
+	public void setMempoolMining(boolean on) {
+		long heldSince = this.lockNode();
+		try {
+			if (on == this.mempoolMining) {
+				return;
+			}
+			this.mempoolMining = on;
+			if (!on) {
+				return;  // The thread notices and stops after its current block
+			}
+			Thread t = new Thread(() -> {
+				try {
+					while (this.mempoolMining) {
+						if (!this.mineFromMempool()) {
+							Thread.sleep(100);  // Nothing to mine, so wait for more entries
+						}
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (NoSuchAlgorithmException | IOException e) {
+					e.printStackTrace();
+				}
+			}, "mempool-miner");
+			t.setDaemon(true);
+			t.start();
+		} finally {
+			this.unlockNode(heldSince);
+		}
 	}
 	
 	// Method to add a block that already exists in the chain (maybe received from another node)
-	public synchronized boolean addExistingBlock(Block b) throws NoSuchAlgorithmException, UnsupportedEncodingException {
-        String prevhash = this.chain.get(this.chain.size()-1).hash;  // Get the hash of the last block in the chain
-		this.chain.add(b);  // Add the new block to the chain
-        boolean valid = true;        
-        valid = valid && this.isValid(5);  // Check if the chain is still valid with this new block (5 is the difficulty level)
-		
-		// If the chain becomes invalid after adding this block, remove it
-		if (!valid) {
-			this.chain.remove(b);
+	// The block can go on the tip, on a competing branch, or into the orphan pool if we don't have its parent yet.
+	// Returns true if the block was connected to the chain (so it should be passed on to other nodes)
+	public boolean addExistingBlock(Block b) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+		long heldSince = this.lockNode();
+		try {
+			return this.addExistingBlockLocked(b);
+		} finally {
+			this.unlockNode(heldSince);
 		}
-		// If the hash of the previous block matches the last block in the chain, remove the block (duplicate?)
-		if (prevhash.equals(this.chain.get(this.chain.size()-1).hash)) {
-			this.chain.remove(b);
-			valid = false;
+	}
+	
+	// Method to add a block received from a peer, asking that peer for the block's parent if it went into the orphan pool
+	// (otherwise nothing would ever fetch the parent, and the orphan would just wait until it's evicted). If the parent
+	// turns out to be an orphan too, its parent is asked for next, so a short gap is filled in one block at a time
+	public boolean addExistingBlock(Block b, MessageWriter from) throws NoSuchAlgorithmException, IOException {
+		boolean added = this.addExistingBlock(b);
+		ChainStore store = this.chain;
+		if (!added && from != null && store != null && store.isOrphan(b.hash) && !store.has(b.previousHash)
+				&& this.inventory.shouldRequest(b.previousHash, from)) {
+			this.metrics.counter("orphan_parents_requested").increment();
+			from.write(Message.getData(b.previousHash));
 		}
-		return valid;  // Return whether the block was successfully added
+		return added;
+	}
+	
+	// Method that does the work of addExistingBlock, with the node's lock held
+	private boolean addExistingBlockLocked(Block b) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+		this.metrics.counter("blocks_received").increment();
+		if (this.chain == null) {
+			// We're still downloading the chain, so hang on to the block until we can check it
+			if (this.heldBlocks.size() < ChainStore.DEFAULT_MAX_ORPHANS) {
+				this.heldBlocks.add(b);
+			}
+			return false;
+		}
+		if (b.hash == null || this.chain.has(b.hash)) {
+			return false;  // We already have this block
+		}
+		long announced = this.inventory.markSeen(b.hash);  // Don't fetch it again if other peers announce it, even if it turns out to be invalid
+		// Anything above the watermark (like a chain we were sent on startup) has to be audited once before we build on it
+		if (this.verifiedHeight < this.chain.size() - 1 && !this.audit(DIFFICULTY)) {
+			return false;
+		}
+		// The block's own hash and difficulty can be checked without knowing where it goes;
+		// the link to its parent is checked by the chain store looking the parent up by hash
+		// Rejected blocks are timed too (in the finally), since checking a bad block costs as much as checking a good one
+		List<Block> connected = new ArrayList<>();
+		List<Block> disconnected = new ArrayList<>();
+		int oldSize = this.chain.size();
+		ChainStore.Result result;
+		long validateStart = System.nanoTime();
+		try {
+			if (!b.hasValidHash(DIFFICULTY)) {
+				return false;
+			}
+			if (!this.incrementalValidation && !this.isValid(DIFFICULTY)) {
+				return false;  // In full validation mode, re-check the whole chain every time
+			}
+			result = this.chain.add(b, connected, disconnected);
+		} finally {
+			this.metrics.histogram("validate_us").record((System.nanoTime() - validateStart) / 1000);
+		}
+		if (connected.contains(b)) {
+			this.metrics.counter("blocks_accepted").increment();
+			// The hop from the block's first announcement reaching us to accepting it: asking for it, the transfer and
+			// checking it, all on this node's clock. The block's timestamp is no good as the start, since it's set before
+			// mining starts. Pushed blocks (RelayMode.PUSH) aren't announced first, so they aren't counted
+			if (announced > 0) {
+				this.metrics.histogram("propagation_ms").record(System.currentTimeMillis() - announced);
+			}
+		}
+		this.afterAdd(b, result, connected, disconnected, oldSize);
+		return !connected.isEmpty();  // Return whether the block was successfully added
     }
 	
-	// Method to mine and add a new block to the chain
-	public void addBlock(Block b) throws NoSuchAlgorithmException, IOException {
-		// Set the previous hash of this block to the hash of the last block in the chain
-		b.previousHash = chain.get(chain.size() - 1).hash;
-		// Calculate the hash of this block
-		b.hash = b.calculateHash();
-		int N = 5;  // Set the difficulty level (how many leading zeros the hash should have)
-		String prefixZeros = new String(new char[N]).replace('\0', '0');  // Create a string of N zeros
-		
-		// Keep changing the nonce and recalculating the hash until it has N leading zeros
-		while (!b.hash.substring(0, N).equals(prefixZeros)) {
-			b.nonce++;  // Increment the nonce
-			b.hash = b.calculateHash();  // Recalculate the hash with the new nonce
+	// Method to catch everything else up after a block was added to the chain (with the node's lock held): the
+	// watermark, the log, the miner and the mempool if the main chain moved, and relaying any orphans it connected
+	// oldSize is the chain's size before the block was added
+	private void afterAdd(Block b, ChainStore.Result result, List<Block> connected, List<Block> disconnected, int oldSize) {
+		if (result == ChainStore.Result.EXTENDED || result == ChainStore.Result.REORGANIZED) {
+			// Every block on the new main chain was checked on the way in, so the watermark moves to the new tip
+			this.verifiedHeight = this.chain.size() - 1;
+			this.persist();
+			// The tip moved, so whatever we're mining is now stale
+			this.miner.cancel();
+			// The new blocks' entries are on the chain now, so they don't need mining again
+			for (Block c : connected) {
+				this.mempool.commit(c);
+			}
+			if (!disconnected.isEmpty()) {
+				// A reorg took blocks off the chain, so their entries go back in the mempool, and then everything on the
+				// new branch (which may have been side blocks until now) is committed. The new branch starts at or above
+				// oldSize - disconnected.size(), so committing from there covers all of it
+				for (Block stale : disconnected) {
+					this.mempool.restore(stale);
+				}
+				for (int h = Math.max(1, oldSize - disconnected.size()); h < this.chain.size(); h++) {
+					this.mempool.commit(this.chain.get(h));
+				}
+			}
 		}
-		
-		// Add the block to the chain
-		chain.add(b);
-		
-		// Check if the chain is still valid after adding this block
-		if (this.isValid(N)) {
-			this.sendBlock(b);  // If valid, send the block to all other nodes
-		} else {
-			chain.remove(b);  // If not valid, remove the block from the chain
+		// Orphans that were waiting on this block got connected too, so pass those along as well
+		for (Block c : connected) {
+			if (c != b) {
+				this.sendBlock(c);
+			}
 		}
 	}
 	
-	// Method to check if the blockchain is valid (i.e., all hashes are correct and the chain is linked properly)
-	public boolean isValid(int N) throws NoSuchAlgorithmException, UnsupportedEncodingException {
-		for (int i = 1; i < chain.size(); i++) {
-			
-			Block currentBlock = chain.get(i);  // Get the current block
-			Block previousBlock = chain.get(i - 1);  // Get the previous block
-			
-			String prefixZeros = new String(new char[N]).replace('\0', '0');  // Create a string of N zeros
+	// Method to mine and add a new block to the chain
+	public void addBlock(Block b) throws NoSuchAlgorithmException, IOException {
+		int N = DIFFICULTY;  // The difficulty level (how many leading zeros the hash should have)
+		while (true) {
+			// Set the previous hash of this block to the hash of the last block in the chain
+			// The round is read first, so a block accepted after this point cancels the search even if it came in before
+			// the workers started
+			int round = this.miner.round();
+			String tipHash = chain.snapshot().tipHash();
+			b.previousHash = tipHash;
 			
-			// Check if the current block's hash has the correct number of leading zeros
-			if (!currentBlock.hash.substring(0, N).equals(prefixZeros)) {
-				return false;  // If not, the chain is invalid
+			// Let the miner's workers search for a nonce that gives the hash N leading zeros
+			boolean solved;
+			try {
+				solved = this.miner.mine(b, N, round);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();  // Someone wants this thread to stop, so give up on the block
+				return;
 			}
-			
-			// Check if the current block's hash matches its calculated hash
-			if (!currentBlock.hash.equals(currentBlock.calculateHash())) {
-				return false;  // If not, the chain is invalid
+			if (!solved) {
+				// Another node's block was accepted while we were mining, so start over on top of it
+				System.out.println("Tip changed while mining, restarting on the new tip");
+				continue;
 			}
 			
-			// Check if the current block's previous hash matches the hash of the previous block
-			if (!currentBlock.previousHash.equals(previousBlock.hash)) {
-				return false;  // If not, the chain is invalid
+			long heldSince = this.lockNode();
+			try {
+				// The tip may have moved between finding the hash and getting the lock
+				if (!tipHash.equals(chain.tip().hash)) {
+					continue;
+				}
+				
+				// Make sure the chain under the block has been verified, and that the block still fits on the tip
+				if (this.verifiedHeight < chain.size() - 1 && !this.audit(N)) {
+					System.out.println("Chain failed its audit, so the block just mined was thrown away");
+					this.metrics.counter("mined_blocks_rejected").increment();
+					return;
+				}
+				if (!this.isValidNext(chain.tip(), b, N)) {
+					System.out.println("Mined block " + b.hash + " doesn't fit on the tip, so it was thrown away");
+					this.metrics.counter("mined_blocks_rejected").increment();
+					return;
+				}
+				// Add the block to the chain, and catch up the same way as for a block from a peer
+				List<Block> connected = new ArrayList<>();
+				List<Block> disconnected = new ArrayList<>();
+				int oldSize = chain.size();
+				this.afterAdd(b, chain.add(b, connected, disconnected), connected, disconnected, oldSize);
+			} finally {
+				this.unlockNode(heldSince);
 			}
+			this.metrics.counter("blocks_mined").increment();
+			System.out.printf("Block mined at %.0f hashes/sec across %d workers%n", this.miner.getTotalHashRate(), this.miner.getWorkerCount());
+			this.sendBlock(b);  // If valid, send the block to all other nodes
+			return;
+		}
+	}
+	
+	// Method to check if a block can go on top of the given tip: it has to link to the tip, and its hash has to be
+	// correct and have N leading zeros. This is all that's needed for a new block when the rest of the chain is already verified
+	public boolean isValidNext(Block tip, Block b, int N) {
+		return ChainValidator.isValid(tip, b, N);
+	}
+	
+	// Method to re-check the whole chain from genesis (an explicit audit, instead of trusting the watermark)
+	// If the chain checks out, every block in it counts as verified
+	public boolean audit(int N) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+		long heldSince = this.lockNode();
+		try {
+			boolean valid = this.isValid(N);
+			if (valid) {
+				this.verifiedHeight = this.chain.size() - 1;
+			}
+			return valid;
+		} finally {
+			this.unlockNode(heldSince);
 		}
-		return true;  // If everything checks out, the chain is valid
+	}
+	
+	// Method to check if the blockchain is valid (i.e., all hashes are correct and the chain is linked properly)
+	// The blocks are checked in parallel on every core, a batch at a time (see ChainValidator)
+	public boolean isValid(int N) throws NoSuchAlgorithmException, UnsupportedEncodingException {
+		return ChainValidator.firstInvalid(this.chain, N) == -1;
 	}
 	
 	// Method to display the entire blockchain as a string
+	// It reads a snapshot, so the chain can keep growing while it's printed
 	public String toString() {
-		String result = "";
-		for (int i = 0; i < chain.size(); i++) {
-			result += "Block " + i + ":  " + chain.get(i).toString() + "\n";  // Print each block
+		ChainSnapshot snapshot = chain.snapshot();
+		StringBuilder result = new StringBuilder();
+		for (int i = 0; i < snapshot.size(); i++) {
+			result.append("Block ").append(i).append(":  ").append(snapshot.get(i).toString()).append("\n");  // Print each block
 		}
-		return result;
+		return result.toString();
 	}
 	
 	// Method to remove a node from the network (disconnect and close all streams)
-	public synchronized void removeNode(Socket s, ObjectInputStream in, ObjectOutputStream out, int connectionNum) {
-		if (this.nodeInputStreams.contains(in)) {
-			this.nodeInputStreams.remove(in);  // Remove the input stream if it exists
-		} else {
-			System.out.println("Input not found");  // If not found, print an error
+	public void removeNode(Socket s, MessageReader in, MessageWriter out, int connectionNum) {
+		long heldSince = this.lockNode();
+		try {
+			if (in == null) {
+				// NIO connections don't have their own input stream
+			} else if (this.nodeInputStreams.contains(in)) {
+				this.nodeInputStreams.remove(in);  // Remove the input stream if it exists
+			} else {
+				System.out.println("Input not found");  // If not found, print an error
+			}
+			if (this.nodeOutputStreams.contains(out)) {
+				this.nodeOutputStreams.remove(out);  // Remove the output stream if it exists
+			} else {
+				System.out.println("Output not found");  // If not found, print an error
+			}
+			if (this.nodeSockets.contains(s)) {
+				this.nodeSockets.remove(s);  // Remove the socket if it exists
+			} else {
+				System.out.println("Socket not found");  // If not found, print an error
+			}
+			if (this.sync != null) {
+				this.sync.onPeerLost(out);  // If the node was sending us part of the chain, someone else needs to take over
+			}
+			this.metrics.counter("peers_removed").increment();
+			this.inventory.forget(out);  // Blocks it announced are asked for from someone else
+			Integer port = this.dialled.remove(out);
+			if (port != null && !this.closed) {
+				// We dialled it, so it's up to us to dial it again. A peer that hung up straight after we connected (like one
+				// that accepts and then refuses us) counts as a failed dial, so the backoff keeps growing instead of starting over
+				long delay = RECONNECT_MIN_MS;
+				if (System.currentTimeMillis() - out.connectedAt() < RECONNECT_MIN_MS) {
+					delay = Math.min(this.redialDelay.getOrDefault(port, (long) RECONNECT_MIN_MS / 2) * 2, RECONNECT_MAX_MS);
+				}
+				System.out.println("Lost peer on port " + port + ", will try to reconnect in about " + delay + " ms");
+				this.reconnectLater(port, delay);
+			}
+			this.metrics.counter("dropped_frames").add(out.droppedFrames());  // The per-peer gauge goes away with the peer, so keep the total
+			try {
+				out.close();  // Stop the node's writer and close the connection if it isn't already
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			System.out.println("Node removed!");  // Print a message confirming the node was removed
+		} finally {
+			this.unlockNode(heldSince);
 		}
-		if (this.nodeOutputStreams.contains(out)) {
-			this.nodeOutputStreams.remove(out);  // Remove the output stream if it exists
-		} else {
-			System.out.println("Output not found");  // If not found, print an error
+	}
+	
+	// Method to stop the node cleanly: stop accepting and redialling peers, disconnect from every peer, stop mining and the
+	// background threads, and make sure every block is on disk. It waits (up to SHUTDOWN_WAIT_MS) for the peer threads to finish,
+	// so nodes can be started and stopped in one JVM (like in the Simulator and the benchmarks) without System.exit
+	public void shutdown() throws IOException {
+		if (this.closed) {
+			return;
 		}
-		if (this.nodeSockets.contains(s)) {
-			this.nodeSockets.remove(s);  // Remove the socket if it exists
-		} else {
-			System.out.println("Socket not found");  // If not found, print an error
+		this.closed = true;
+		this.mempoolMining = false;
+		this.health.shutdownNow();
+		if (this.serversocket != null) {
+			this.serversocket.close();  // The ConnectionHandler's accept fails, so it stops
+		}
+		if (this.nio != null) {
+			this.nio.shutdown();
+		}
+		for (MessageWriter out : this.nodeOutputStreams) {
+			out.close();  // The peer's reader fails its next read and removes the peer
+		}
+		long deadline = System.currentTimeMillis() + SHUTDOWN_WAIT_MS;
+		for (Thread t : this.peerThreads) {
+			try {
+				t.join(Math.max(1, deadline - System.currentTimeMillis()));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		this.miner.shutdown();
+		if (this.log != null) {
+			this.log.close();  // Make sure every block is on disk before we go
+		}
+		try {
+			this.metrics.unregister(this.metricsName());
+		} catch (JMException e) {
+			e.printStackTrace();
 		}
-		System.out.println("Node removed!");  // Print a message confirming the node was removed
 	}
 
 
 	
 	
-	public static void main(String[] args) throws NoSuchAlgorithmException, UnknownHostException, IOException, ClassNotFoundException {
+	public static void main(String[] args) throws NoSuchAlgorithmException, UnknownHostException, IOException {
         Scanner keyScan = new Scanner(System.in);
         
         // Grab my port number on which to start this node
@@ -211,8 +919,30 @@ public class BCNode {
                 remotePorts.add(Integer.parseInt(splitLine[i]));
             }
         }
-        // Create the Node
-        BCNode n = new BCNode(myPort, remotePorts);
+        // Create the Node (run with -Dblockchain.network=nio to put every peer on one selector thread,
+        // or -Dblockchain.network=virtual to give every peer a virtual thread on Java 21+)
+        NetworkMode mode = NetworkMode.valueOf(System.getProperty("blockchain.network", "threads").toUpperCase());
+        // The chain is saved under data/<port> (change the directory with -Dblockchain.data=...)
+        Path dataDir = Paths.get(System.getProperty("blockchain.data", "data"), Integer.toString(myPort));
+        BCNode n = new BCNode(myPort, remotePorts, Runtime.getRuntime().availableProcessors(), mode, dataDir);
+        // Run with -Dblockchain.relay=inventory to announce new blocks instead of sending them to every peer in full
+        n.relay = RelayMode.valueOf(System.getProperty("blockchain.relay", "push").toUpperCase());
+        // Run with -Dblockchain.submit=<port> to let clients add entries to the mempool over a socket, one per line
+        String submitPort = System.getProperty("blockchain.submit");
+        ServerSocket submitSocket = null;
+        if (submitPort != null) {
+            submitSocket = new ServerSocket(Integer.parseInt(submitPort));
+            Thread submit = new Thread(new SubmissionServer(n, submitSocket), "submission-server");
+            submit.setDaemon(true);
+            submit.start();
+        }
+        // Run with -Dblockchain.metrics=<port> to read the node's metrics as text at http://localhost:<port>/metrics
+        // (they're always available over JMX, e.g. in jconsole, under blockchain:type=BCNode)
+        String metricsPort = System.getProperty("blockchain.metrics");
+        HttpServer metricsServer = null;
+        if (metricsPort != null) {
+            metricsServer = n.metrics.serve(Integer.parseInt(metricsPort));
+        }
         
         String ip = "";
         try {
@@ -230,6 +960,11 @@ public class BCNode {
             System.out.println("1. Display Node's blockchain");
             System.out.println("2. Create/mine new Block");
             System.out.println("3. Kill Node");
+            System.out.println("4. Display mining hash rates");
+            System.out.println("5. Audit the full chain");
+            System.out.println("6. Add an entry to the mempool");
+            System.out.println("7. Start/stop mining blocks from the mempool");
+            System.out.println("8. Display metrics");
             System.out.print("Enter option: ");
             int in = keyScan.nextInt();
             
@@ -244,12 +979,45 @@ public class BCNode {
                 n.addBlock(b);
                 
             } else if (in == 3) {
-                // Take down the whole virtual machine (and all the threads)
-                //   for this Node.  If we just let main end, it would leave
-                //   up the Threads the node created.
+                // Shut the node down (which stops every thread it started and saves the chain), along with the
+                //   submission and metrics servers, and let main end
                 keyScan.close();
+                if (submitSocket != null) {
+                    submitSocket.close();
+                }
+                if (metricsServer != null) {
+                    metricsServer.stop(0);
+                }
+                n.shutdown();
                 System.out.println("Node killed");
-                System.exit(0);
+                return;
+                
+            } else if (in == 4) {
+                // Show how fast each mining worker went during the last block
+                double[] rates = n.miner.getHashRates();
+                for (int i = 0; i < rates.length; i++) {
+                    System.out.printf("Worker %d: %.0f hashes/sec%n", i, rates[i]);
+                }
+                System.out.printf("Total: %.0f hashes/sec%n", n.miner.getTotalHashRate());
+                
+            } else if (in == 5) {
+                // Re-check every block from genesis instead of trusting the verified watermark
+                System.out.println(n.audit(DIFFICULTY) ? "Chain is valid" : "Chain is INVALID");
+                
+            } else if (in == 6) {
+                // The entry waits in the mempool (and is passed on to our peers) until a block is mined with it
+                System.out.print("Enter entry: ");
+                String entry = keyScan.next();
+                System.out.println(n.submit(List.of(entry), null).get(0) + " (" + n.mempool.size() + " entries waiting)");
+                
+            } else if (in == 7) {
+                // Keep packing waiting entries into blocks and mining them in the background
+                n.setMempoolMining(!n.mempoolMining);
+                System.out.println(n.mempoolMining ? "Mining from the mempool" : "Stopped mining from the mempool");
+                
+            } else if (in == 8) {
+                // Counters, timings and per-peer queues (the same text the metrics endpoint serves)
+                System.out.print(n.metrics.toText());
             }
         }
         
@@ -1,6 +1,8 @@
 package blockchain;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
@@ -14,6 +16,35 @@ public class Block implements Serializable {
 	public String hash;           // The hash of this block (calculated using its data, timestamp, nonce, and previous hash)
 	private static final long serialVersionUID = 1L;  // A unique ID to ensure this class is compatible with serialization
 	
+	public static final int HASH_SIZE = 32;  // SHA-256 hashes are 32 bytes (64 hex characters)
+	public static final String ENTRY_SEPARATOR = "\n";  // A block's data is its entries with this between them (so entries can't contain it)
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	
+	// One SHA-256 digest per thread, since MessageDigest.getInstance is slow and digests can't be shared between threads
+	private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);  // Every JVM is required to have SHA-256
+		}
+	});
+	
+	private transient volatile HashBytes hashBytes;  // The stored hash decoded into raw bytes (not sent over the network)
+	private transient volatile HashBytes root;       // The Merkle root of the data, worked out once per data string
+	
+	// A string together with the bytes worked out from it (a hash decoded, or the Merkle root of the data). The two are
+	// swapped in together as one object, so a thread reading the cache (miner workers, the validator's fork/join tasks and
+	// the I/O threads all do) never sees one without the other
+	private static final class HashBytes {
+		final String of;     // The string the bytes were worked out from
+		final byte[] bytes;
+		
+		HashBytes(String of, byte[] bytes) {
+			this.of = of;
+			this.bytes = bytes;
+		}
+	}
+	
 	// Constructor to create a new block with given data
 	public Block(String data) throws NoSuchAlgorithmException, UnsupportedEncodingException {
 		this.data = data;  // Store the block's data
@@ -31,25 +62,191 @@ public class Block implements Serializable {
         this.nonce = 0;  // Initialize the nonce to 0
     }
 	
+	// Constructor to rebuild a block from its fields (like one read off the network), keeping the hash it came with
+	public Block(String data, long timestamp, int nonce, String previousHash, String hash) {
+		this.data = data;
+		this.timestamp = timestamp;
+		this.nonce = nonce;
+		this.previousHash = previousHash;
+		this.hash = hash;
+	}
+	
+	// Copy constructor, used so each mining worker can change its own nonce and timestamp
+	public Block(Block other) {
+		this.data = other.data;
+		this.timestamp = other.timestamp;
+		this.nonce = other.nonce;
+		this.previousHash = other.previousHash;
+		this.hash = other.hash;
+		this.root = other.root;  // Same data, so the same root (the miner's workers each get a copy)
+	}
+	
 	// Method to calculate the hash of this block
-	// The hash is a unique string created by combining the block's data, timestamp, nonce, and previous hash
+	// The hash is the SHA-256 of the block's binary header (see encodeHeader), written as a hex string
 	public String calculateHash() throws NoSuchAlgorithmException, UnsupportedEncodingException {
-		// Combine the block's fields into one long string
-		String combined = data + Long.toString(timestamp) + Integer.toString(nonce) + previousHash;
-		
-		// Use the SHA-256 hashing algorithm to generate a hash for this string
-		MessageDigest myDigest = MessageDigest.getInstance("SHA-256");
-		byte[] hashBytes = myDigest.digest(combined.getBytes("UTF-8"));  // Convert the combined string to a byte array and hash it
-		
-		// Convert the byte array into a readable hexadecimal string
-		StringBuffer buffer = new StringBuffer();
-		for (byte b : hashBytes) {
-			buffer.append(String.format("%02x", b));  // For each byte, format it as a 2-digit hexadecimal number
+		return toHex(this.calculateHashBytes());
+	}
+	
+	// Method to calculate the raw 32-byte hash of this block without making a hex string
+	public byte[] calculateHashBytes() {
+		byte[] out = new byte[HASH_SIZE];
+		hashHeader(sha256(), this.encodeHeader(), out);
+		return out;
+	}
+	
+	// Method to build the fixed-layout binary header that gets hashed:
+	//   [Merkle root of the entries: 32 bytes][previous hash: 32 raw bytes][timestamp: 8 bytes][nonce: 4 bytes]
+	// The data only goes in through its Merkle root, so the header is the same size however big the block is,
+	// and any one entry can be checked against it with a Merkle proof (see Merkle).
+	// Everything up to the timestamp never changes while mining, so miners encode this once and only rewrite the
+	// last 12 bytes with setTimestamp/setNonce on each attempt
+	public byte[] encodeHeader() {
+		ByteBuffer header = ByteBuffer.allocate(HASH_SIZE + HASH_SIZE + 8 + 4);
+		header.put(this.merkleRoot());
+		header.put(fromHex(previousHash));
+		header.putLong(timestamp);
+		header.putInt(nonce);
+		return header.array();
+	}
+	
+	// Method to split the block's data into its entries
+	public List<String> entries() {
+		return entries(this.data);
+	}
+	
+	// Method to split data into its entries (null data is hashed as "null", like everywhere else)
+	private static List<String> entries(String data) {
+		return Arrays.asList((data == null ? "null" : data).split(ENTRY_SEPARATOR, -1));
+	}
+	
+	// Method to get the Merkle root of the block's entries (the part of the header that commits to the data)
+	// Hashing every entry is the expensive part of hashing a block, so the root is cached until the data changes;
+	// the array is shared, so callers mustn't change it
+	public byte[] merkleRoot() {
+		String data = this.data;
+		HashBytes cached = this.root;
+		if (cached != null && cached.of == data) {
+			return cached.bytes;
 		}
-		
-		// Return the final hash string
-		String hashStr = buffer.toString();
-		return hashStr;
+		cached = new HashBytes(data, Merkle.root(entries(data)));
+		this.root = cached;
+		return cached.bytes;
+	}
+	
+	// Method to join entries into the data for a block
+	public static String joinEntries(List<String> entries) {
+		return String.join(ENTRY_SEPARATOR, entries);
+	}
+	
+	// Method to rewrite the nonce bytes at the end of an encoded header
+	public static void setNonce(byte[] header, int nonce) {
+		int i = header.length - 4;
+		header[i] = (byte) (nonce >>> 24);
+		header[i + 1] = (byte) (nonce >>> 16);
+		header[i + 2] = (byte) (nonce >>> 8);
+		header[i + 3] = (byte) nonce;
+	}
+	
+	// Method to rewrite the timestamp bytes of an encoded header
+	public static void setTimestamp(byte[] header, long timestamp) {
+		int i = header.length - 12;
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			header[i++] = (byte) (timestamp >>> shift);
+		}
+	}
+	
+	// Method to hash an encoded header into out (32 bytes) without allocating anything
+	public static void hashHeader(MessageDigest digest, byte[] header, byte[] out) {
+		digest.update(header);
+		try {
+			digest.digest(out, 0, HASH_SIZE);
+		} catch (DigestException e) {
+			throw new IllegalStateException(e);  // Only happens if out is too small
+		}
+	}
+	
+	// Method to get this thread's SHA-256 digest, so we don't look up the provider on every hash
+	public static MessageDigest sha256() {
+		return SHA256.get();
+	}
+	
+	// Method to check if a raw hash starts with N zero hex digits (the difficulty target)
+	public static boolean hasLeadingZeros(byte[] hash, int N) {
+		int fullBytes = N / 2;  // Each byte holds two hex digits
+		for (int i = 0; i < fullBytes; i++) {
+			if (hash[i] != 0) {
+				return false;
+			}
+		}
+		// An odd N means the high nibble of the next byte must be zero too
+		return N % 2 == 0 || (hash[fullBytes] & 0xF0) == 0;
+	}
+	
+	// Method to check that this block's stored hash is really its hash and that it meets the difficulty
+	public boolean hasValidHash(int N) {
+		byte[] stored = this.getHashBytes();
+		if (stored == null || !hasLeadingZeros(stored, N)) {
+			return false;
+		}
+		return Arrays.equals(stored, this.calculateHashBytes());
+	}
+	
+	// Method to get the stored hash as raw bytes (decoded from the hex string once and then cached)
+	// Returns null if the stored hash isn't a well-formed hash
+	public byte[] getHashBytes() {
+		String hash = this.hash;
+		HashBytes cached = this.hashBytes;
+		if (cached != null && cached.of == hash) {
+			return cached.bytes;
+		}
+		if (!isHash(hash)) {
+			return null;
+		}
+		cached = new HashBytes(hash, fromHex(hash));
+		this.hashBytes = cached;
+		return cached.bytes;
+	}
+	
+	// Method to turn raw bytes into a lowercase hex string
+	public static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+			chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+		}
+		return new String(chars);
+	}
+	
+	// Method to check if a string is a well-formed hash: 64 hex characters
+	public static boolean isHash(String hex) {
+		if (hex == null || hex.length() != HASH_SIZE * 2) {
+			return false;
+		}
+		for (int i = 0; i < hex.length(); i++) {
+			if (Character.digit(hex.charAt(i), 16) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	// Method to turn a 64-character hex hash back into 32 raw bytes
+	// The genesis block's previous hash ("0", or null before it's set) becomes all zeros; anything else that isn't a
+	// well-formed hash throws, so a corrupt hash can never be mistaken for the all-zeros one
+	public static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[HASH_SIZE];
+		if (hex == null || hex.equals("0")) {
+			return bytes;
+		}
+		if (!isHash(hex)) {
+			throw new IllegalArgumentException("Not a hash: " + hex);
+		}
+		for (int i = 0; i < HASH_SIZE; i++) {
+			int high = Character.digit(hex.charAt(i * 2), 16);
+			int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+			bytes[i] = (byte) ((high << 4) | low);
+		}
+		return bytes;
 	}
 	
 	// Getter method to return the hash of this block
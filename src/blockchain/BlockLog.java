@@ -0,0 +1,450 @@
+package blockchain;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+// BlockLog keeps a node's main chain on disk so a restarted node doesn't have to download it all again.
+// Blocks are appended to segment files as records: [length: 4 bytes][CRC32: 4 bytes][block, in the Protocol layout].
+// A small index file has one fixed-size entry per height:
+//   [segment: 4 bytes][offset: 8 bytes][length: 4 bytes][hash: 32 bytes][timestamp: 8 bytes][nonce: 4 bytes][Merkle root: 32 bytes]
+// so a block can be found by height (or by hash) without scanning the segments, and the main chain's headers can be
+// rebuilt from the index alone (see headers), leaving the bodies on disk until they're needed. Blocks are read back
+// through memory-mapped segment files. Writes are fsynced in batches by a background thread instead of after every block.
+// On open, a torn record at the end (from a crash mid-write) is cut off, along with any index entries pointing past it.
+// If the index is missing (or is from before it held headers), it's rebuilt by scanning the segments once.
+public class BlockLog {
+	public static final long SEGMENT_SIZE = 64L * 1024 * 1024;  // Start a new segment file once one gets this big
+	public static final int INDEX_ENTRY_SIZE = 4 + 8 + 4 + Block.HASH_SIZE + 8 + 4 + Block.HASH_SIZE;
+	private static final String INDEX_FILE = "index-v2.dat";  // index.dat was the old index, without the headers
+	public static final long FLUSH_INTERVAL_MS = 200;            // How often pending writes are fsynced
+
+	private Path dir;                               // The directory holding the segment and index files
+	private FileChannel index;                      // The index file
+	private List<FileChannel> segments = new ArrayList<>();          // Every segment file, in order
+	private List<MappedByteBuffer> mapped = new ArrayList<>();       // The read-only mapping of each segment (null until needed)
+	private byte[] hashes = new byte[1024 * Block.HASH_SIZE];        // The raw hash at every height, back to back, loaded from the index
+	private int count;                                               // How many heights are in the log
+	private ScheduledExecutorService flusher;       // Fsyncs in the background
+	private boolean dirty;                          // Set when something's been written since the last fsync
+	private int firstDirtySegment;                  // The first segment written to since the last fsync
+	// Guards everything above. It's a ReentrantLock rather than synchronized (like the node's and the ChainStore's), since
+	// it's held across file writes and a virtual thread blocked on I/O inside a monitor holds on to its OS thread
+	private final ReentrantLock lock = new ReentrantLock();
+	private final ReentrantLock syncing = new ReentrantLock();  // Held for a whole syncWith, so two syncs don't interleave
+
+	// Constructor to open (or create) the log in a directory, recovering from a crash if needed
+	public BlockLog(Path dir) throws IOException {
+		this.dir = dir;
+		Files.createDirectories(dir);
+		this.index = FileChannel.open(dir.resolve(INDEX_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		for (int i = 0; Files.exists(this.segmentPath(i)); i++) {
+			this.openSegment(i);
+		}
+		if (this.segments.isEmpty()) {
+			this.openSegment(0);
+		}
+		if (this.index.size() == 0 && this.segments.get(0).size() > 0) {
+			this.rebuildIndex();
+			this.count = 0;  // recover loads the hashes back from the new index
+		}
+		Files.deleteIfExists(dir.resolve("index.dat"));
+		this.recover();
+		this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "block-log-flusher");
+			t.setDaemon(true);
+			return t;
+		});
+		this.flusher.scheduleWithFixedDelay(this::flushQuietly, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	// Method to load the index and throw away anything after the last complete, intact record
+	private void recover() throws IOException {
+		long entries = this.index.size() / INDEX_ENTRY_SIZE;  // A partly written entry at the end is ignored
+		MappedByteBuffer idx = this.index.map(FileChannel.MapMode.READ_ONLY, 0, entries * INDEX_ENTRY_SIZE);
+		byte[] hash = new byte[Block.HASH_SIZE];
+		int lastSegment = 0;
+		long lastEnd = 0;
+		for (long i = 0; i < entries; i++) {
+			int segment = idx.getInt();
+			long offset = idx.getLong();
+			int length = idx.getInt();
+			idx.get(hash);
+			idx.position(idx.position() + 8 + 4 + Block.HASH_SIZE);  // The rest of the header isn't needed here
+			if (segment < 0 || segment >= this.segments.size() || offset < 0 || offset + length > this.segments.get(segment).size()) {
+				break;  // This entry points at data that never made it to disk
+			}
+			this.addHash(hash);
+			lastSegment = segment;
+			lastEnd = offset + length;
+		}
+		// The last indexed record is the one most likely to be torn, so check its CRC and drop it if it's bad
+		while (this.count > 0 && this.readRecord(this.count - 1) == null) {
+			this.count--;
+			long[] entry = this.entry(this.count - 1);
+			lastSegment = this.count == 0 ? 0 : (int) entry[0];
+			lastEnd = this.count == 0 ? 0 : entry[1] + entry[2];
+		}
+		if (this.count < entries) {
+			System.out.println("Block log: dropped " + (entries - this.count) + " torn entries");
+		}
+		// Cut the index and the segments back to the last good record
+		this.index.truncate((long) this.count * INDEX_ENTRY_SIZE);
+		this.segments.get(lastSegment).truncate(lastEnd);
+		while (this.segments.size() > lastSegment + 1) {
+			int last = this.segments.size() - 1;
+			this.segments.remove(last).close();
+			this.mapped.remove(last);
+			Files.delete(this.segmentPath(last));
+		}
+		this.mapped.set(lastSegment, null);
+	}
+
+	// Method to write a fresh index by reading every record in the segments, stopping at the first torn or corrupt one
+	// (recover then cuts the segments back to match). This reads the whole log, but it only happens once, for a log
+	// written before the index held headers or one whose index was lost
+	private void rebuildIndex() throws IOException {
+		System.out.println("Block log: rebuilding the index from " + this.segments.size() + " segments");
+		for (int segment = 0; segment < this.segments.size(); segment++) {
+			FileChannel channel = this.segments.get(segment);
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			while (map.remaining() >= 8) {
+				long offset = map.position();
+				int length = map.getInt();
+				int expected = map.getInt();
+				if (length < 0 || length > map.remaining()) {
+					return;  // Torn
+				}
+				ByteBuffer record = map.slice();
+				record.limit(length);
+				CRC32 crc = new CRC32();
+				crc.update(record.duplicate());
+				if ((int) crc.getValue() != expected) {
+					return;
+				}
+				this.writeEntry(segment, offset, 8 + length, Protocol.getBlock(record));
+				map.position(map.position() + length);
+			}
+		}
+	}
+
+	// Method to write the index entry for the next height and add its hash to the ones in memory
+	private void writeEntry(int segment, long offset, int length, Block b) throws IOException {
+		ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+		entry.putInt(segment);
+		entry.putLong(offset);
+		entry.putInt(length);
+		entry.put(Block.fromHex(b.hash));
+		entry.putLong(b.timestamp);
+		entry.putInt(b.nonce);
+		entry.put(b.merkleRoot());
+		entry.flip();
+		long entryOffset = (long) this.count * INDEX_ENTRY_SIZE;
+		while (entry.hasRemaining()) {
+			this.index.write(entry, entryOffset + entry.position());
+		}
+		this.addHash(Block.fromHex(b.hash));
+	}
+
+	// Method to rebuild the main chain's headers from the index alone, leaving every body on disk (the ChainStore reads
+	// them back when they're needed). This only reads the index, so it takes time proportional to the index, not the chain
+	public HeaderTable headers() throws IOException {
+		this.lock.lock();
+		try {
+			HeaderTable table = new HeaderTable();
+			if (this.count == 0) {
+				return table;
+			}
+			MappedByteBuffer idx = this.index.map(FileChannel.MapMode.READ_ONLY, 0, (long) this.count * INDEX_ENTRY_SIZE);
+			byte[] hash = new byte[Block.HASH_SIZE];
+			for (int h = 0; h < this.count; h++) {
+				idx.position(h * INDEX_ENTRY_SIZE + 4 + 8 + 4);
+				idx.get(hash);
+				long timestamp = idx.getLong();
+				int nonce = idx.getInt();
+				table.add(hash, timestamp, nonce, null);
+			}
+			return table;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Method to get how many blocks are in the log
+	public int size() {
+		this.lock.lock();
+		try {
+			return this.count;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Method to get the hash of the block at a height
+	public String getHash(int height) {
+		this.lock.lock();
+		try {
+			if (height < 0 || height >= this.count) {
+				throw new IndexOutOfBoundsException("Height " + height + " is not in the block log");
+			}
+			return Block.toHex(Arrays.copyOfRange(this.hashes, height * Block.HASH_SIZE, (height + 1) * Block.HASH_SIZE));
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Method to add a hash for the next height, growing the array if it's full
+	private void addHash(byte[] hash) {
+		if ((this.count + 1) * Block.HASH_SIZE > this.hashes.length) {
+			this.hashes = Arrays.copyOf(this.hashes, this.hashes.length * 2);
+		}
+		System.arraycopy(hash, 0, this.hashes, this.count * Block.HASH_SIZE, Block.HASH_SIZE);
+		this.count++;
+	}
+
+	// Method to add the block for the next height to the end of the log
+	public void append(Block b) throws IOException {
+		this.lock.lock();
+		try {
+			ByteBuffer body = ByteBuffer.allocate(Protocol.blockSize(b));
+			Protocol.putBlock(body, b);
+			CRC32 crc = new CRC32();
+			crc.update(body.array());
+
+			int segment = this.segments.size() - 1;
+			FileChannel channel = this.segments.get(segment);
+			if (channel.size() + 8 + body.capacity() > SEGMENT_SIZE && channel.size() > 0) {
+				segment++;
+				channel = this.openSegment(segment);
+			}
+			long offset = channel.size();
+			ByteBuffer record = ByteBuffer.allocate(8 + body.capacity());
+			record.putInt(body.capacity());
+			record.putInt((int) crc.getValue());
+			record.put(body.array());
+			record.flip();
+			while (record.hasRemaining()) {
+				channel.write(record, offset + record.position());
+			}
+
+			// The index entry goes in after the data, so an entry never points at data that isn't there
+			// (the segment's mapping isn't dropped: records are never rewritten, so it stays good for everything it covers,
+			// and readRecord only maps the segment again when it's asked for a record past the end of the mapping)
+			this.writeEntry(segment, offset, record.capacity(), b);
+			if (!this.dirty) {
+				this.firstDirtySegment = segment;
+			}
+			this.dirty = true;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Method to drop every block at or above a height (after a reorg); the segment data stays, but nothing points at it
+	public void truncate(int height) throws IOException {
+		this.lock.lock();
+		try {
+			if (height >= this.count) {
+				return;
+			}
+			this.index.truncate((long) height * INDEX_ENTRY_SIZE);
+			this.count = height;
+			if (!this.dirty) {
+				this.firstDirtySegment = this.segments.size() - 1;
+			}
+			this.dirty = true;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Method to read the block at a height back from its memory-mapped segment
+	public Block read(int height) throws IOException {
+		this.lock.lock();
+		try {
+			Block b = this.readRecord(height);
+			if (b == null) {
+				throw new ProtocolException("Block log record at height " + height + " is corrupt");
+			}
+			if (!this.matchesEntry(height, b)) {
+				throw new ProtocolException("Block log record at height " + height + " doesn't match its index entry");
+			}
+			return b;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Method to read up to count blocks starting at a height, in height order
+	public List<Block> read(int from, int count) throws IOException {
+		this.lock.lock();
+		try {
+			List<Block> blocks = new ArrayList<>();
+			for (int h = Math.max(from, 0); h < Math.min(this.count, from + count); h++) {
+				blocks.add(this.read(h));
+			}
+			return blocks;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Method to make the log match the main chain: drop anything that's been reorganized away, then append what's new
+	// The log is synced to the chain's latest snapshot, so the chain isn't locked while the files are written, only at the
+	// end to tell it what's been stored (see ChainStore.markStored). One sync runs at a time, so the log can't change
+	// between working out where it parts from the chain and appending the blocks after that
+	public void syncWith(ChainStore chain) throws IOException {
+		ChainSnapshot target = chain.snapshot();
+		this.syncing.lock();
+		try {
+			int common;
+			this.lock.lock();
+			try {
+				common = Math.min(this.count, target.size());
+				while (common > 0 && !this.getHash(common - 1).equals(target.getHash(common - 1))) {
+					common--;
+				}
+				this.truncate(common);
+			} finally {
+				this.lock.unlock();
+			}
+			// The blocks are fetched before each append takes the log's lock, since a body that's been dropped from memory
+			// is read back through the chain
+			for (Block b : target.range(common, target.size() - common)) {
+				this.append(b);
+			}
+			chain.markStored(this, target, this.size());  // Now the chain can drop bodies and read them back from here
+		} finally {
+			this.syncing.unlock();
+		}
+	}
+
+	// Method to read and check one record, returning null if it's torn or corrupt
+	private Block readRecord(int height) throws IOException {
+		long[] entry = this.entry(height);
+		int segment = (int) entry[0];
+		MappedByteBuffer map = this.mapped.get(segment);
+		if (map == null || map.capacity() < entry[1] + entry[2]) {
+			FileChannel channel = this.segments.get(segment);
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			this.mapped.set(segment, map);
+		}
+		ByteBuffer record = map.duplicate();
+		record.position((int) entry[1]);
+		record.limit((int) (entry[1] + entry[2]));
+		int length = record.getInt();
+		int expected = record.getInt();
+		if (length != record.remaining()) {
+			return null;
+		}
+		CRC32 crc = new CRC32();
+		crc.update(record.duplicate());
+		if ((int) crc.getValue() != expected) {
+			return null;
+		}
+		return Protocol.getBlock(record);
+	}
+
+	// Method to read an index entry: {segment, offset, length}
+	private long[] entry(int height) throws IOException {
+		if (height < 0) {
+			return new long[3];
+		}
+		ByteBuffer entry = ByteBuffer.allocate(4 + 8 + 4);
+		this.index.read(entry, (long) height * INDEX_ENTRY_SIZE);
+		entry.flip();
+		return new long[] { entry.getInt(), entry.getLong(), entry.getInt() };
+	}
+
+	// Method to check a block read back from a segment against the header in its index entry
+	// The chain is rebuilt from the index without reading the bodies (see headers), so this is where a body that doesn't
+	// belong to its header would show up
+	private boolean matchesEntry(int height, Block b) throws IOException {
+		ByteBuffer entry = ByteBuffer.allocate(Block.HASH_SIZE + 8 + 4 + Block.HASH_SIZE);
+		this.index.read(entry, (long) height * INDEX_ENTRY_SIZE + 4 + 8 + 4);
+		entry.flip();
+		byte[] hash = new byte[Block.HASH_SIZE];
+		byte[] root = new byte[Block.HASH_SIZE];
+		entry.get(hash);
+		long timestamp = entry.getLong();
+		int nonce = entry.getInt();
+		entry.get(root);
+		return Arrays.equals(hash, Block.fromHex(b.hash)) && timestamp == b.timestamp && nonce == b.nonce
+				&& Arrays.equals(root, b.merkleRoot());
+	}
+
+	// Method to open a segment file and add it to the list
+	private FileChannel openSegment(int number) throws IOException {
+		FileChannel channel = FileChannel.open(this.segmentPath(number), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.segments.add(channel);
+		this.mapped.add(null);
+		return channel;
+	}
+
+	private Path segmentPath(int number) {
+		return this.dir.resolve(String.format("blocks-%05d.dat", number));
+	}
+
+	// Method to fsync everything written since the last flush
+	// Only picking the segments to sync takes the lock; the fsyncs themselves run outside it, so appends (and the node
+	// waiting on them) aren't held up for the length of a disk sync. Anything written during the sync is picked up next time
+	public void flush() throws IOException {
+		List<FileChannel> pending;
+		this.lock.lock();
+		try {
+			if (!this.dirty) {
+				return;
+			}
+			pending = new ArrayList<>(this.segments.subList(this.firstDirtySegment, this.segments.size()));
+			this.dirty = false;
+		} finally {
+			this.lock.unlock();
+		}
+		for (FileChannel channel : pending) {
+			channel.force(false);
+		}
+		this.index.force(false);  // The index goes last, like when it was written
+	}
+
+	private void flushQuietly() {
+		try {
+			this.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Method to flush and close the log
+	// The background flush is waited for first, so it isn't in the middle of an fsync when the files are closed
+	public void close() throws IOException {
+		this.flusher.shutdown();
+		try {
+			this.flusher.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		this.flush();
+		this.lock.lock();
+		try {
+			for (FileChannel channel : this.segments) {
+				channel.close();
+			}
+			this.index.close();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,82 @@
+package blockchain;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+// A BodyCache decides which main chain block bodies (the data) stay on the heap. The bodies themselves live in the
+// HeaderTable; this keeps track of which heights have theirs in memory, most recently used last.
+// It holds roughly a fixed number of bytes; once it's over, the least recently used bodies are dropped, but only ones
+// that are already saved in the block log (so they can be read back later). The cache isn't thread-safe; the ChainStore guards it.
+public class BodyCache {
+	public static final long DEFAULT_BUDGET = 16L * 1024 * 1024;  // Roughly how many bytes of bodies to keep by default
+	private static final int ENTRY_OVERHEAD = 96;                 // Rough heap cost of a cached body apart from its characters (string, map entry, key)
+
+	private LinkedHashMap<Integer, Integer> heights = new LinkedHashMap<>(16, 0.75f, true);  // Cached height -> cost, least recently used first
+	private long budget;
+	private long bytes;  // Rough heap taken up by the cached bodies
+
+	// Constructor to create a cache that holds about budget bytes of bodies
+	public BodyCache(long budget) {
+		this.budget = budget;
+	}
+
+	// Method to record that the body at a height is in memory
+	public void put(int height, String body) {
+		Integer old = this.heights.put(height, cost(body));
+		if (old != null) {
+			this.bytes -= old;
+		}
+		this.bytes += cost(body);
+	}
+
+	// Method to mark the body at a height as just used
+	public void touch(int height) {
+		this.heights.get(height);
+	}
+
+	// Method to forget every body at or above a height (after a reorg)
+	public void removeFrom(int height) {
+		Iterator<Map.Entry<Integer, Integer>> it = this.heights.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Integer, Integer> entry = it.next();
+			if (entry.getKey() >= height) {
+				this.bytes -= entry.getValue();
+				it.remove();
+			}
+		}
+	}
+
+	// Method to drop the least recently used bodies until the cache is within its budget,
+	// only dropping heights below stored (the ones that can be read back from the log)
+	// drop is called with each height whose body should be let go
+	public void trim(int stored, IntConsumer drop) {
+		if (this.bytes <= this.budget || stored == 0) {
+			return;
+		}
+		Iterator<Map.Entry<Integer, Integer>> it = this.heights.entrySet().iterator();
+		while (this.bytes > this.budget && it.hasNext()) {
+			Map.Entry<Integer, Integer> entry = it.next();
+			if (entry.getKey() < stored) {
+				this.bytes -= entry.getValue();
+				it.remove();
+				drop.accept(entry.getKey());
+			}
+		}
+	}
+
+	// Method to get how many bodies are cached
+	public int size() {
+		return this.heights.size();
+	}
+
+	// Method to get roughly how many bytes the cached bodies take up
+	public long bytes() {
+		return this.bytes;
+	}
+
+	private static int cost(String body) {
+		return ENTRY_OVERHEAD + (body == null ? 0 : body.length());
+	}
+}
@@ -0,0 +1,90 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A ChainSnapshot is a read-only view of the main chain as it was at one moment.
+// The ChainStore publishes a new one after every change, so anything that only reads the chain (serving peers,
+// displaying it, reporting on it) can grab the latest snapshot and read it with no lock and no risk of it changing under it,
+// even while blocks are being mined, validated and added. Each snapshot has a version that goes up by one per change.
+public class ChainSnapshot {
+	private long version;          // Which change to the chain this snapshot comes after
+	private HeaderTable headers;   // A read-only copy of the main chain's headers
+	private ChainStore store;      // Where bodies that aren't in memory any more are read back from
+
+	// Constructor to create a snapshot from a read-only header table
+	public ChainSnapshot(long version, HeaderTable headers, ChainStore store) {
+		this.version = version;
+		this.headers = headers;
+		this.store = store;
+	}
+
+	// Method to get the version of this snapshot
+	public long version() {
+		return this.version;
+	}
+
+	// Method to get the number of blocks on the main chain (including genesis)
+	public int size() {
+		return this.headers.size();
+	}
+
+	// Method to get the hash of the block at a height
+	public String getHash(int height) {
+		return this.headers.hashHex(height);
+	}
+
+	// Method to get the hash of the last block
+	public String tipHash() {
+		return this.getHash(this.size() - 1);
+	}
+
+	// Method to get the last block
+	public Block tip() {
+		return this.get(this.size() - 1);
+	}
+
+	// Method to get the block at a height
+	public Block get(int height) {
+		if (height < 0 || height >= this.size()) {
+			throw new IndexOutOfBoundsException("Height " + height + " is not in this snapshot");
+		}
+		String hash = this.headers.hashHex(height);
+		String body = this.headers.body(height);
+		if (body == null) {
+			body = this.store.loadBody(height, hash);  // It was dropped from memory, so read it back
+		}
+		String previousHash = height == 0 ? "0" : this.headers.hashHex(height - 1);
+		return new Block(body, this.headers.timestamp(height), this.headers.nonce(height), previousHash, hash);
+	}
+
+	// Method to get up to count blocks starting at a height (empty if the snapshot doesn't have that height)
+	public List<Block> range(int from, int count) {
+		List<Block> result = new ArrayList<>();
+		if (from < 0 || count <= 0) {
+			return result;
+		}
+		for (int h = from; h < Math.min(this.size(), from + count); h++) {
+			result.add(this.get(h));
+		}
+		return result;
+	}
+
+	// Method to get the hashes of up to count blocks starting at a height
+	// Only the headers are needed for this, so no bodies are read
+	public List<String> hashes(int from, int count) {
+		List<String> result = new ArrayList<>();
+		if (from < 0 || count <= 0) {
+			return result;
+		}
+		for (int h = from; h < Math.min(this.size(), from + count); h++) {
+			result.add(this.headers.hashHex(h));
+		}
+		return result;
+	}
+
+	// Method to get the whole chain as a list, e.g. to send to a peer
+	public ArrayList<Block> toList() {
+		return new ArrayList<>(this.range(0, this.size()));
+	}
+}
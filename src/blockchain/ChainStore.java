@@ -0,0 +1,465 @@
+package blockchain;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+// The ChainStore keeps every block we know about as a tree, indexed by hash, and tracks which branch is the main chain.
+// The main chain is the branch with the most work; when a competing branch overtakes it, the main chain is switched over (a reorg).
+// Blocks whose parent we haven't seen yet wait in a bounded orphan pool and are connected as soon as the parent arrives.
+// This class doesn't check hashes itself; callers should only add blocks whose own hash and difficulty have already been checked.
+// To keep long chains small in memory, the main chain's headers live in a HeaderTable and only recently used block bodies
+// are kept in a BodyCache; once the block log has a block, its body can be dropped and is read back from the log when needed.
+// Only the methods that take the lock change the store (it has a single writer at a time), and after every change a new
+// ChainSnapshot is published, so readers can use snapshot() instead of waiting on the lock. Like the node's lock, it's a
+// ReentrantLock rather than synchronized, and bodies are read back from the log after it's been let go, so a reader
+// waiting on the disk doesn't hold up the writer (or, on a virtual thread, the OS thread it's running on).
+public class ChainStore {
+	public static final int DEFAULT_MAX_ORPHANS = 100;  // How many parentless blocks we hold on to by default
+
+	private HeaderTable mainChain = new HeaderTable();          // The main chain's headers, by height
+	private BodyCache bodies = new BodyCache(BodyCache.DEFAULT_BUDGET);  // Recently used main chain bodies, by height
+	private volatile BlockLog log;  // Where bodies that were dropped from the cache can be read back from (null if there's no log)
+	private int stored;          // Every main chain height below this is in the log
+	private Map<String, Block> sideBlocks = new HashMap<>();    // Connected blocks that aren't on the main chain, by hash
+	private Map<String, Integer> sideHeights = new HashMap<>(); // The height of every block in sideBlocks, by hash
+	private LinkedHashMap<String, Block> orphans = new LinkedHashMap<>();       // Blocks with an unknown parent, oldest first
+	private Map<String, List<Block>> orphansByParent = new HashMap<>();        // The same orphans, grouped by the parent they're waiting for
+	private int maxOrphans;
+	private long blockWork;  // The work each block represents (16^difficulty hashes on average)
+	private volatile ChainSnapshot snapshot;  // The latest read-only view of the main chain, swapped in after every change
+	private long version;                     // How many changes have been published
+	private final ReentrantLock lock = new ReentrantLock();  // Guards everything above except the snapshot
+
+	// What happened when a block was added
+	public enum Result {
+		EXTENDED,      // The block went on top of the main chain
+		REORGANIZED,   // The block made a competing branch heavier than the main chain, so that branch is now the main chain
+		SIDE_BRANCH,   // The block was stored on a branch that isn't the main chain
+		ORPHAN,        // The block's parent is unknown, so it's waiting in the orphan pool
+		DUPLICATE      // We already had this block
+	}
+
+	// Constructor to create a store that starts from a genesis block
+	public ChainStore(Block genesis, int difficulty) {
+		this(genesis, difficulty, DEFAULT_MAX_ORPHANS);
+	}
+
+	// Constructor to create a store that starts from a genesis block with a given orphan pool size
+	public ChainStore(Block genesis, int difficulty, int maxOrphans) {
+		this.maxOrphans = maxOrphans;
+		this.blockWork = 1L << (4 * difficulty);
+		this.push(genesis);
+		this.publish();
+	}
+
+	// Method to build a store from a whole chain (like one received from a peer), trusting the order it's in
+	// The chain should be audited before anything is built on it
+	public static ChainStore fromList(List<Block> chain, int difficulty) {
+		ChainStore store = new ChainStore(chain.get(0), difficulty);
+		store.append(chain.subList(1, chain.size()));
+		return store;
+	}
+
+	// Method to build a store from the main chain saved in a block log, trusting it (every block was checked before it
+	// was written, and every record is checked against its CRC and its index entry when it's read)
+	// Only the log's index is read: the headers come from there, and every body stays in the log until it's needed
+	public static ChainStore fromLog(BlockLog log, int difficulty) throws IOException {
+		ChainStore store = new ChainStore(difficulty, DEFAULT_MAX_ORPHANS);
+		store.mainChain = log.headers();
+		store.log = log;
+		store.stored = store.mainChain.size();
+		store.publish();
+		return store;
+	}
+
+	// Constructor to create an empty store (the caller fills in the main chain and publishes it)
+	private ChainStore(int difficulty, int maxOrphans) {
+		this.maxOrphans = maxOrphans;
+		this.blockWork = 1L << (4 * difficulty);
+	}
+
+	// Method to put blocks straight on top of the main chain, trusting that they follow on from the tip
+	public void append(List<Block> blocks) {
+		this.lock.lock();
+		try {
+			for (Block b : blocks) {
+				this.push(b);
+			}
+			this.trim();
+			this.publish();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Method to add a block to the store
+	// connected gets every block that was connected to the tree because of this call: the block itself,
+	// plus any orphans that were waiting on it (so they can be relayed too)
+	public Result add(Block b, List<Block> connected) {
+		return this.add(b, connected, new ArrayList<>());
+	}
+
+	// Method to add a block to the store, like add(b, connected), where disconnected also gets every block that a reorg
+	// took off the main chain (so whatever was in them can go back in the mempool)
+	public Result add(Block b, List<Block> connected, List<Block> disconnected) {
+		this.lock.lock();
+		try {
+			return this.addLocked(b, connected, disconnected);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Method to add a block (call with the lock held)
+	private Result addLocked(Block b, List<Block> connected, List<Block> disconnected) {
+		if (this.has(b.hash)) {
+			return Result.DUPLICATE;
+		}
+		if (this.getHeight(b.previousHash) == -1) {
+			this.addOrphan(b);
+			return Result.ORPHAN;
+		}
+
+		String oldTip = this.getHash(this.mainChain.size() - 1);
+		int oldHeight = this.mainChain.size() - 1;
+		this.attach(b, disconnected);
+		connected.add(b);
+
+		// Now that b is here, anything that was waiting for it (and anything waiting on those) can be connected
+		ArrayList<Block> ready = new ArrayList<>();
+		ready.add(b);
+		while (!ready.isEmpty()) {
+			Block parent = ready.remove(ready.size() - 1);
+			List<Block> children = this.orphansByParent.remove(parent.hash);
+			if (children == null) {
+				continue;
+			}
+			for (Block child : children) {
+				this.orphans.remove(child.hash);
+				this.attach(child, disconnected);
+				connected.add(child);
+				ready.add(child);
+			}
+		}
+		this.trim();
+		this.publish();
+
+		// Figure out what happened to the main chain
+		if (this.getHash(this.mainChain.size() - 1).equals(oldTip)) {
+			return Result.SIDE_BRANCH;
+		} else if (this.contains(oldTip, oldHeight)) {
+			return Result.EXTENDED;  // The old tip is still on the main chain, so we only grew
+		}
+		return Result.REORGANIZED;
+	}
+
+	// Method to connect a block whose parent is already in the tree, switching the main chain over to it if it now has the most work
+	private void attach(Block b, List<Block> disconnected) {
+		int height = this.getHeight(b.previousHash) + 1;
+		// Every block has the same difficulty, so the branch with the most work is the one with the most blocks
+		if (this.work(height) > this.work(this.mainChain.size() - 1)) {
+			if (height == this.mainChain.size() && this.contains(b.previousHash, height - 1)) {
+				this.push(b);  // The usual case: the block just goes on top
+				return;
+			}
+			this.sideBlocks.put(b.hash, b);
+			this.sideHeights.put(b.hash, height);
+			this.reorganize(b, height, disconnected);
+		} else {
+			this.sideBlocks.put(b.hash, b);
+			this.sideHeights.put(b.hash, height);
+		}
+	}
+
+	// Method to switch the main chain over to the branch ending at newTip; the blocks it takes off go in disconnected
+	private void reorganize(Block newTip, int height, List<Block> disconnected) {
+		// Walk back from the new tip until we hit a block that's already on the main chain (the fork point)
+		ArrayList<Block> branch = new ArrayList<>();
+		Block b = newTip;
+		int h = height;
+		while (!this.contains(b.hash, h)) {
+			branch.add(b);
+			b = this.getBlock(b.previousHash);
+			h--;
+		}
+		// Move the old branch above the fork point off the main chain, then put the new one in its place
+		for (int old = h + 1; old < this.mainChain.size(); old++) {
+			Block stale = this.get(old);
+			this.sideBlocks.put(stale.hash, stale);
+			this.sideHeights.put(stale.hash, old);
+			disconnected.add(stale);
+		}
+		this.mainChain.truncate(h + 1);
+		this.bodies.removeFrom(h + 1);
+		this.stored = Math.min(this.stored, h + 1);
+		for (int i = branch.size() - 1; i >= 0; i--) {
+			Block next = branch.get(i);
+			this.sideBlocks.remove(next.hash);
+			this.sideHeights.remove(next.hash);
+			this.push(next);
+		}
+		System.out.println("Chain reorganized at height " + h + " (" + branch.size() + " new blocks)");
+	}
+
+	// Method to put a block on top of the main chain: its header and body go in the table, and the body is counted in the cache
+	private void push(Block b) {
+		String body = b.data == null ? "null" : b.data;  // null data is hashed (and sent) as "null"
+		this.bodies.put(this.mainChain.size(), body);
+		this.mainChain.add(Block.fromHex(b.hash), b.timestamp, b.nonce, body);
+	}
+
+	// Method to publish a snapshot of the main chain as it is now
+	private void publish() {
+		this.snapshot = new ChainSnapshot(++this.version, new HeaderTable(this.mainChain), this);
+	}
+
+	// Method to drop bodies from memory until the cache is back within its budget
+	private void trim() {
+		this.bodies.trim(this.stored, h -> this.mainChain.setBody(h, null));
+	}
+
+	// Method to get the total work from genesis up to a height
+	private long work(int height) {
+		return this.blockWork * height;
+	}
+
+	// Method to put a block in the orphan pool, throwing out the oldest orphan if the pool is full
+	private void addOrphan(Block b) {
+		if (this.orphans.size() >= this.maxOrphans) {
+			Iterator<Block> oldest = this.orphans.values().iterator();
+			Block evicted = oldest.next();
+			oldest.remove();
+			List<Block> siblings = this.orphansByParent.get(evicted.previousHash);
+			siblings.remove(evicted);
+			if (siblings.isEmpty()) {
+				this.orphansByParent.remove(evicted.previousHash);
+			}
+		}
+		this.orphans.put(b.hash, b);
+		this.orphansByParent.computeIfAbsent(b.previousHash, k -> new ArrayList<>()).add(b);
+	}
+
+	// Method to check if the main chain has the given hash at the given height
+	private boolean contains(String hash, int height) {
+		return height >= 0 && height < this.mainChain.size() && this.mainChainHeight(hash) == height;
+	}
+
+	// Method to find a hash on the main chain, or -1 if it isn't there (or isn't a well-formed hash at all)
+	private int mainChainHeight(String hash) {
+		return Block.isHash(hash) ? this.mainChain.indexOf(Block.fromHex(hash)) : -1;
+	}
+
+	// Method to tell the store that the block log now holds the first stored blocks of the main chain,
+	// so their bodies can be dropped from memory and read back from the log later
+	// The log holds the main chain as it was in the written snapshot, and a reorg since then may have replaced some of
+	// those blocks, so only the heights where the two still agree count as stored
+	public void markStored(BlockLog log, ChainSnapshot written, int stored) {
+		this.lock.lock();
+		try {
+			int agreed = Math.min(Math.min(stored, written.size()), this.mainChain.size());
+			// Each hash commits to the one before it, so once the top of the two agrees, everything below it does too
+			while (agreed > 0 && !this.mainChain.hashHex(agreed - 1).equals(written.getHash(agreed - 1))) {
+				agreed--;
+			}
+			this.log = log;
+			this.stored = agreed;
+			this.trim();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Method to get the latest snapshot of the main chain; reading it never waits on (or blocks) the writer
+	public ChainSnapshot snapshot() {
+		return this.snapshot;
+	}
+
+	// Method to get the last block of the main chain
+	// The main chain never gets shorter (a reorg only switches to a longer branch), so the latest snapshot's last height
+	// is still on it
+	public Block tip() {
+		return this.get(this.size() - 1);
+	}
+
+	// Method to get the block at a height on the main chain, reading its body back from the log if it's not cached
+	public Block get(int height) {
+		Block header;
+		this.lock.lock();
+		try {
+			if (height < 0 || height >= this.mainChain.size()) {
+				throw new IndexOutOfBoundsException("Height " + height + " is not on the main chain");
+			}
+			header = this.header(height);
+		} finally {
+			this.lock.unlock();
+		}
+		return this.withBody(height, header);
+	}
+
+	// Method to get the block at a height with whatever body is in memory (null if it was dropped); call with the lock held
+	private Block header(int height) {
+		String body = this.mainChain.body(height);
+		if (body != null) {
+			this.bodies.touch(height);
+		}
+		String previousHash = height == 0 ? "0" : this.mainChain.hashHex(height - 1);
+		return new Block(body, this.mainChain.timestamp(height), this.mainChain.nonce(height), previousHash, this.mainChain.hashHex(height));
+	}
+
+	// Method to fill in a body that was dropped from memory, reading it from the log after the lock's been let go, then
+	// putting it back in the cache if the main chain still has that block
+	private Block withBody(int height, Block header) {
+		if (header.data != null) {
+			return header;
+		}
+		String body = this.loadBody(height, header.hash);
+		this.lock.lock();
+		try {
+			if (height < this.mainChain.size() && this.mainChain.body(height) == null && header.hash.equals(this.mainChain.hashHex(height))) {
+				this.mainChain.setBody(height, body);
+				this.bodies.put(height, body);
+				this.trim();
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		return new Block(body, header.timestamp, header.nonce, header.previousHash, header.hash);
+	}
+
+	// Method to read a body that's been dropped from memory back from the log, without taking the lock if it can help it
+	// If the log has moved on since the header was read (after a reorg), the block is looked up among the side branches
+	String loadBody(int height, String hash) {
+		BlockLog log = this.log;
+		try {
+			if (log != null && height < log.size() && hash.equals(log.getHash(height))) {
+				Block b = log.read(height);
+				if (hash.equals(b.hash)) {
+					return b.data;
+				}
+			}
+		} catch (IOException | IndexOutOfBoundsException e) {
+			// The log was truncated while we were reading it, so fall back to the store
+		}
+		this.lock.lock();
+		try {
+			Block side = this.sideBlocks.get(hash);
+			int main = this.mainChainHeight(hash);
+			String body = side != null ? side.data : main != -1 ? this.mainChain.body(main) : null;
+			if (body == null) {
+				throw new IllegalStateException("Block " + hash + " at height " + height + " is no longer available");
+			}
+			return body;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Method to get the hash of the block at a height on the main chain
+	public String getHash(int height) {
+		this.lock.lock();
+		try {
+			return this.mainChain.hashHex(height);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Method to look up any connected block (on any branch) by its hash, or null if we don't have it
+	public Block getBlock(String hash) {
+		int height;
+		Block header;
+		this.lock.lock();
+		try {
+			height = this.mainChainHeight(hash);
+			if (height == -1) {
+				return this.sideBlocks.get(hash);
+			}
+			header = this.header(height);
+		} finally {
+			this.lock.unlock();
+		}
+		return this.withBody(height, header);
+	}
+
+	// Method to get the height of any connected block by its hash, or -1 if we don't have it
+	public int getHeight(String hash) {
+		this.lock.lock();
+		try {
+			int height = this.mainChainHeight(hash);
+			if (height != -1) {
+				return height;
+			}
+			Integer side = this.sideHeights.get(hash);
+			return side == null ? -1 : side;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Method to check if we already have a block, either connected or waiting in the orphan pool
+	public boolean has(String hash) {
+		this.lock.lock();
+		try {
+			return this.getHeight(hash) != -1 || this.orphans.containsKey(hash);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Method to check if a block is waiting in the orphan pool for its parent
+	public boolean isOrphan(String hash) {
+		this.lock.lock();
+		try {
+			return this.orphans.containsKey(hash);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Method to get the number of blocks on the main chain (including genesis)
+	public int size() {
+		return this.snapshot.size();
+	}
+
+	// Method to get how many blocks are waiting for their parent
+	public int orphanCount() {
+		this.lock.lock();
+		try {
+			return this.orphans.size();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Method to get how many block bodies are being kept in memory
+	public int cachedBodies() {
+		this.lock.lock();
+		try {
+			return this.bodies.size();
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Method to get up to count blocks of the main chain starting at a height (empty if we don't have that height)
+	// Like the other read-only methods below, this reads the latest snapshot, so it doesn't wait on the lock
+	public List<Block> range(int from, int count) {
+		return this.snapshot.range(from, count);
+	}
+
+	// Method to get the hashes of up to count blocks of the main chain starting at a height
+	public List<String> hashes(int from, int count) {
+		return this.snapshot.hashes(from, count);
+	}
+
+	// Method to get a copy of the main chain, e.g. to send to a peer
+	public ArrayList<Block> toList() {
+		return this.snapshot.toList();
+	}
+}
@@ -0,0 +1,364 @@
+package blockchain;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// ChainSync downloads the chain for a node that's just joining the network.
+// First it fetches the hash of every block (the headers) from one peer, a batch at a time; the first batch is asked of every
+// peer, and whichever answers first is the one the rest of the headers come from. Then it splits the heights into
+// ranges and pulls the blocks for each range from all of the peers that answered at once, checking each block against the headers and
+// against the block before it as the ranges come in. If a peer disconnects or sends a bad range, that range is asked
+// for again from another peer, so the download picks up from the last verified height instead of starting over.
+// A peer that sits on a request for longer than REQUEST_TIMEOUT_MS is treated the same as one that disconnected.
+public class ChainSync {
+	public static final int HEADER_BATCH = 2000;  // Most hashes asked for in one GET_HEADERS
+	public static final int BLOCK_BATCH = 500;    // Most blocks asked for in one GET_BLOCKS
+	public static final int MAX_ATTEMPTS = 3;     // How many times a range is retried before we settle for what we have
+	public static final int REQUEST_TIMEOUT_MS = 30000;  // How long a peer has to answer a request before we stop waiting for it
+
+	private BCNode node;
+	private List<MessageWriter> peers;                               // Peers we can still pull from
+	private MessageWriter headerPeer;                                // The peer we're getting headers from (null until one answers)
+	private Set<MessageWriter> answered = new HashSet<>();           // Peers that have answered a GET_HEADERS (the only ones given ranges)
+	private long headersAsked;                                       // When the last GET_HEADERS was sent
+	private List<String> headers = new ArrayList<>();                // The hash of every block from height base up
+	private int base;                                                // The first height in headers (below it, the hashes come from verified)
+	private boolean haveHeaders;                                     // Set once every header is in and we're fetching blocks
+	private int headersFrom;                                         // The height the last GET_HEADERS started at
+	private boolean checkedTip;                                      // Set once we've checked the peer's chain has our local tip on it
+	private ChainStore verified;                                      // Blocks checked so far, by height (this is the chain we're building; null until genesis is in)
+	private TreeMap<Integer, List<Block>> arrived = new TreeMap<>(); // Ranges that came in ahead of the verified height, by first height
+	private Map<MessageWriter, Integer> outstanding = new HashMap<>();  // The first height of the range each peer is fetching
+	private ArrayDeque<Integer> todo = new ArrayDeque<>();           // First heights of the ranges nobody is fetching yet
+	private Map<Integer, Integer> attempts = new HashMap<>();        // How many times each range has been asked for
+	private Map<MessageWriter, Long> sentAt = new HashMap<>();       // When each peer was sent the range it's fetching
+	private CompletableFuture<ChainStore> done = new CompletableFuture<>();  // Completed with the verified chain
+
+	// Constructor to create a sync for a node that will pull from the given peers
+	public ChainSync(BCNode node, List<MessageWriter> peers) {
+		this(node, peers, null);
+	}
+
+	// Constructor to create a sync that starts from a chain we already have (like one loaded from disk),
+	// so only the missing tail gets downloaded (local can be null)
+	public ChainSync(BCNode node, List<MessageWriter> peers, ChainStore local) {
+		this.node = node;
+		this.peers = new ArrayList<>(peers);
+		this.verified = local;
+		this.base = this.verifiedCount();
+	}
+
+	// Method to run the sync, blocking until the chain has been downloaded and verified
+	public ChainStore run() throws IOException {
+		synchronized (this) {
+			this.requestHeaders();
+		}
+		try {
+			while (true) {
+				try {
+					return this.done.get(500, TimeUnit.MILLISECONDS);
+				} catch (TimeoutException e) {
+					this.checkTimeouts();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while syncing the chain");
+		} catch (ExecutionException e) {
+			throw new IOException("Couldn't sync the chain: " + e.getCause().getMessage());
+		}
+	}
+
+	// Method to handle a batch of headers from a peer
+	public synchronized void onHeaders(MessageWriter from, Message m) {
+		if (!this.peers.contains(from)) {
+			return;
+		}
+		if (this.answered.add(from) && this.haveHeaders) {
+			this.requestBlocks(from);  // A slow peer answered in the end, so it can help fetch blocks
+			return;
+		}
+		if (this.haveHeaders || m.height != this.headersFrom) {
+			return;  // Not the headers we asked for
+		}
+		if (this.headerPeer == null) {
+			this.headerPeer = from;  // The first peer to answer is the one we'll get the rest of the headers from
+		} else if (from != this.headerPeer) {
+			return;  // Someone else answered first
+		}
+		List<String> hashes = m.hashes;
+		if (!this.checkedTip && this.headersFrom < this.headerCount()) {
+			// The first batch starts at our local tip, to check the peer's chain builds on it
+			this.checkedTip = true;
+			if (hashes.isEmpty()) {
+				this.finish();  // The peer's chain is shorter than ours, so there's nothing to get
+				return;
+			} else if (!hashes.get(0).equals(this.header(this.headersFrom))) {
+				// The peer's chain doesn't have our tip on it, so start again from genesis
+				System.out.println("Local chain isn't on the peer's chain, syncing from genesis");
+				this.verified = null;
+				this.headers.clear();
+				this.base = 0;
+				this.requestHeaders();
+				return;
+			}
+			hashes = hashes.subList(1, hashes.size());
+		}
+		this.headers.addAll(hashes);
+		if (m.hashes.size() == HEADER_BATCH) {
+			this.requestHeaders();  // There might be more
+		} else if (this.headerCount() == 0) {
+			this.done.completeExceptionally(new IOException("Peer has no chain"));
+		} else {
+			// We have every hash, so plan the block ranges and get every peer fetching one
+			this.haveHeaders = true;
+			System.out.println("Syncing " + this.headerCount() + " blocks from " + this.answered.size() + " peers");
+			for (int h = this.verifiedCount(); h < this.headerCount(); h += BLOCK_BATCH) {
+				this.todo.add(h);
+			}
+			for (MessageWriter peer : new ArrayList<>(this.peers)) {
+				this.requestBlocks(peer);
+			}
+			this.finishIfDone();  // In case we already had every block
+		}
+	}
+
+	// Method to handle a range of blocks from a peer
+	public synchronized void onBlocks(MessageWriter from, Message m) {
+		Integer expected = this.outstanding.get(from);
+		if (expected == null || expected != m.height) {
+			return;  // Not a range we asked this peer for
+		}
+		this.outstanding.remove(from);
+		this.sentAt.remove(from);
+		int asked = this.rangeEnd(m.height) - m.height;
+		if (m.blocks.size() > asked) {
+			m.blocks = m.blocks.subList(0, asked);  // Ignore anything past the range we asked for
+		}
+		if (m.blocks.isEmpty()) {
+			this.retry(m.height);  // The peer doesn't have these blocks (maybe its chain changed)
+		} else {
+			this.arrived.put(m.height, m.blocks);
+			this.apply();
+		}
+		this.requestBlocks(from);
+		this.finishIfDone();
+	}
+
+	// Method to handle a peer disconnecting: whatever it was fetching goes back on the list for someone else
+	public synchronized void onPeerLost(MessageWriter peer) {
+		if (!this.peers.remove(peer)) {
+			return;
+		}
+		this.answered.remove(peer);
+		Integer range = this.outstanding.remove(peer);
+		this.sentAt.remove(peer);
+		if (range != null) {
+			this.todo.addFirst(range);
+			for (MessageWriter other : new ArrayList<>(this.peers)) {
+				if (!this.outstanding.containsKey(other)) {
+					this.requestBlocks(other);
+				}
+			}
+		}
+		if (peer == this.headerPeer && !this.haveHeaders) {
+			this.requestHeaders();  // Carry on getting headers from another peer, from where we got to
+		}
+		this.finishIfDone();
+	}
+
+	// Method to check whether the sync is still running
+	public boolean isDone() {
+		return this.done.isDone();
+	}
+
+	// Method to ask for the next batch of headers: from the peer we're getting them from, or, if we don't have one
+	// (at the start, or after it was lost), from every peer, to see who answers first
+	private void requestHeaders() {
+		if (this.peers.isEmpty()) {
+			this.finish();
+			return;
+		}
+		if (!this.peers.contains(this.headerPeer)) {
+			this.headerPeer = null;
+		}
+		this.headersFrom = this.headerCount();
+		if (!this.checkedTip && this.headersFrom > 0) {
+			this.headersFrom--;  // Overlap our tip so we can check the peer has it
+		}
+		this.headersAsked = System.currentTimeMillis();
+		Message request = Message.getHeaders(this.headersFrom, HEADER_BATCH);
+		if (this.headerPeer != null) {
+			this.send(this.headerPeer, request);
+		} else {
+			for (MessageWriter peer : new ArrayList<>(this.peers)) {
+				this.send(peer, request);
+			}
+		}
+	}
+	
+	// Method to give up on peers that haven't answered a request in REQUEST_TIMEOUT_MS, as if they'd disconnected,
+	// so one hung peer can't stall the whole sync
+	private synchronized void checkTimeouts() {
+		long now = System.currentTimeMillis();
+		if (!this.haveHeaders && now - this.headersAsked > REQUEST_TIMEOUT_MS) {
+			if (this.headerPeer == null) {
+				System.out.println("No peer answered our request for headers");
+				this.finish();  // Nobody answered at all, so keep whatever chain we started with
+				return;
+			}
+			System.out.println("Peer " + this.headerPeer.peerName() + " stopped sending headers, trying the others");
+			this.onPeerLost(this.headerPeer);
+		}
+		for (Map.Entry<MessageWriter, Long> request : new ArrayList<>(this.sentAt.entrySet())) {
+			if (now - request.getValue() > REQUEST_TIMEOUT_MS) {
+				System.out.println("Peer " + request.getKey().peerName() + " didn't send blocks from height " + this.outstanding.get(request.getKey()) + " in time");
+				this.onPeerLost(request.getKey());
+			}
+		}
+	}
+
+	// Method to give an idle peer the next range to fetch
+	private void requestBlocks(MessageWriter peer) {
+		if (this.todo.isEmpty() || !this.answered.contains(peer)) {
+			return;
+		}
+		int start = this.todo.poll();
+		int count = this.rangeEnd(start) - start;
+		this.outstanding.put(peer, start);
+		this.sentAt.put(peer, System.currentTimeMillis());
+		this.attempts.merge(start, 1, Integer::sum);
+		this.send(peer, Message.getBlocks(start, count));
+	}
+
+	// Method to check every range that lines up with the verified height, in order
+	private void apply() {
+		while (!this.arrived.isEmpty() && this.arrived.firstKey() == this.verifiedCount()) {
+			int start = this.arrived.firstKey();
+			List<Block> blocks = this.arrived.remove(start);
+			int good = this.verify(start, blocks);
+			if (good > 0) {
+				if (this.verified == null) {
+					this.verified = ChainStore.fromList(blocks.subList(0, good), BCNode.DIFFICULTY);
+				} else {
+					this.verified.append(blocks.subList(0, good));
+				}
+				this.save();
+			}
+			if (good < blocks.size() || start + blocks.size() < this.rangeEnd(start)) {
+				// Part of the range was bad or missing, so ask for the rest again
+				this.retry(this.verifiedCount());
+				return;
+			}
+		}
+	}
+
+	// Method to write the verified blocks to the node's log as they come in, so the chain we're building
+	// doesn't have to keep every body in memory until the sync is over
+	private void save() {
+		if (this.node.log == null) {
+			return;
+		}
+		try {
+			this.node.log.syncWith(this.verified);
+		} catch (IOException e) {
+			e.printStackTrace();  // The bodies just stay in memory; the node saves the chain again once the sync is done
+		}
+	}
+
+	// Method to check a range of blocks, returning how many from the start of it are good
+	private int verify(int start, List<Block> blocks) {
+		// First make sure they're the blocks the headers said would be here (just comparing hashes, so it's quick)
+		int good = 0;
+		while (good < blocks.size() && start + good < this.headerCount() && this.header(start + good).equals(blocks.get(good).hash)) {
+			good++;
+		}
+		if (good == 0) {
+			return 0;
+		}
+		// Then check hashes and links on every core; the genesis block is taken on trust
+		int bad;
+		if (start == 0) {
+			bad = ChainValidator.firstInvalid(blocks.subList(0, good), BCNode.DIFFICULTY);
+		} else {
+			bad = ChainValidator.firstInvalid(this.verified.get(start - 1), blocks.subList(0, good), BCNode.DIFFICULTY);
+		}
+		return bad == -1 ? good : bad;
+	}
+
+	// Method to get where the range holding start ends; ranges always end on a multiple of BLOCK_BATCH,
+	// so a retried partial range never overlaps the one after it
+	private int rangeEnd(int start) {
+		return Math.min((start / BLOCK_BATCH + 1) * BLOCK_BATCH, this.headerCount());
+	}
+
+	// Method to get how many heights we have hashes for
+	private int headerCount() {
+		return this.base + this.headers.size();
+	}
+
+	// Method to get the hash at a height, from the chain we started with or from the headers we downloaded
+	private String header(int height) {
+		return height < this.base ? this.verified.getHash(height) : this.headers.get(height - this.base);
+	}
+
+	// Method to get how many blocks have been verified so far
+	private int verifiedCount() {
+		return this.verified == null ? 0 : this.verified.size();
+	}
+
+	// Method to put a range back on the list, unless it's already failed too many times
+	private void retry(int start) {
+		if (this.attempts.getOrDefault(start, 0) >= MAX_ATTEMPTS) {
+			System.out.println("Giving up on blocks from height " + start + ", keeping the " + this.verifiedCount() + " verified blocks");
+			this.todo.clear();
+			this.arrived.clear();
+			this.headers = new ArrayList<>(this.headers.subList(0, this.verifiedCount() - this.base));
+			return;
+		}
+		this.todo.addFirst(start);
+		for (MessageWriter peer : new ArrayList<>(this.peers)) {
+			if (!this.outstanding.containsKey(peer)) {
+				this.requestBlocks(peer);
+			}
+		}
+	}
+
+	// Method to finish once there's nothing left to fetch
+	private void finishIfDone() {
+		if (this.headerCount() > 0 && this.verifiedCount() == this.headerCount()) {
+			this.finish();
+		} else if (this.peers.isEmpty() || (this.haveHeaders && this.answered.isEmpty())) {
+			this.finish();  // Nobody left to ask, so keep what we have
+		}
+	}
+
+	// Method to hand the verified chain back to run()
+	private void finish() {
+		if (this.verified == null) {
+			this.done.completeExceptionally(new IOException("No peer could send a chain"));
+		} else {
+			this.done.complete(this.verified);
+		}
+	}
+
+	// Method to send a request to a peer, treating a failed send like a lost peer
+	private void send(MessageWriter peer, Message m) {
+		try {
+			peer.write(m);
+		} catch (IOException e) {
+			this.onPeerLost(peer);
+		}
+	}
+}
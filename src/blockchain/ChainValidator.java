@@ -0,0 +1,97 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// ChainValidator checks a whole chain (or a big piece of one) on every core at once.
+// Each block's own hash and difficulty can be checked on its own, and the link to its parent only needs the block
+// before it, so the chain is split into ranges on a ForkJoinPool and each range is checked independently.
+// The result is the first invalid height, so the caller knows how much of the chain it can keep.
+public class ChainValidator {
+	public static final int THRESHOLD = 256;  // Ranges this small are checked on one thread instead of being split further
+	public static final int BATCH = 16384;    // How many blocks of a chain are loaded and checked at a time
+
+	// Method to find the first invalid block in a chain, or -1 if the whole chain is valid
+	// The block at index 0 (like the genesis block) is trusted
+	public static int firstInvalid(List<Block> chain, int N) {
+		if (chain.size() < 2) {
+			return -1;
+		}
+		AtomicInteger firstBad = new AtomicInteger(Integer.MAX_VALUE);
+		ForkJoinPool.commonPool().invoke(new RangeCheck(chain, 1, chain.size(), N, firstBad));
+		int bad = firstBad.get();
+		return bad == Integer.MAX_VALUE ? -1 : bad;
+	}
+
+	// Method to find the first invalid block in a list of blocks that should follow on from previous,
+	// returning its index in blocks, or -1 if they're all valid
+	public static int firstInvalid(Block previous, List<Block> blocks, int N) {
+		List<Block> chain = new ArrayList<>(blocks.size() + 1);
+		chain.add(previous);
+		chain.addAll(blocks);
+		int bad = firstInvalid(chain, N);
+		return bad == -1 ? -1 : bad - 1;
+	}
+
+	// Method to find the first invalid height in a chain store, or -1 if the whole main chain is valid
+	// The chain is loaded and checked a batch at a time, so old block bodies don't all have to be in memory at once.
+	// It checks one snapshot of the chain, so blocks can still be added while it runs
+	public static int firstInvalid(ChainStore store, int N) {
+		ChainSnapshot chain = store.snapshot();
+		Block previous = null;
+		for (int from = 0; from < chain.size(); from += BATCH) {
+			List<Block> batch = chain.range(from, BATCH);
+			int bad = previous == null ? firstInvalid(batch, N) : firstInvalid(previous, batch, N);
+			if (bad != -1) {
+				return from + bad;
+			}
+			previous = batch.get(batch.size() - 1);
+		}
+		return -1;
+	}
+
+	// Method to check a single block against the block before it
+	public static boolean isValid(Block previous, Block b, int N) {
+		return b.previousHash != null && b.previousHash.equals(previous.hash) && b.hasValidHash(N);
+	}
+
+	// The fork/join task: split the range in half until it's small, then check it block by block
+	private static class RangeCheck extends RecursiveAction {
+		private static final long serialVersionUID = 1L;  // Tasks are never serialized, but RecursiveAction is Serializable
+		private transient List<Block> chain;
+		private int from;              // First index to check
+		private int to;                // One past the last index to check
+		private int N;
+		private AtomicInteger firstBad;  // The lowest invalid index found so far (shared by every task)
+
+		RangeCheck(List<Block> chain, int from, int to, int N, AtomicInteger firstBad) {
+			this.chain = chain;
+			this.from = from;
+			this.to = to;
+			this.N = N;
+			this.firstBad = firstBad;
+		}
+
+		@Override
+		protected void compute() {
+			if (this.from >= this.firstBad.get()) {
+				return;  // Something earlier is already invalid, so this range doesn't matter
+			}
+			if (this.to - this.from <= THRESHOLD) {
+				for (int i = this.from; i < this.to && i < this.firstBad.get(); i++) {
+					if (!isValid(this.chain.get(i - 1), this.chain.get(i), this.N)) {
+						this.firstBad.accumulateAndGet(i, Math::min);
+						return;
+					}
+				}
+				return;
+			}
+			int mid = (this.from + this.to) >>> 1;
+			invokeAll(new RangeCheck(this.chain, this.from, mid, this.N, this.firstBad),
+					new RangeCheck(this.chain, mid, this.to, this.N, this.firstBad));
+		}
+	}
+}
@@ -1,8 +1,6 @@
 package blockchain;
 
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
@@ -13,12 +11,12 @@ public class ConnectionHandler implements Runnable {
     public ServerSocket ss;                     // Server socket for listening to incoming connections
     
     private List<Socket> nodeSockets;           // List of sockets for each connected node
-    private List<ObjectInputStream> nodeInputStreams;  // List of input streams for each connected node
-    private List<ObjectOutputStream> nodeOutputStreams; // List of output streams for each connected node
+    private List<MessageReader> nodeInputStreams;  // List of input streams for each connected node
+    private List<MessageWriter> nodeOutputStreams; // List of output streams for each connected node
     private int numberOfConnections;            // Keeps track of the number of active connections
 
     // Constructor to initialize the ConnectionHandler with node, server socket, and list of sockets and streams
-    public ConnectionHandler(BCNode node, ServerSocket ss, List<Socket> nodeSockets, List<ObjectInputStream> nodeInputStreams, List<ObjectOutputStream> nodeOutputStreams, int numberOfConnections) {
+    public ConnectionHandler(BCNode node, ServerSocket ss, List<Socket> nodeSockets, List<MessageReader> nodeInputStreams, List<MessageWriter> nodeOutputStreams, int numberOfConnections) {
         this.node = node;
         this.ss = ss;
         this.nodeSockets = nodeSockets;
@@ -35,41 +33,60 @@ public class ConnectionHandler implements Runnable {
                 // Accept a new connection from a peer node
                 Socket s = ss.accept();
                 
-                // Create input and output streams to handle communication with the connected node
-                ObjectInputStream in = new ObjectInputStream(s.getInputStream());
-                ObjectOutputStream out = new ObjectOutputStream(s.getOutputStream());
-                
-                // Add the socket and its streams to the respective lists for tracking all connections
-                this.nodeSockets.add(s);
-                this.nodeInputStreams.add(in);
-                this.nodeOutputStreams.add(out);
-                
-                // Read a string input from the connected node to determine what action to take
-                String input = (String) in.readObject();
-                
-                // If the node requests the blockchain, send the chain to it
-                if (input.equals("Chain Requested")) {
-                    out.writeObject(this.node.chain);
-                    out.reset();  // Reset the output stream to ensure the object is written fresh
-                }
-
-                // Create a new ReadHandler to handle incoming data from this node
-                ReadHandler rh = new ReadHandler(this.node, in, out, s, this.numberOfConnections);
-                
-                // Start a new thread for handling the incoming data from this connection
-                Thread t = new Thread(rh);
-                t.start();
+                // Give the peer a thread of its own (from the node, so a virtual one in VIRTUAL mode) for its handshake
+                // and everything it sends after, so a slow handshake never holds up accepting the next peer
+                int connectionNumber = this.numberOfConnections;
+                this.node.startPeerThread("peer-" + s.getPort(), () -> this.serve(s, connectionNumber));
                 
                 // Increment the number of connections
                 this.numberOfConnections++;
                 
             } catch (IOException e) {
+                if (ss.isClosed()) {
+                    return;  // The node is shutting down
+                }
                 // Catch and handle IO-related exceptions
                 e.printStackTrace();
-            } catch (ClassNotFoundException e) {
-                // Catch and handle issues with reading an object
-                e.printStackTrace();
             }
         }
     }
+
+    // Method to read a new peer's handshake, then handle everything it sends until it disconnects
+    private void serve(Socket s, int connectionNumber) {
+        try {
+            // Create an input stream to handle communication with the connected node
+            MessageReader in = new MessageReader(s.getInputStream());
+            
+            // Read the handshake message from the connected node to determine what action to take
+            // Only wait so long for it, so a peer that connects and says nothing doesn't hang on to its thread and socket
+            Message input;
+            s.setSoTimeout(BCNode.HANDSHAKE_TIMEOUT_MS);
+            try {
+                input = in.read();
+            } catch (IOException e) {
+                System.out.println("No handshake from new peer, closing the connection");
+                s.close();
+                return;
+            }
+            s.setSoTimeout(0);  // From here on, BCNode's heartbeat checks that the peer is alive
+            
+            // Now it's a real peer, so create its output queue and add the socket and its streams to the
+            // respective lists for tracking all connections (through the node, so it can count the connection's bytes too)
+            MessageWriter out = new QueuedWriter(s, QueuedWriter.DEFAULT_CAPACITY, this.node.threads);
+            this.node.addNode(s, in, out);
+            
+            // If the node requests the blockchain, send the chain to it
+            // (from a snapshot, so blocks being added meanwhile can't change it halfway through)
+            if (input.type == Protocol.CHAIN_REQUEST) {
+                out.write(Message.chain(this.node.chain.snapshot().toList()));
+            }
+
+            // Handle incoming data from this node on this same thread, until it disconnects
+            new ReadHandler(this.node, in, out, s, connectionNumber).run();
+            
+        } catch (IOException e) {
+            // Catch and handle IO-related exceptions (including a peer sending a bad handshake)
+            e.printStackTrace();
+        }
+    }
 }
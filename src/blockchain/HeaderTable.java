@@ -0,0 +1,207 @@
+package blockchain;
+
+import java.util.Arrays;
+
+// A HeaderTable holds the headers of the main chain in a handful of primitive arrays indexed by height, instead of
+// one Block object (with two 64-character hex strings) per height:
+//   hashes: 32 raw bytes per height, timestamps: a long per height, nonces: an int per height
+// plus a slot per height for the block's body while it's in memory (null once it's been dropped to save space).
+// The previous hash isn't stored, because on the main chain it's just the hash one height down.
+// A small open-addressing table maps a hash back to its height, so lookups by hash don't need a HashMap entry per block.
+// All in all a header costs about 60 bytes of heap.
+// The arrays are split into fixed-size chunks, so a read-only copy (see the copy constructor) only has to copy the list of
+// chunks. Adding blocks only writes past the end of every copy, and a truncate copies the chunk it cuts into before
+// anything is written there again, so a copy never sees a header change under it.
+// The table isn't thread-safe; the ChainStore is the only thing that writes to it.
+public class HeaderTable {
+	private static final int CHUNK_BITS = 12;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;  // Heights per chunk
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	private static final int INITIAL_SLOTS = 2048;
+
+	private byte[][] hashes = new byte[16][];     // The hash of every block, back to back, a chunk at a time
+	private long[][] timestamps = new long[16][];
+	private int[][] nonces = new int[16][];
+	private String[][] bodies = new String[16][];  // The data of every block that's still in memory
+	private int size;                              // How many heights are in the table
+	private int[] slots;                           // The hash index: height + 1 in each used slot, 0 if empty (null in a read-only copy)
+
+	// Constructor to create an empty table
+	public HeaderTable() {
+		this.slots = new int[INITIAL_SLOTS];
+	}
+
+	// Copy constructor to make a read-only view of a table as it is now, sharing its chunks
+	// The copy has no hash index, so indexOf can't be used on it
+	public HeaderTable(HeaderTable other) {
+		int chunks = (other.size + CHUNK_MASK) >> CHUNK_BITS;
+		this.hashes = Arrays.copyOf(other.hashes, chunks);
+		this.timestamps = Arrays.copyOf(other.timestamps, chunks);
+		this.nonces = Arrays.copyOf(other.nonces, chunks);
+		this.bodies = Arrays.copyOf(other.bodies, chunks);
+		this.size = other.size;
+	}
+
+	// Method to get how many blocks are in the table
+	public int size() {
+		return this.size;
+	}
+
+	// Method to add the header (and body) for the next height
+	public void add(byte[] hash, long timestamp, int nonce, String body) {
+		int chunk = this.size >> CHUNK_BITS;
+		int i = this.size & CHUNK_MASK;
+		if (chunk == this.hashes.length) {
+			int chunks = this.hashes.length * 2;
+			this.hashes = Arrays.copyOf(this.hashes, chunks);
+			this.timestamps = Arrays.copyOf(this.timestamps, chunks);
+			this.nonces = Arrays.copyOf(this.nonces, chunks);
+			this.bodies = Arrays.copyOf(this.bodies, chunks);
+		}
+		if (this.hashes[chunk] == null) {
+			this.hashes[chunk] = new byte[CHUNK_SIZE * Block.HASH_SIZE];
+			this.timestamps[chunk] = new long[CHUNK_SIZE];
+			this.nonces[chunk] = new int[CHUNK_SIZE];
+			this.bodies[chunk] = new String[CHUNK_SIZE];
+		}
+		System.arraycopy(hash, 0, this.hashes[chunk], i * Block.HASH_SIZE, Block.HASH_SIZE);
+		this.timestamps[chunk][i] = timestamp;
+		this.nonces[chunk][i] = nonce;
+		this.bodies[chunk][i] = body;
+		this.size++;
+		if (this.size * 2 > this.slots.length) {
+			this.rehash(this.slots.length * 2);  // Keep the index at most half full so probes stay short
+		} else {
+			this.index(this.size - 1);
+		}
+	}
+
+	// Method to drop every header at or above a height (after a reorg)
+	public void truncate(int height) {
+		if (height >= this.size) {
+			return;
+		}
+		while (this.size > height) {
+			this.size--;
+			this.unindex(this.size);
+		}
+		// Read-only copies may still be using the chunks, so drop the ones past the end and copy the one we cut into
+		int chunk = height >> CHUNK_BITS;
+		if ((height & CHUNK_MASK) != 0) {
+			this.hashes[chunk] = this.hashes[chunk].clone();
+			this.timestamps[chunk] = this.timestamps[chunk].clone();
+			this.nonces[chunk] = this.nonces[chunk].clone();
+			this.bodies[chunk] = this.bodies[chunk].clone();
+			chunk++;
+		}
+		for (; chunk < this.hashes.length && this.hashes[chunk] != null; chunk++) {
+			this.hashes[chunk] = null;
+			this.timestamps[chunk] = null;
+			this.nonces[chunk] = null;
+			this.bodies[chunk] = null;
+		}
+	}
+
+	// Method to find the height of a hash, or -1 if it isn't in the table
+	public int indexOf(byte[] hash) {
+		int mask = this.slots.length - 1;
+		for (int i = slotOf(hash, 0) & mask; this.slots[i] != 0; i = (i + 1) & mask) {
+			int height = this.slots[i] - 1;
+			if (this.hashEquals(height, hash)) {
+				return height;
+			}
+		}
+		return -1;
+	}
+
+	// Method to get the hash at a height as raw bytes
+	public byte[] hash(int height) {
+		int from = (height & CHUNK_MASK) * Block.HASH_SIZE;
+		return Arrays.copyOfRange(this.hashes[height >> CHUNK_BITS], from, from + Block.HASH_SIZE);
+	}
+
+	// Method to get the hash at a height as a hex string
+	public String hashHex(int height) {
+		return Block.toHex(this.hash(height));
+	}
+
+	public long timestamp(int height) {
+		return this.timestamps[height >> CHUNK_BITS][height & CHUNK_MASK];
+	}
+
+	public int nonce(int height) {
+		return this.nonces[height >> CHUNK_BITS][height & CHUNK_MASK];
+	}
+
+	// Method to get the body at a height, or null if it's not in memory
+	public String body(int height) {
+		return this.bodies[height >> CHUNK_BITS][height & CHUNK_MASK];
+	}
+
+	// Method to put back (or drop, with null) the body at a height
+	// This is safe to do under a read-only copy, since the body is the same block's either way
+	public void setBody(int height, String body) {
+		this.bodies[height >> CHUNK_BITS][height & CHUNK_MASK] = body;
+	}
+
+	// Method to check if the hash at a height is the given hash
+	private boolean hashEquals(int height, byte[] hash) {
+		int from = (height & CHUNK_MASK) * Block.HASH_SIZE;
+		return Arrays.equals(this.hashes[height >> CHUNK_BITS], from, from + Block.HASH_SIZE, hash, 0, Block.HASH_SIZE);
+	}
+
+	// Method to pick a hash's home slot from its last 4 bytes
+	// (the first bytes are no good for this, since proof of work makes them zero)
+	private static int slotOf(byte[] hashes, int from) {
+		int i = from + Block.HASH_SIZE - 4;
+		int h = (hashes[i] & 0xFF) << 24 | (hashes[i + 1] & 0xFF) << 16 | (hashes[i + 2] & 0xFF) << 8 | (hashes[i + 3] & 0xFF);
+		return h ^ (h >>> 16);
+	}
+
+	// Method to get the home slot of the hash at a height
+	private int slotOf(int height) {
+		return slotOf(this.hashes[height >> CHUNK_BITS], (height & CHUNK_MASK) * Block.HASH_SIZE);
+	}
+
+	// Method to put a height in the hash index
+	private void index(int height) {
+		int mask = this.slots.length - 1;
+		int i = this.slotOf(height) & mask;
+		while (this.slots[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		this.slots[i] = height + 1;
+	}
+
+	// Method to take a height out of the hash index, shifting later entries back so no probe chain is broken
+	private void unindex(int height) {
+		int mask = this.slots.length - 1;
+		int i = this.slotOf(height) & mask;
+		while (this.slots[i] != height + 1) {
+			i = (i + 1) & mask;
+		}
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (this.slots[j] == 0) {
+				break;
+			}
+			int home = this.slotOf(this.slots[j] - 1) & mask;
+			// The entry at j can only move back to i if its home slot isn't between i and j
+			boolean between = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+			if (!between) {
+				this.slots[i] = this.slots[j];
+				i = j;
+			}
+		}
+		this.slots[i] = 0;
+	}
+
+	// Method to rebuild the hash index with a new number of slots
+	private void rehash(int capacity) {
+		this.slots = new int[capacity];
+		for (int h = 0; h < this.size; h++) {
+			this.index(h);
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package blockchain;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// A Histogram records how a value (like how long something took) is spread out, cheaply enough to call on every block.
+// Values go into power-of-two buckets (0, 1, 2-3, 4-7, 8-15, ...), so percentiles are only accurate to within a factor
+// of two, but recording never locks or allocates and the histogram never grows. Negative values count as zero.
+public class Histogram {
+	private AtomicLongArray buckets = new AtomicLongArray(65);  // Bucket i holds values with i significant bits
+	private LongAdder count = new LongAdder();
+	private LongAdder sum = new LongAdder();
+	private LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	// Method to record one value
+	public void record(long value) {
+		if (value < 0) {
+			value = 0;
+		}
+		this.buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+		this.count.increment();
+		this.sum.add(value);
+		this.max.accumulate(value);
+	}
+
+	// Method to get how many values have been recorded
+	public long count() {
+		return this.count.sum();
+	}
+
+	// Method to get the total of every value recorded
+	public long sum() {
+		return this.sum.sum();
+	}
+
+	// Method to get the biggest value recorded
+	public long max() {
+		return this.max.get();
+	}
+
+	// Method to get (roughly) the value that p percent of values are at or below: the top of the bucket it falls in
+	public long percentile(double p) {
+		long total = this.count();
+		if (total == 0) {
+			return 0;
+		}
+		long rank = (long) Math.ceil(total * p / 100.0);
+		long seen = 0;
+		for (int i = 0; i < this.buckets.length(); i++) {
+			seen += this.buckets.get(i);
+			if (seen >= Math.max(rank, 1)) {
+				long top = i == 0 ? 0 : (i == 64 ? Long.MAX_VALUE : (1L << i) - 1);
+				return Math.min(top, this.max());
+			}
+		}
+		return this.max();
+	}
+}
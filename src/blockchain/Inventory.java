@@ -0,0 +1,143 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// The Inventory remembers the block hashes a node has seen or asked for recently, so that when several peers announce
+// the same block, it's only downloaded (and checked) once.
+// For every block that's been asked for but hasn't turned up yet, it also remembers which peers announced it. A request
+// that hasn't been answered after REQUEST_TIMEOUT_MS (because the peer disconnected, or the request or the reply was lost)
+// is sent again by the node's health check (see retries), to another peer that announced the block if there is one.
+// Only the most recent hashes are remembered; older ones are in the chain by then.
+public class Inventory {
+	public static final int DEFAULT_CAPACITY = 4096;     // How many hashes are remembered
+	public static final long REQUEST_TIMEOUT_MS = 2000;  // How long to wait for a block we asked for before asking someone else
+	public static final int MAX_REQUESTS = 5;            // How many times a block is asked for before we give up on it
+
+	private LinkedHashMap<String, Long> recent = new LinkedHashMap<>();  // Hash -> when we asked for it (or 0 if we already have it), oldest first
+	private Map<String, Request> requests = new HashMap<>();            // The blocks we've asked for and are still waiting on, by hash
+	private int capacity;
+	private long ignored;  // How many announcements we ignored because we already had (or had asked for) the block
+
+	// A block we're waiting on
+	private static class Request {
+		List<MessageWriter> announcers = new ArrayList<>();  // Every peer that announced it, in the order they did
+		MessageWriter asked;  // The peer we last asked
+		int count;            // How many times we've asked
+		long announced;       // When it was first announced to us (or first asked for as an orphan's parent)
+	}
+
+	// A request that has to be sent again: which block, and which peer to ask this time
+	public static class Retry {
+		public final String hash;
+		public final MessageWriter peer;
+
+		Retry(String hash, MessageWriter peer) {
+			this.hash = hash;
+			this.peer = peer;
+		}
+	}
+
+	// Constructor to create an inventory with the default size
+	public Inventory() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	// Constructor to create an inventory that remembers up to capacity hashes
+	public Inventory(int capacity) {
+		this.capacity = capacity;
+	}
+
+	// Method to decide whether to ask an announcing peer for a block: true the first time, and again only if the
+	// earlier request timed out. Asking is recorded, so the same block isn't requested from every peer that announces it,
+	// and the peer is remembered so the request can go to it if the first one goes unanswered
+	public synchronized boolean shouldRequest(String hash, MessageWriter from) {
+		Long requested = this.recent.get(hash);
+		long now = System.currentTimeMillis();
+		Request request = this.requests.get(hash);
+		if (request != null && !request.announcers.contains(from)) {
+			request.announcers.add(from);
+		}
+		if (requested != null && (requested == 0 || now - requested < REQUEST_TIMEOUT_MS)) {
+			this.ignored++;
+			return false;
+		}
+		this.remember(hash, now);
+		if (request == null) {
+			request = new Request();
+			request.announcers.add(from);
+			request.announced = now;
+			this.requests.put(hash, request);
+		}
+		request.asked = from;
+		request.count++;
+		return true;
+	}
+
+	// Method to record that we've got a block (whether or not it turned out to be valid), so announcements of it are ignored
+	// Returns when the block was first announced to us, or 0 if we weren't waiting on it (it was pushed to us, or it's
+	// already been seen), so the node can time how long it took to get here after the announcement
+	public synchronized long markSeen(String hash) {
+		this.remember(hash, 0L);
+		Request request = this.requests.remove(hash);
+		return request == null ? 0 : request.announced;
+	}
+
+	// Method to find the requests that have gone unanswered for REQUEST_TIMEOUT_MS and mark them as asked again.
+	// Each one goes to the next peer that announced the block (the same peer again if it's the only one), and a block
+	// that's been asked for MAX_REQUESTS times is given up on, so a later announcement starts over
+	public synchronized List<Retry> retries() {
+		List<Retry> retries = new ArrayList<>();
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<String, Request>> it = this.requests.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Request> e = it.next();
+			Long requested = this.recent.get(e.getKey());
+			Request request = e.getValue();
+			if (requested == null || requested == 0) {
+				it.remove();  // It turned up (or it's been forgotten)
+				continue;
+			}
+			if (now - requested < REQUEST_TIMEOUT_MS) {
+				continue;  // Still waiting
+			}
+			if (request.count >= MAX_REQUESTS || request.announcers.isEmpty()) {
+				it.remove();  // Give up
+				continue;
+			}
+			int next = (request.announcers.indexOf(request.asked) + 1) % request.announcers.size();
+			request.asked = request.announcers.get(next);
+			request.count++;
+			this.recent.put(e.getKey(), now);  // Updating an existing hash keeps its place, so this doesn't evict anything
+			retries.add(new Retry(e.getKey(), request.asked));
+		}
+		return retries;
+	}
+
+	// Method to forget a peer that's gone, so nothing is asked of it again
+	public synchronized void forget(MessageWriter peer) {
+		for (Request request : this.requests.values()) {
+			request.announcers.remove(peer);
+		}
+	}
+
+	// Method to get how many announcements have been ignored because we already had (or had asked for) the block
+	public synchronized long ignored() {
+		return this.ignored;
+	}
+
+	// Method to add or update a hash, forgetting the oldest one if the inventory is full
+	private void remember(String hash, long requested) {
+		this.recent.remove(hash);  // Re-inserting moves it to the newest end
+		if (this.recent.size() >= this.capacity) {
+			Iterator<String> oldest = this.recent.keySet().iterator();
+			this.requests.remove(oldest.next());
+			oldest.remove();
+		}
+		this.recent.put(hash, requested);
+	}
+}
@@ -0,0 +1,196 @@
+package blockchain;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// A LinkProxy sits in the middle of one simulated connection between two nodes (see Simulator): the node that connects
+// dials the proxy instead of the other node, and every frame going either way is held back by the link's latency,
+// and some are thrown away to simulate loss. Frames are read whole, so what's lost is a message, not part of the byte stream.
+// Only frames that relay blocks and entries are ever lost (BLOCK, INV, GET_DATA, ENTRIES); the handshake and the chain sync
+// always get through, since a node has no way to recover from losing those.
+// Each direction has a reader thread (which decides what's lost and when each frame is due) and a writer thread (which
+// delivers frames when they're due, in order, and tells the Simulator what each node received).
+// The proxy keeps accepting, so a node that loses the link can dial it again. A link can be cut for a while (see cut):
+// its connection is closed, and any dial that comes in before the outage is over is hung up on straight away.
+public class LinkProxy implements Runnable {
+	private Simulator sim;
+	int from;                    // The node that connects through the proxy
+	int to;                      // The node it's connecting to
+	private int targetPort;      // The port the to node listens on
+	private ServerSocket server; // Where the from node connects
+	private long seed;           // Seeds the loss in each direction, so a run can be repeated
+	private List<Socket> open = new ArrayList<>();  // Both ends of the connection the link is carrying now
+	private volatile long downUntil;   // The link refuses connections until this time (System.currentTimeMillis), after a cut
+	public volatile int connections;   // How many connections the link has carried
+	public volatile int refused;       // How many dials were hung up on during an outage
+	public volatile long restored;     // When the first connection after the last cut came through, or 0 if none has yet
+
+	// A frame waiting to be delivered
+	private static class Pending {
+		byte[] frame;  // null marks the end of the connection
+		long due;      // When to deliver it (System.currentTimeMillis)
+
+		Pending(byte[] frame, long due) {
+			this.frame = frame;
+			this.due = due;
+		}
+	}
+
+	// Constructor to create a proxy for the link from one node to another, and start waiting for the connection
+	public LinkProxy(Simulator sim, int from, int to, int targetPort, long seed) throws IOException {
+		this.sim = sim;
+		this.from = from;
+		this.to = to;
+		this.targetPort = targetPort;
+		this.seed = seed;
+		this.server = new ServerSocket(0);  // Any free port; the from node is told which one
+		Thread t = new Thread(this, "link-" + from + "-" + to);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	// Method to get the port the from node should connect to
+	public int port() {
+		return this.server.getLocalPort();
+	}
+
+	// Method to cut the link: close the connection it's carrying, and refuse new ones for the given number of milliseconds
+	public void cut(long outage) {
+		this.downUntil = System.currentTimeMillis() + outage;
+		this.restored = 0;
+		synchronized (this.open) {
+			for (Socket s : this.open) {
+				try {
+					s.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+			this.open.clear();
+		}
+	}
+
+	// Method to stop accepting connections
+	public void close() throws IOException {
+		this.server.close();
+	}
+
+	@Override
+	public void run() {
+		long connection = 0;
+		while (!this.server.isClosed()) {
+			try {
+				Socket a = this.server.accept();
+				if (System.currentTimeMillis() < this.downUntil) {
+					this.refused++;
+					a.close();  // The link is down
+					continue;
+				}
+				Socket b;
+				try {
+					b = new Socket("localhost", this.targetPort);
+				} catch (IOException e) {
+					a.close();  // The to node isn't there (yet, or any more), so the from node will have to dial again
+					continue;
+				}
+				a.setTcpNoDelay(true);
+				b.setTcpNoDelay(true);
+				synchronized (this.open) {
+					this.open.add(a);
+					this.open.add(b);
+				}
+				// Each connection gets its own loss sequence, still repeatable from the link's seed
+				this.pipe(a, b, this.to, new Random(this.seed + 2 * connection));
+				this.pipe(b, a, this.from, new Random(this.seed + 2 * connection + 1));
+				connection++;
+				if (this.downUntil != 0 && this.restored == 0) {
+					this.restored = System.currentTimeMillis();
+				}
+				this.connections++;
+			} catch (IOException e) {
+				if (!this.server.isClosed()) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	// Method to start passing frames from one socket to another, delivered to node dest
+	private void pipe(Socket in, Socket out, int dest, Random random) throws IOException {
+		LinkedBlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+		InputStream input = in.getInputStream();
+		OutputStream output = out.getOutputStream();
+		Thread reader = new Thread(() -> {
+			DataInputStream frames = new DataInputStream(input);
+			byte[] header = new byte[Protocol.HEADER_SIZE];
+			long lastDue = 0;
+			try {
+				while (true) {
+					frames.readFully(header);
+					int length = Protocol.checkHeader(header[0], header[1], header[2], ByteBuffer.wrap(header, 3, 4).getInt());
+					byte[] frame = Arrays.copyOf(header, Protocol.HEADER_SIZE + length);
+					frames.readFully(frame, Protocol.HEADER_SIZE, length);
+					boolean lost = isRelay(header[1]) && random.nextDouble() < this.sim.loss;
+					this.sim.onFrame(header[1], frame.length, lost);
+					if (lost) {
+						continue;
+					}
+					// Never deliver a frame before the one ahead of it, even with jitter (TCP doesn't reorder either)
+					long jitter = this.sim.jitter == 0 ? 0 : random.nextInt(2 * this.sim.jitter + 1) - this.sim.jitter;
+					lastDue = Math.max(lastDue, System.currentTimeMillis() + Math.max(0, this.sim.latency + jitter));
+					queue.add(new Pending(frame, lastDue));
+				}
+			} catch (IOException e) {
+				queue.add(new Pending(null, 0));  // The connection closed (or sent garbage), so close the other side once the rest is delivered
+			}
+		}, "link-" + this.from + "-" + this.to + "-read");
+		Thread writer = new Thread(() -> {
+			try {
+				while (true) {
+					Pending p = queue.take();
+					if (p.frame == null) {
+						break;
+					}
+					long wait = p.due - System.currentTimeMillis();
+					if (wait > 0) {
+						Thread.sleep(wait);
+					}
+					output.write(p.frame);
+					output.flush();
+					this.sim.onDelivered(dest, p.frame);
+				}
+			} catch (IOException | InterruptedException e) {
+				// The other side went away
+			}
+			try {
+				in.close();
+				out.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			synchronized (this.open) {
+				this.open.remove(in);
+				this.open.remove(out);
+			}
+		}, "link-" + this.from + "-" + this.to + "-write");
+		reader.setDaemon(true);
+		writer.setDaemon(true);
+		reader.start();
+		writer.start();
+	}
+
+	// Method to check if a frame type is one that can be lost
+	private static boolean isRelay(byte type) {
+		return type == Protocol.BLOCK || type == Protocol.INV || type == Protocol.GET_DATA || type == Protocol.ENTRIES;
+	}
+}
@@ -0,0 +1,131 @@
+package blockchain;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The Mempool holds entries that have been submitted (through the API or by a peer) but aren't in a block yet.
+// Entries are deduplicated by their Merkle leaf hash, both against each other and against entries that were recently
+// put in a block, and are handed out oldest first, as many as fit in a block. Any number of threads can submit at once.
+// Entries stay in the pool until a block holding them is added to the chain, so if mining a block is abandoned
+// (because another node's block won), its entries just go in the next one. If a reorg takes a block back off the chain,
+// its entries are put back (see restore).
+public class Mempool {
+	public static final int MAX_ENTRIES = 50000;           // Most entries waiting at once; submissions are refused after that
+	public static final int MAX_ENTRY_BYTES = 4096;        // Biggest entry accepted (UTF-8)
+	public static final int MAX_BLOCK_BYTES = 256 * 1024;  // Most entry data packed into one block
+	private static final int RECENT_COMMITTED = 50000;     // How many committed entry hashes are remembered, to stop them coming back
+
+	// What happened to a submitted entry
+	public enum Result {
+		ADDED,      // The entry is in the pool
+		DUPLICATE,  // The entry is already in the pool, or was recently put in a block
+		FULL,       // The pool is full, try again later
+		INVALID     // The entry is empty, too big, or has a line break in it
+	}
+
+	private ConcurrentHashMap<String, String> entries = new ConcurrentHashMap<>();  // Waiting entries, by hash
+	private ConcurrentLinkedQueue<String> order = new ConcurrentLinkedQueue<>();    // Hashes of waiting entries, oldest first
+	private AtomicInteger size = new AtomicInteger();                               // How many entries are waiting
+	private LinkedHashMap<String, Boolean> committed = new LinkedHashMap<>();       // Hashes of entries recently put in a block, oldest first
+
+	// Method to submit an entry
+	public Result add(String entry) {
+		if (entry == null || entry.isEmpty() || entry.contains(Block.ENTRY_SEPARATOR)
+				|| entry.getBytes(StandardCharsets.UTF_8).length > MAX_ENTRY_BYTES) {
+			return Result.INVALID;
+		}
+		String hash = Block.toHex(Merkle.leafHash(entry));
+		if (this.isCommitted(hash)) {
+			return Result.DUPLICATE;
+		}
+		if (this.size.incrementAndGet() > MAX_ENTRIES) {
+			this.size.decrementAndGet();
+			return Result.FULL;
+		}
+		if (this.entries.putIfAbsent(hash, entry) != null) {
+			this.size.decrementAndGet();
+			return Result.DUPLICATE;
+		}
+		this.order.add(hash);
+		return Result.ADDED;
+	}
+
+	// Method to pick the oldest entries that fit in maxBytes of block data, without taking them out of the pool
+	// A hash can be in the queue twice (an entry that was committed, forgotten and then submitted again is queued again
+	// before select gets round to tidying up its old place), so hashes already picked are skipped
+	public List<String> select(int maxBytes) {
+		List<String> selected = new ArrayList<>();
+		Set<String> picked = new HashSet<>();
+		int bytes = 0;
+		Iterator<String> it = this.order.iterator();
+		while (it.hasNext()) {
+			String hash = it.next();
+			String entry = this.entries.get(hash);
+			if (entry == null || picked.contains(hash)) {
+				it.remove();  // Already committed (or a second place for the same entry), so tidy up the queue
+				continue;
+			}
+			int length = entry.getBytes(StandardCharsets.UTF_8).length + 1;  // Plus the separator
+			if (bytes + length > maxBytes) {
+				break;
+			}
+			selected.add(entry);
+			picked.add(hash);
+			bytes += length;
+		}
+		return selected;
+	}
+
+	// Method to take the entries of a block that made it onto the chain out of the pool, and remember them so they
+	// aren't accepted again
+	public void commit(Block b) {
+		for (String entry : b.entries()) {
+			String hash = Block.toHex(Merkle.leafHash(entry));
+			if (this.entries.remove(hash) != null) {
+				this.size.decrementAndGet();
+			}
+			this.remember(hash);
+		}
+	}
+
+	// Method to put the entries of a block that a reorg took off the main chain back in the pool, so they aren't lost
+	// Entries that are also in the new main chain are taken back out when its blocks are committed
+	public void restore(Block b) {
+		for (String entry : b.entries()) {
+			this.forget(Block.toHex(Merkle.leafHash(entry)));
+			this.add(entry);
+		}
+	}
+
+	// Method to get how many entries are waiting
+	public int size() {
+		return this.size.get();
+	}
+
+	private synchronized boolean isCommitted(String hash) {
+		return this.committed.containsKey(hash);
+	}
+
+	// Method to stop treating a hash as committed
+	private synchronized void forget(String hash) {
+		this.committed.remove(hash);
+	}
+
+	// Method to remember a committed hash, forgetting the oldest one if there are too many
+	private synchronized void remember(String hash) {
+		if (this.committed.size() >= RECENT_COMMITTED) {
+			Iterator<String> oldest = this.committed.keySet().iterator();
+			oldest.next();
+			oldest.remove();
+		}
+		this.committed.put(hash, Boolean.TRUE);
+	}
+}
@@ -0,0 +1,96 @@
+package blockchain;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Merkle builds the Merkle tree over a block's entries. The root goes in the block header (see Block.encodeHeader),
+// so a single entry can be checked against a block with a short proof (one hash per level of the tree)
+// instead of rehashing the whole body.
+// Leaves are SHA-256(0x00 + entry) and inner nodes are SHA-256(0x01 + left + right); the different prefixes stop an
+// inner node from being passed off as an entry. A node without a sibling is carried up to the next level as it is.
+public class Merkle {
+	private static final byte LEAF = 0;
+	private static final byte NODE = 1;
+
+	// Method to hash a single entry into a leaf
+	public static byte[] leafHash(String entry) {
+		MessageDigest digest = Block.sha256();
+		digest.update(LEAF);
+		digest.update(entry.getBytes(StandardCharsets.UTF_8));
+		return digest.digest();
+	}
+
+	// Method to get the Merkle root of a list of entries (all zeros if there are none)
+	public static byte[] root(List<String> entries) {
+		if (entries.isEmpty()) {
+			return new byte[Block.HASH_SIZE];
+		}
+		List<byte[]> level = new ArrayList<>(entries.size());
+		for (String entry : entries) {
+			level.add(leafHash(entry));
+		}
+		while (level.size() > 1) {
+			level = nextLevel(level);
+		}
+		return level.get(0);
+	}
+
+	// Method to build the proof for the entry at index: the sibling hashes on the way from its leaf up to the root
+	public static List<byte[]> proof(List<String> entries, int index) {
+		List<byte[]> proof = new ArrayList<>();
+		List<byte[]> level = new ArrayList<>(entries.size());
+		for (String entry : entries) {
+			level.add(leafHash(entry));
+		}
+		while (level.size() > 1) {
+			int sibling = index ^ 1;
+			if (sibling < level.size()) {
+				proof.add(level.get(sibling));
+			}
+			level = nextLevel(level);
+			index /= 2;
+		}
+		return proof;
+	}
+
+	// Method to check that an entry is the one at index, out of count entries, in the tree with the given root
+	public static boolean verify(String entry, int index, int count, List<byte[]> proof, byte[] root) {
+		if (index < 0 || index >= count) {
+			return false;
+		}
+		byte[] hash = leafHash(entry);
+		int used = 0;
+		for (int size = count; size > 1; size = (size + 1) / 2) {
+			int sibling = index ^ 1;
+			if (sibling < size) {
+				if (used == proof.size()) {
+					return false;
+				}
+				byte[] other = proof.get(used++);
+				hash = (index & 1) == 0 ? nodeHash(hash, other) : nodeHash(other, hash);
+			}
+			index /= 2;
+		}
+		return used == proof.size() && Arrays.equals(hash, root);
+	}
+
+	// Method to hash one level of the tree into the level above it
+	private static List<byte[]> nextLevel(List<byte[]> level) {
+		List<byte[]> next = new ArrayList<>((level.size() + 1) / 2);
+		for (int i = 0; i < level.size(); i += 2) {
+			next.add(i + 1 < level.size() ? nodeHash(level.get(i), level.get(i + 1)) : level.get(i));
+		}
+		return next;
+	}
+
+	private static byte[] nodeHash(byte[] left, byte[] right) {
+		MessageDigest digest = Block.sha256();
+		digest.update(NODE);
+		digest.update(left);
+		digest.update(right);
+		return digest.digest();
+	}
+}
@@ -0,0 +1,109 @@
+package blockchain;
+
+import java.util.List;
+
+// A Message is one thing sent between nodes. The type says what it is, and only the fields that type uses are filled in.
+// See Protocol for how messages are turned into bytes.
+public class Message {
+	public byte type;          // One of the Protocol message types (CHAIN_REQUEST, BLOCK, ...)
+	public Block block;        // The block, for BLOCK messages
+	public List<Block> blocks; // The blocks, for CHAIN and BLOCKS messages
+	public List<String> hashes; // Block hashes by height, for HEADERS messages
+	public String hash;        // A single block hash, for INV and GET_DATA messages
+	public List<String> entries; // Mempool entries, for ENTRIES messages
+	public int height;         // The first height asked for or sent, for GET_HEADERS, HEADERS, GET_BLOCKS and BLOCKS messages (the block's height, for INV)
+	public int count;          // How many headers or blocks are asked for, for GET_HEADERS and GET_BLOCKS messages
+
+	// Constructor to create a message of a given type with nothing in it
+	public Message(byte type) {
+		this.type = type;
+	}
+
+	// Method to create the message a new node sends when it wants the whole chain
+	public static Message chainRequest() {
+		return new Message(Protocol.CHAIN_REQUEST);
+	}
+
+	// Method to create the message a new node sends when it already has a chain
+	public static Message noChainRequest() {
+		return new Message(Protocol.NO_CHAIN_REQUEST);
+	}
+
+	// Method to create a heartbeat, sent to a peer we haven't heard from in a while
+	public static Message ping() {
+		return new Message(Protocol.PING);
+	}
+
+	// Method to create the answer to a heartbeat
+	public static Message pong() {
+		return new Message(Protocol.PONG);
+	}
+
+	// Method to create a message carrying a single block
+	public static Message block(Block b) {
+		Message m = new Message(Protocol.BLOCK);
+		m.block = b;
+		return m;
+	}
+
+	// Method to ask a peer for the hashes of count blocks starting at a height
+	public static Message getHeaders(int height, int count) {
+		Message m = new Message(Protocol.GET_HEADERS);
+		m.height = height;
+		m.count = count;
+		return m;
+	}
+
+	// Method to create a message carrying block hashes starting at a height
+	public static Message headers(int height, List<String> hashes) {
+		Message m = new Message(Protocol.HEADERS);
+		m.height = height;
+		m.hashes = hashes;
+		return m;
+	}
+
+	// Method to ask a peer for count blocks starting at a height
+	public static Message getBlocks(int height, int count) {
+		Message m = new Message(Protocol.GET_BLOCKS);
+		m.height = height;
+		m.count = count;
+		return m;
+	}
+
+	// Method to create a message carrying a range of blocks starting at a height
+	public static Message blocks(int height, List<Block> blocks) {
+		Message m = new Message(Protocol.BLOCKS);
+		m.height = height;
+		m.blocks = blocks;
+		return m;
+	}
+
+	// Method to announce a new block by its hash and height
+	public static Message inv(int height, String hash) {
+		Message m = new Message(Protocol.INV);
+		m.height = height;
+		m.hash = hash;
+		return m;
+	}
+
+	// Method to ask a peer for a block it announced
+	public static Message getData(String hash) {
+		Message m = new Message(Protocol.GET_DATA);
+		m.hash = hash;
+		return m;
+	}
+
+	// Method to create a message passing mempool entries on to a peer
+	public static Message entries(List<String> entries) {
+		Message m = new Message(Protocol.ENTRIES);
+		m.entries = entries;
+		return m;
+	}
+
+	// Method to create a message carrying a list of blocks (like the whole chain)
+	public static Message chain(List<Block> blocks) {
+		Message m = new Message(Protocol.CHAIN);
+		m.blocks = blocks;
+		return m;
+	}
+}
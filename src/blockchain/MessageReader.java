@@ -0,0 +1,63 @@
+package blockchain;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+// A MessageReader reads framed messages (see Protocol) from a peer's socket
+public class MessageReader {
+    private static final int INITIAL_PAYLOAD_BUFFER = 64 * 1024;  // Payloads bigger than this are read into a growing buffer
+
+    private DataInputStream in;  // The socket's input stream, buffered
+    private LongAdder bytesIn = new LongAdder();  // Bytes read from the peer
+
+    // Constructor to wrap a socket's input stream
+    public MessageReader(InputStream in) {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+    }
+
+    // Method to block until the next message arrives and return it
+    // Throws EOFException if the peer closed the connection, or ProtocolException if the bytes don't make sense
+    public Message read() throws IOException {
+        byte version = this.in.readByte();
+        byte type = this.in.readByte();
+        byte flags = this.in.readByte();
+        int length = Protocol.checkHeader(version, type, flags, this.in.readInt());
+        byte[] payload = this.readPayload(length);
+        this.bytesIn.add(Protocol.HEADER_SIZE + length);
+        return Protocol.decode(type, flags, payload);
+    }
+
+    // Method to read a payload of the given length
+    // The length is only a claim until the bytes turn up, so the buffer starts small and grows as they actually arrive,
+    // instead of a peer being able to make us allocate a big frame's worth of memory by sending its header alone
+    private byte[] readPayload(int length) throws IOException {
+        byte[] payload = new byte[Math.min(length, INITIAL_PAYLOAD_BUFFER)];
+        int n = 0;
+        while (n < length) {
+            if (n == payload.length) {
+                payload = Arrays.copyOf(payload, (int) Math.min(length, payload.length * 2L));
+            }
+            int read = this.in.read(payload, n, payload.length - n);
+            if (read < 0) {
+                throw new EOFException("Peer closed the connection in the middle of a frame");
+            }
+            n += read;
+        }
+        return payload;
+    }
+
+    // Method to add the bytes read from this peer to the given counter (like the node's total in its Metrics)
+    public void countBytes(LongAdder in) {
+        this.bytesIn = in;
+    }
+
+    // Method to close the underlying stream
+    public void close() throws IOException {
+        this.in.close();
+    }
+}
@@ -0,0 +1,91 @@
+package blockchain;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+// A MessageWriter writes framed messages (see Protocol) to a peer's socket
+public class MessageWriter {
+    private OutputStream out;  // The socket's output stream, buffered so each frame goes out in one write
+    protected LongAdder bytesIn = new LongAdder();   // Bytes read from the peer, for writers that do their own reading (see countBytes)
+    protected LongAdder bytesOut = new LongAdder();  // Bytes written to the peer
+    private final long connectedAt = System.currentTimeMillis();   // When the connection was made
+    private volatile long lastHeard = this.connectedAt;             // When we last got a message from the peer (see BCNode.checkPeers)
+    private final ReentrantLock lock = new ReentrantLock();  // One frame at a time (not synchronized, so a virtual thread blocked writing doesn't pin its carrier)
+
+    // Constructor to wrap a socket's output stream
+    public MessageWriter(OutputStream out) {
+        this.out = new BufferedOutputStream(out);
+    }
+
+    // Constructor for writers that don't write to a stream directly (like NioNetwork's connections)
+    protected MessageWriter() {
+    }
+
+    // Method to encode and send a message
+    public void write(Message m) throws IOException {
+        this.writeFrame(Protocol.encode(m));
+    }
+
+    // Method to send a frame that's already been encoded (so a broadcast only encodes once)
+    public void writeFrame(byte[] frame) throws IOException {
+        this.lock.lock();
+        try {
+            this.out.write(frame);
+            this.out.flush();
+            this.bytesOut.add(frame.length);
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    // Method to send a frame that nothing would send again if it were lost (like a block being relayed)
+    // A plain writer never throws frames away, so this is just writeFrame; writers with a bounded queue disconnect the
+    // peer instead of dropping the frame when the queue is full (see QueuedWriter)
+    public void writeFrameOrDisconnect(byte[] frame) throws IOException {
+        this.writeFrame(frame);
+    }
+
+    // Method to add the bytes this peer sends and receives to the given counters (like the node's totals in its Metrics)
+    public void countBytes(LongAdder in, LongAdder out) {
+        this.bytesIn = in;
+        this.bytesOut = out;
+    }
+
+    // Method to get how many frames are waiting to be sent (a plain writer sends straight away, so none)
+    public int queueSize() {
+        return 0;
+    }
+
+    // Method to get how many frames were thrown away instead of sent
+    public long droppedFrames() {
+        return 0;
+    }
+
+    // Method to note that a message just came in from the peer, so it's still alive
+    public void heard() {
+        this.lastHeard = System.currentTimeMillis();
+    }
+
+    // Method to get when we last got a message from the peer
+    public long lastHeard() {
+        return this.lastHeard;
+    }
+
+    // Method to get when the connection was made
+    public long connectedAt() {
+        return this.connectedAt;
+    }
+
+    // Method to get a short name for the peer, used to label its metrics
+    public String peerName() {
+        return "peer-" + Integer.toHexString(System.identityHashCode(this));
+    }
+
+    // Method to close the underlying stream
+    public void close() throws IOException {
+        this.out.close();
+    }
+}
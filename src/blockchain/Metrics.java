@@ -0,0 +1,164 @@
+package blockchain;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+// Metrics holds a node's counters, histograms and gauges (values that are read when asked for, like the chain height).
+// Everything can be read three ways: snapshot() as a map, toText() as one "name value" line per metric (which is what
+// the HTTP endpoint from serve() returns), and as attributes of a JMX MBean once register() has been called.
+// Gauges that have a value per peer are shown as peer.<peer>.<name>, like peer.9001.queue_size (plain names, so JMX clients
+// don't need to quote them). Histograms are shown as name_count, name_p50, name_p90, name_p99 and name_max.
+// Updating a counter or histogram never takes a lock.
+public class Metrics implements DynamicMBean {
+	private Map<String, LongAdder> counters = new ConcurrentSkipListMap<>();
+	private Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+	private Map<String, Supplier<? extends Number>> gauges = new ConcurrentSkipListMap<>();
+	private Map<String, Supplier<? extends Map<String, ? extends Number>>> perPeer = new ConcurrentSkipListMap<>();
+
+	// Method to get (creating it the first time) the counter with the given name
+	public LongAdder counter(String name) {
+		return this.counters.computeIfAbsent(name, k -> new LongAdder());
+	}
+
+	// Method to get (creating it the first time) the histogram with the given name
+	public Histogram histogram(String name) {
+		return this.histograms.computeIfAbsent(name, k -> new Histogram());
+	}
+
+	// Method to add a gauge, whose value is read from value whenever the metrics are looked at
+	public void gauge(String name, Supplier<? extends Number> value) {
+		this.gauges.put(name, value);
+	}
+
+	// Method to add a gauge with one value per peer, keyed by the peer's name
+	public void perPeerGauge(String name, Supplier<? extends Map<String, ? extends Number>> values) {
+		this.perPeer.put(name, values);
+	}
+
+	// Method to read every metric as it is right now, by name
+	public Map<String, Number> snapshot() {
+		Map<String, Number> values = new LinkedHashMap<>();
+		for (Map.Entry<String, LongAdder> c : this.counters.entrySet()) {
+			values.put(c.getKey(), c.getValue().sum());
+		}
+		for (Map.Entry<String, Histogram> h : this.histograms.entrySet()) {
+			Histogram histogram = h.getValue();
+			values.put(h.getKey() + "_count", histogram.count());
+			values.put(h.getKey() + "_p50", histogram.percentile(50));
+			values.put(h.getKey() + "_p90", histogram.percentile(90));
+			values.put(h.getKey() + "_p99", histogram.percentile(99));
+			values.put(h.getKey() + "_max", histogram.max());
+		}
+		for (Map.Entry<String, Supplier<? extends Number>> g : this.gauges.entrySet()) {
+			values.put(g.getKey(), g.getValue().get());
+		}
+		for (Map.Entry<String, Supplier<? extends Map<String, ? extends Number>>> g : this.perPeer.entrySet()) {
+			for (Map.Entry<String, ? extends Number> peer : g.getValue().get().entrySet()) {
+				values.put("peer." + peer.getKey() + "." + g.getKey(), peer.getValue());
+			}
+		}
+		return values;
+	}
+
+	// Method to write every metric as text, one "name value" line each
+	public String toText() {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, Number> m : this.snapshot().entrySet()) {
+			text.append(m.getKey()).append(' ').append(m.getValue()).append('\n');
+		}
+		return text.toString();
+	}
+
+	// Method to serve the metrics as text at http://localhost:<port>/metrics (only reachable from this machine)
+	public HttpServer serve(int port) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/metrics", exchange -> {
+			byte[] body = this.toText().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+		return server;
+	}
+
+	// Method to make the metrics visible over JMX (in jconsole, for example) under the given name
+	public void register(String name) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(name));
+	}
+
+	// Method to take the metrics back out of JMX
+	public void unregister(String name) throws JMException {
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(name));
+	}
+
+	// The DynamicMBean methods: every metric is a read-only attribute
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Number value = this.snapshot().get(attribute);
+		if (value == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return value;
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] attributes) {
+		Map<String, Number> values = this.snapshot();
+		AttributeList list = new AttributeList();
+		for (String name : attributes) {
+			if (values.containsKey(name)) {
+				list.add(new Attribute(name, values.get(name)));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read-only");
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();  // Nothing can be set
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		throw new ReflectionException(new NoSuchMethodException(actionName), "Metrics have no operations");
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<>();
+		for (Map.Entry<String, Number> m : this.snapshot().entrySet()) {
+			attributes.add(new MBeanAttributeInfo(m.getKey(), m.getValue().getClass().getName(), m.getKey(), true, false, false));
+		}
+		return new MBeanInfo(this.getClass().getName(), "Blockchain node metrics", attributes.toArray(new MBeanAttributeInfo[0]), null, null, null);
+	}
+}
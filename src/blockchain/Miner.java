@@ -0,0 +1,155 @@
+package blockchain;
+
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// The Miner runs proof-of-work for a block on a pool of worker threads.
+// Worker i tries the nonces i, i + workers, i + 2*workers, ... so no two workers ever try the same nonce,
+// and when a worker runs out of int nonces it bumps its own copy of the timestamp and starts over.
+public class Miner {
+	private ExecutorService workers;             // The pool of threads that do the hashing
+	private int workerCount;                     // How many workers the nonce space is split across
+	private AtomicInteger round = new AtomicInteger();  // Bumped by cancel() so workers notice the block they're mining went stale
+	private double[] hashRates;                  // Hashes per second of each worker during the last mining round
+
+	// Constructor to create a miner with a given number of worker threads
+	public Miner(int workerCount) {
+		if (workerCount < 1) {
+			throw new IllegalArgumentException("Miner needs at least one worker");
+		}
+		this.workerCount = workerCount;
+		this.hashRates = new double[workerCount];
+		this.workers = Executors.newFixedThreadPool(workerCount, r -> {
+			Thread t = new Thread(r, "miner");
+			t.setDaemon(true);  // Mining threads shouldn't keep the JVM alive on their own
+			return t;
+		});
+	}
+
+	// Method to mine a block until its hash has N leading zeros
+	// On success the nonce, timestamp and hash of b are updated and true is returned.
+	// If cancel() is called while mining, the search stops and false is returned so the caller can restart on the new tip.
+	public boolean mine(Block b, int N) throws InterruptedException {
+		return this.mine(b, N, this.round());
+	}
+
+	// Method to mine a block like mine(b, N), but only for as long as the round is still myRound
+	// A caller that reads the tip should get the round first: a cancel() that comes between the two then stops this
+	// search at once, instead of going unnoticed and leaving the workers on a stale tip
+	public boolean mine(Block b, int N, int myRound) throws InterruptedException {
+		AtomicBoolean found = new AtomicBoolean(false);  // Flipped by whichever worker finds a hash first
+		AtomicReference<Block> winner = new AtomicReference<>();  // The solved copy of the block
+
+		List<Future<?>> futures = new ArrayList<>();
+		for (int i = 0; i < this.workerCount; i++) {
+			final int worker = i;
+			final Block candidate = new Block(b);  // Each worker hashes its own copy of the block
+			futures.add(this.workers.submit(() -> this.search(candidate, worker, N, myRound, found, winner)));
+		}
+
+		// Wait for every worker to stop (either someone found it, or we were cancelled)
+		try {
+			for (Future<?> f : futures) {
+				f.get();
+			}
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());  // A worker crashed, which shouldn't happen
+		} finally {
+			found.set(true);  // Make sure any stragglers stop if we're leaving early
+		}
+
+		Block solved = winner.get();
+		if (solved == null) {
+			return false;  // Cancelled before anyone found a hash
+		}
+		b.timestamp = solved.timestamp;
+		b.nonce = solved.nonce;
+		b.hash = solved.hash;
+		return true;
+	}
+
+	// The loop each worker runs: step through its share of the nonces until a hash is found or mining is cancelled
+	// The header is encoded once and only its nonce/timestamp bytes are rewritten, so each attempt allocates nothing
+	private void search(Block b, int worker, int N, int myRound, AtomicBoolean found, AtomicReference<Block> winner) {
+		MessageDigest digest = Block.sha256();  // This worker thread's own digest
+		byte[] header = b.encodeHeader();
+		byte[] hash = new byte[Block.HASH_SIZE];
+		long timestamp = b.timestamp;
+		int nonce = worker;
+		long start = System.nanoTime();
+		long hashes = 0;
+		try {
+			while (!found.get() && this.round.get() == myRound) {
+				Block.setNonce(header, nonce);
+				Block.hashHeader(digest, header, hash);
+				hashes++;
+				if (Block.hasLeadingZeros(hash, N)) {
+					if (found.compareAndSet(false, true)) {
+						// Only the first worker to find a hash gets to publish it
+						b.timestamp = timestamp;
+						b.nonce = nonce;
+						b.hash = Block.toHex(hash);
+						winner.set(b);
+					}
+					break;
+				}
+				if (nonce > Integer.MAX_VALUE - this.workerCount) {
+					// This worker has run out of int nonces, so roll the timestamp forward and start its share over
+					timestamp++;
+					Block.setTimestamp(header, timestamp);
+					nonce = worker;
+				} else {
+					nonce += this.workerCount;
+				}
+			}
+		} finally {
+			double seconds = (System.nanoTime() - start) / 1e9;
+			synchronized (this) {
+				this.hashRates[worker] = seconds > 0 ? hashes / seconds : 0;  // Record this worker's rate for the round
+			}
+		}
+	}
+
+	// Method to get the current mining round, which every cancel() moves on
+	public int round() {
+		return this.round.get();
+	}
+
+	// Method to stop the current mining round (e.g. a competing block at the same height was accepted)
+	public void cancel() {
+		this.round.incrementAndGet();
+	}
+
+	// Method to get the hashes per second of each worker during the last mining round
+	public synchronized double[] getHashRates() {
+		return this.hashRates.clone();
+	}
+
+	// Method to get the combined hashes per second of all the workers
+	public double getTotalHashRate() {
+		double total = 0;
+		for (double rate : this.getHashRates()) {
+			total += rate;
+		}
+		return total;
+	}
+
+	// Method to get how many workers this miner splits the nonce space across
+	public int getWorkerCount() {
+		return this.workerCount;
+	}
+
+	// Method to stop the worker threads when the node shuts down
+	public void shutdown() {
+		this.cancel();
+		this.workers.shutdownNow();
+	}
+}
@@ -0,0 +1,8 @@
+package blockchain;
+
+// How a node talks to its peers
+public enum NetworkMode {
+	THREADS,  // Blocking sockets with a ReadHandler thread per peer (the original design)
+	VIRTUAL,  // The same blocking code as THREADS, but every per-peer thread is a virtual thread (see Threads)
+	NIO       // Every peer on one non-blocking selector thread (see NioNetwork)
+}
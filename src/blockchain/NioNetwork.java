@@ -0,0 +1,438 @@
+package blockchain;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+// NioNetwork runs all of a node's peer connections on a single I/O thread using a java.nio Selector,
+// instead of one ReadHandler thread per peer plus a blocking accept loop. The I/O thread only moves bytes
+// and splits them into frames; blocks that arrive are handed to a separate validation thread so a slow
+// validation never holds up reads or writes for other peers.
+public class NioNetwork implements Runnable {
+	private BCNode node;                       // The node these connections belong to
+	private Selector selector;                 // Watches every channel for accepts, reads and writes
+	private ExecutorService validator;         // Validates and relays received blocks, off the I/O thread
+	private ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<>();  // Work other threads need done on the I/O thread
+	private int numberOfConnections;           // Keeps track of the number of connections (only touched on the I/O thread)
+
+	// Constructor to set up the selector and the validation thread for a node
+	public NioNetwork(BCNode node) throws IOException {
+		this.node = node;
+		this.selector = Selector.open();
+		this.validator = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "nio-validator");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	// Method to start accepting peers on a port (call this once the node has a chain to serve)
+	public void listen(int port) throws IOException {
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port));
+		server.configureBlocking(false);
+		this.onIoThread(() -> {
+			try {
+				server.register(this.selector, SelectionKey.OP_ACCEPT);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	// Method to connect to a peer and send the handshake, giving up if it doesn't answer within BCNode.CONNECT_TIMEOUT_MS
+	// dialled is called with the connection before anything is read from it, so the node knows it dialled this peer even
+	// if the peer hangs up straight away
+	public NioConnection connect(int port, Consumer<NioConnection> dialled) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.socket().connect(new InetSocketAddress("localhost", port), BCNode.CONNECT_TIMEOUT_MS);  // Connecting still blocks (the node dials its peers in parallel)
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		NioConnection conn = this.register(channel, dialled);
+		conn.write(Message.noChainRequest());  // The chain is downloaded in pieces afterwards (see ChainSync)
+		return conn;
+	}
+
+	// Method to set up a connected channel for non-blocking use and tell the node about it
+	private NioConnection register(SocketChannel channel, Consumer<NioConnection> beforeReading) throws IOException {
+		channel.configureBlocking(false);
+		channel.socket().setTcpNoDelay(true);
+		NioConnection conn = new NioConnection(this, channel);
+		this.node.addNode(channel.socket(), null, conn);
+		beforeReading.accept(conn);
+		this.onIoThread(() -> {
+			try {
+				conn.key = channel.register(this.selector, SelectionKey.OP_READ, conn);
+				conn.connectionNumber = this.numberOfConnections++;
+				if (conn.hasPendingWrites()) {
+					conn.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				}
+			} catch (IOException e) {
+				this.close(conn);
+			}
+		});
+		return conn;
+	}
+
+	// Method to run something on the I/O thread (selection keys should only be changed there)
+	void onIoThread(Runnable r) {
+		this.pending.add(r);
+		this.selector.wakeup();
+	}
+
+	// Method called by a connection when it has frames queued, so the I/O thread starts writing them
+	void wantWrite(NioConnection conn) {
+		this.onIoThread(() -> {
+			if (conn.key != null && conn.key.isValid()) {
+				conn.key.interestOps(conn.key.interestOps() | SelectionKey.OP_WRITE);
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		// The event loop: wait for something to happen on any channel, then handle it
+		while (this.selector.isOpen()) {
+			try {
+				this.selector.select();
+				Runnable r;
+				while ((r = this.pending.poll()) != null) {
+					r.run();
+				}
+				Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						this.accept((ServerSocketChannel) key.channel());
+						continue;
+					}
+					NioConnection conn = (NioConnection) key.attachment();
+					try {
+						if (key.isReadable()) {
+							this.read(conn);
+						}
+						if (key.isValid() && key.isWritable()) {
+							this.write(conn);
+						}
+					} catch (ProtocolException e) {
+						// The peer sent something we can't parse, so we can't trust where the next message starts; drop it
+						System.out.println("Bad message from peer: " + e.getMessage());
+						this.close(conn);
+					} catch (IOException e) {
+						this.close(conn);  // The connection broke, so remove the node
+					}
+				}
+			} catch (ClosedSelectorException e) {
+				return;  // shutdown() closed the selector while we were using it
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// Method to accept a new peer
+	private void accept(ServerSocketChannel server) throws IOException {
+		SocketChannel channel = server.accept();
+		if (channel != null) {
+			this.register(channel, conn -> {});
+		}
+	}
+
+	// Method to read whatever a peer has sent and handle every complete frame in it
+	private void read(NioConnection conn) throws IOException {
+		int n = conn.channel.read(conn.readBuffer);
+		if (n < 0) {
+			throw new IOException("Peer closed the connection");
+		}
+		conn.bytesIn.add(n);
+		if (n > 0) {
+			conn.heard();
+		}
+		conn.readBuffer.flip();
+		while (true) {
+			Message m = conn.nextFrame();
+			if (m == null) {
+				break;  // Not a whole frame yet, wait for more bytes
+			}
+			this.handle(conn, m);
+		}
+		conn.readBuffer.compact();
+	}
+
+	// Method to write as much of a peer's queued frames as the socket will take
+	private void write(NioConnection conn) throws IOException {
+		if (conn.flush()) {
+			conn.key.interestOps(SelectionKey.OP_READ);  // Everything's written, stop asking for write readiness
+		}
+	}
+
+	// Method to act on a message from a peer
+	private void handle(NioConnection conn, Message m) {
+		switch (m.type) {
+		case Protocol.CHAIN_REQUEST:
+			// Encoding a whole chain can take a while, so do it off the I/O thread (from a snapshot, so it doesn't hold up new blocks)
+			this.validator.execute(() -> conn.writeQuietly(Message.chain(this.node.chain.snapshot().toList())));
+			break;
+		case Protocol.GET_HEADERS:
+		case Protocol.GET_BLOCKS:
+		case Protocol.HEADERS:
+		case Protocol.BLOCKS:
+		case Protocol.INV:
+		case Protocol.GET_DATA:
+		case Protocol.ENTRIES:
+			// Serving part of the chain means copying and encoding it, so do it off the I/O thread too
+			this.validator.execute(() -> {
+				try {
+					this.node.onPeerMessage(m, conn);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			});
+			break;
+		case Protocol.PING:
+			conn.writeQuietly(Message.pong());  // Cheap enough to answer right here
+			break;
+		case Protocol.BLOCK:
+			Block b = m.block;
+			this.validator.execute(() -> {
+				try {
+					// Add the block to the node's blockchain if it's valid, and pass it on if it was
+					if (this.node.addExistingBlock(b, conn)) {
+						this.node.sendBlock(b, conn);  // Everyone but the peer it came from
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+				}
+			});
+			break;
+		default:
+			break;  // NO_CHAIN_REQUEST, PONG (reading it was enough), and anything else we don't need to act on
+		}
+	}
+
+	// Method to close a connection and remove the node
+	void close(NioConnection conn) {
+		if (conn.closed) {
+			return;
+		}
+		conn.closed = true;
+		if (conn.key != null) {
+			conn.key.cancel();
+		}
+		try {
+			conn.channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		this.node.removeNode(conn.channel.socket(), null, conn, conn.connectionNumber);
+	}
+
+	// Method to stop the event loop and close every connection
+	public void shutdown() throws IOException {
+		for (SelectionKey key : this.selector.keys()) {
+			key.channel().close();
+		}
+		this.selector.close();
+		this.validator.shutdownNow();
+	}
+
+	// A peer connection: the channel, its reusable direct buffers, and the frames waiting to go out.
+	// It extends MessageWriter so the node can send to it just like a blocking connection.
+	public static class NioConnection extends MessageWriter {
+		static final int BUFFER_SIZE = 16 * 1024;  // Size of each connection's read and write buffers
+		static final int MAX_QUEUED = QueuedWriter.DEFAULT_CAPACITY;  // How many frames can wait before new ones are thrown away
+
+		SocketChannel channel;
+		SelectionKey key;
+		int connectionNumber;
+		volatile boolean closed;
+		ByteBuffer readBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);   // Bytes read but not yet parsed
+		ByteBuffer writeBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);  // Bytes copied from the queue but not yet written
+		private ByteBuffer bigFrame;               // Used instead of readBuffer for a frame too big to fit in it (grows as it arrives)
+		private int bigFrameSize;                  // The size of that frame, header included, as its header claims
+		private NioNetwork network;
+		private ConcurrentLinkedQueue<ByteBuffer> queue = new ConcurrentLinkedQueue<>();  // Frames waiting to be written
+		private AtomicInteger queued = new AtomicInteger();  // How many frames are in the queue
+		private LongAdder dropped = new LongAdder();          // How many frames were thrown away because the queue was full
+		private AtomicInteger droppedInARow = new AtomicInteger();  // How many of them since a frame last fit in the queue
+
+		NioConnection(NioNetwork network, SocketChannel channel) {
+			this.network = network;
+			this.channel = channel;
+			this.writeBuffer.flip();  // Start out empty (ready to be drained)
+		}
+
+		// Method to queue a frame; the I/O thread writes it when the socket is ready, so this never blocks
+		@Override
+		public void writeFrame(byte[] frame) {
+			this.enqueue(frame, QueuedWriter.MAX_DROPS);
+		}
+
+		// Method to queue a frame that mustn't be thrown away, disconnecting the peer if it doesn't fit
+		@Override
+		public void writeFrameOrDisconnect(byte[] frame) {
+			this.enqueue(frame, 1);
+		}
+
+		// Method to queue a frame, or throw it away and drop the peer once maxDrops frames in a row haven't fit
+		// (see QueuedWriter for which frames can be thrown away)
+		private void enqueue(byte[] frame, int maxDrops) {
+			if (this.closed) {
+				return;
+			}
+			if (this.queued.incrementAndGet() > MAX_QUEUED) {
+				// The peer isn't keeping up, so throw the frame away rather than buffer for it forever,
+				// and drop the peer if it stays that far behind
+				this.queued.decrementAndGet();
+				this.dropped.increment();
+				if (this.droppedInARow.incrementAndGet() >= maxDrops) {
+					System.out.println("Send queue full for peer, dropping it");
+					this.close();
+				}
+				return;
+			}
+			this.droppedInARow.set(0);
+			this.queue.add(ByteBuffer.wrap(frame));
+			this.network.wantWrite(this);
+		}
+
+		// Method to get how many frames are waiting to be written
+		@Override
+		public int queueSize() {
+			return this.queued.get();
+		}
+
+		// Method to get how many frames were dropped because the queue was full
+		@Override
+		public long droppedFrames() {
+			return this.dropped.sum();
+		}
+
+		// Method to name the peer by its port
+		@Override
+		public String peerName() {
+			return String.valueOf(this.channel.socket().getPort());
+		}
+
+		// Method to send a message from a thread that can't deal with exceptions
+		void writeQuietly(Message m) {
+			this.writeFrame(Protocol.encode(m));
+		}
+
+		boolean hasPendingWrites() {
+			return !this.queue.isEmpty() || this.writeBuffer.hasRemaining();
+		}
+
+		// Method to write queued frames through the write buffer; returns true once everything has been written
+		boolean flush() throws IOException {
+			while (true) {
+				if (!this.writeBuffer.hasRemaining()) {
+					// Refill the buffer from the queue
+					this.writeBuffer.clear();
+					ByteBuffer next;
+					while (this.writeBuffer.hasRemaining() && (next = this.queue.peek()) != null) {
+						int n = Math.min(next.remaining(), this.writeBuffer.remaining());
+						ByteBuffer slice = next.duplicate();
+						slice.limit(slice.position() + n);
+						this.writeBuffer.put(slice);
+						next.position(next.position() + n);
+						if (!next.hasRemaining()) {
+							this.queue.poll();
+							this.queued.decrementAndGet();
+						}
+					}
+					this.writeBuffer.flip();
+					if (!this.writeBuffer.hasRemaining()) {
+						return true;  // Nothing left to write
+					}
+				}
+				this.bytesOut.add(this.channel.write(this.writeBuffer));
+				if (this.writeBuffer.hasRemaining()) {
+					return false;  // The socket is full, wait until it's writable again
+				}
+			}
+		}
+
+		// Method to pull the next complete frame out of the read buffer (which is in read mode), or null if there isn't one yet
+		Message nextFrame() throws ProtocolException {
+			if (this.bigFrame != null) {
+				return this.fillBigFrame();
+			}
+			ByteBuffer buf = this.readBuffer;
+			if (buf.remaining() < Protocol.HEADER_SIZE) {
+				return null;
+			}
+			int start = buf.position();
+			byte version = buf.get(start);
+			byte type = buf.get(start + 1);
+			byte flags = buf.get(start + 2);
+			int length = Protocol.checkHeader(version, type, flags, buf.getInt(start + 3));  // Too big for its type closes the connection
+			if (Protocol.HEADER_SIZE + length > buf.capacity()) {
+				// Too big for the reusable buffer, so collect this one frame in its own buffer. The size is only the peer's
+				// claim, so the buffer starts at twice the read buffer and grows as the bytes turn up, instead of every
+				// connection that sends a header being able to make us allocate a whole frame's worth
+				this.bigFrameSize = Protocol.HEADER_SIZE + length;
+				this.bigFrame = ByteBuffer.allocate(Math.min(this.bigFrameSize, 2 * BUFFER_SIZE));
+				return this.fillBigFrame();
+			}
+			if (buf.remaining() < Protocol.HEADER_SIZE + length) {
+				return null;
+			}
+			buf.position(start + Protocol.HEADER_SIZE);
+			byte[] payload = new byte[length];
+			buf.get(payload);
+			return Protocol.decode(type, flags, payload);
+		}
+
+		// Method to move bytes from the read buffer into the big frame buffer, returning the message once it's all there
+		private Message fillBigFrame() throws ProtocolException {
+			int n = Math.min(this.readBuffer.remaining(), this.bigFrameSize - this.bigFrame.position());
+			if (n > this.bigFrame.remaining()) {
+				ByteBuffer bigger = ByteBuffer.allocate((int) Math.min(this.bigFrameSize, Math.max(this.bigFrame.capacity() * 2L, this.bigFrame.position() + n)));
+				this.bigFrame.flip();
+				bigger.put(this.bigFrame);
+				this.bigFrame = bigger;
+			}
+			ByteBuffer slice = this.readBuffer.duplicate();
+			slice.limit(slice.position() + n);
+			this.bigFrame.put(slice);
+			this.readBuffer.position(this.readBuffer.position() + n);
+			if (this.bigFrame.position() < this.bigFrameSize) {
+				return null;
+			}
+			ByteBuffer frame = this.bigFrame;
+			this.bigFrame = null;
+			byte type = frame.get(1);
+			byte flags = frame.get(2);
+			byte[] payload = new byte[this.bigFrameSize - Protocol.HEADER_SIZE];
+			frame.position(Protocol.HEADER_SIZE);
+			frame.get(payload);
+			return Protocol.decode(type, flags, payload);
+		}
+
+		@Override
+		public void close() {
+			this.network.onIoThread(() -> this.network.close(this));
+		}
+	}
+}
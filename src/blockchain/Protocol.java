@@ -0,0 +1,415 @@
+package blockchain;
+
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// The Protocol turns messages into bytes and back. Every message is sent as a frame:
+//   [version: 1 byte][type: 1 byte][flags: 1 byte][payload length: 4 bytes][payload]
+// Blocks are written in a fixed layout with the hashes as raw 32-byte values:
+//   [timestamp: 8 bytes][nonce: 4 bytes][previous hash: 32 bytes][hash: 32 bytes][data length: 4 bytes][data: UTF-8]
+// Big payloads (like a whole chain) are compressed, which is marked with the COMPRESSED flag.
+public class Protocol {
+	public static final byte VERSION = 2;  // Bumped whenever the format changes, so old and new nodes don't misread each other
+	                                       // (2: block hashes commit to a Merkle root of the entries instead of the raw data)
+
+	// Message types
+	public static final byte CHAIN_REQUEST = 1;     // "Send me your chain" (no payload)
+	public static final byte NO_CHAIN_REQUEST = 2;  // "I already have a chain" (no payload)
+	public static final byte BLOCK = 3;             // A single block
+	public static final byte CHAIN = 4;             // A list of blocks: [count: 4 bytes][block][block]...
+	public static final byte GET_HEADERS = 5;       // "Send me block hashes": [from height: 4 bytes][count: 4 bytes]
+	public static final byte HEADERS = 6;           // Block hashes by height: [from height: 4 bytes][count: 4 bytes][hash: 32 bytes]...
+	public static final byte GET_BLOCKS = 7;        // "Send me blocks": [from height: 4 bytes][count: 4 bytes]
+	public static final byte BLOCKS = 8;            // A range of blocks by height: [from height: 4 bytes][count: 4 bytes][block]...
+	public static final byte INV = 9;               // "I have a new block": [height: 4 bytes][hash: 32 bytes]
+	public static final byte GET_DATA = 10;         // "Send me this block" (answered with a BLOCK): [hash: 32 bytes]
+	public static final byte ENTRIES = 11;          // Mempool entries: [count: 4 bytes][length: 4 bytes][entry: UTF-8]...
+	public static final byte PING = 12;             // "Are you still there?" (answered with a PONG; no payload)
+	public static final byte PONG = 13;             // The answer to a PING (no payload)
+
+	// Frame flags
+	public static final byte COMPRESSED = 1;  // The payload is [uncompressed length: 4 bytes][deflated bytes]
+
+	public static final int HEADER_SIZE = 7;                      // Size of the frame header in bytes
+	public static final int MAX_PAYLOAD = 64 * 1024 * 1024;       // Anything bigger than this is treated as a broken frame
+	public static final int COMPRESS_THRESHOLD = 64 * 1024;       // Payloads at least this big get compressed
+	private static final int MAX_INFLATE_RATIO = 1032;            // Deflate can't shrink data by more than this (its best is about 1032:1)
+	private static final int BLOCK_FIXED_SIZE = 8 + 4 + Block.HASH_SIZE * 2 + 4;  // Size of a block without its data
+
+	// Method to turn a message into a complete frame, ready to be written to a socket
+	// Encoding once means the same bytes can be sent to every peer
+	public static byte[] encode(Message m) {
+		byte[] payload = encodePayload(m);
+		byte flags = 0;
+		if (payload.length >= COMPRESS_THRESHOLD) {
+			payload = compress(payload);
+			flags |= COMPRESSED;
+		}
+		ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+		frame.put(VERSION);
+		frame.put(m.type);
+		frame.put(flags);
+		frame.putInt(payload.length);
+		frame.put(payload);
+		return frame.array();
+	}
+
+	// Method to check a frame header and return how long its payload is
+	// The length comes from the peer and the payload buffer is sized from it, so it's held to the most that type of
+	// message can need (see maxPayload) before anything is allocated
+	public static int checkHeader(byte version, byte type, byte flags, int length) throws ProtocolException {
+		if (version != VERSION) {
+			throw new ProtocolException("Unsupported protocol version " + version);
+		}
+		int max = maxPayload(type);
+		if (max < 0) {
+			throw new ProtocolException("Unknown message type " + type);
+		}
+		if ((flags & COMPRESSED) != 0) {
+			// The uncompressed length, plus the most deflate can grow incompressible data by
+			max = (int) Math.min(MAX_PAYLOAD, 4L + max + max / 1000 + 64);
+		}
+		if (length < 0 || length > max) {
+			throw new ProtocolException("Bad payload length " + length + " for message type " + type);
+		}
+		return length;
+	}
+
+	// Method to get the biggest (uncompressed) payload a message type can have, or -1 for an unknown type
+	// Requests and announcements are a few bytes, a HEADERS reply holds at most ChainSync.HEADER_BATCH hashes, and a block
+	// holds at most Mempool.MAX_BLOCK_BYTES of data. Only whole chains, block batches and entry lists can be big
+	public static int maxPayload(byte type) {
+		switch (type) {
+		case CHAIN_REQUEST:
+		case NO_CHAIN_REQUEST:
+		case PING:
+		case PONG:
+			return 0;
+		case GET_HEADERS:
+		case GET_BLOCKS:
+			return 8;
+		case HEADERS:
+			return 4 + 4 + ChainSync.HEADER_BATCH * Block.HASH_SIZE;
+		case INV:
+			return 4 + Block.HASH_SIZE;
+		case GET_DATA:
+			return Block.HASH_SIZE;
+		case BLOCK:
+			return BLOCK_FIXED_SIZE + Mempool.MAX_BLOCK_BYTES;
+		case CHAIN:
+		case BLOCKS:
+		case ENTRIES:
+			return MAX_PAYLOAD;
+		default:
+			return -1;
+		}
+	}
+
+	// Method to turn a frame's payload back into a message
+	public static Message decode(byte type, byte flags, byte[] payload) throws ProtocolException {
+		if ((flags & COMPRESSED) != 0) {
+			payload = decompress(payload, Math.max(maxPayload(type), 0));
+		}
+		ByteBuffer buf = ByteBuffer.wrap(payload);
+		Message m = new Message(type);
+		try {
+			switch (type) {
+			case CHAIN_REQUEST:
+			case NO_CHAIN_REQUEST:
+			case PING:
+			case PONG:
+				break;
+			case BLOCK:
+				m.block = getBlock(buf);
+				break;
+			case CHAIN:
+				m.blocks = getBlocks(buf);
+				break;
+			case GET_HEADERS:
+			case GET_BLOCKS:
+				m.height = buf.getInt();
+				m.count = buf.getInt();
+				break;
+			case HEADERS:
+				m.height = buf.getInt();
+				m.hashes = getHashes(buf);
+				break;
+			case BLOCKS:
+				m.height = buf.getInt();
+				m.blocks = getBlocks(buf);
+				break;
+			case INV:
+				m.height = buf.getInt();
+				m.hash = getHash(buf);
+				break;
+			case GET_DATA:
+				m.hash = getHash(buf);
+				break;
+			case ENTRIES:
+				m.entries = getStrings(buf);
+				break;
+			default:
+				throw new ProtocolException("Unknown message type " + type);
+			}
+		} catch (BufferUnderflowException e) {
+			throw new ProtocolException("Message type " + type + " is truncated");
+		}
+		if (buf.hasRemaining()) {
+			throw new ProtocolException("Message type " + type + " has " + buf.remaining() + " extra bytes");
+		}
+		return m;
+	}
+
+	// Method to encode just the payload of a message
+	private static byte[] encodePayload(Message m) {
+		switch (m.type) {
+		case BLOCK: {
+			ByteBuffer buf = ByteBuffer.allocate(blockSize(m.block));
+			putBlock(buf, m.block);
+			return buf.array();
+		}
+		case CHAIN: {
+			ByteBuffer buf = ByteBuffer.allocate(blocksSize(m.blocks));
+			putBlocks(buf, m.blocks);
+			return buf.array();
+		}
+		case GET_HEADERS:
+		case GET_BLOCKS: {
+			ByteBuffer buf = ByteBuffer.allocate(8);
+			buf.putInt(m.height);
+			buf.putInt(m.count);
+			return buf.array();
+		}
+		case HEADERS: {
+			ByteBuffer buf = ByteBuffer.allocate(4 + 4 + m.hashes.size() * Block.HASH_SIZE);
+			buf.putInt(m.height);
+			putHashes(buf, m.hashes);
+			return buf.array();
+		}
+		case BLOCKS: {
+			ByteBuffer buf = ByteBuffer.allocate(4 + blocksSize(m.blocks));
+			buf.putInt(m.height);
+			putBlocks(buf, m.blocks);
+			return buf.array();
+		}
+		case INV: {
+			ByteBuffer buf = ByteBuffer.allocate(4 + Block.HASH_SIZE);
+			buf.putInt(m.height);
+			buf.put(Block.fromHex(m.hash));
+			return buf.array();
+		}
+		case GET_DATA:
+			return Block.fromHex(m.hash);
+		case ENTRIES: {
+			List<byte[]> encoded = new ArrayList<>(m.entries.size());
+			int size = 4;
+			for (String entry : m.entries) {
+				byte[] bytes = utf8(entry);
+				encoded.add(bytes);
+				size += 4 + bytes.length;
+			}
+			ByteBuffer buf = ByteBuffer.allocate(size);
+			buf.putInt(encoded.size());
+			for (byte[] bytes : encoded) {
+				buf.putInt(bytes.length);
+				buf.put(bytes);
+			}
+			return buf.array();
+		}
+		default:
+			return new byte[0];
+		}
+	}
+
+	// Method to get how many bytes a block takes up on the wire
+	public static int blockSize(Block b) {
+		return BLOCK_FIXED_SIZE + utf8(b.data).length;
+	}
+
+	// Method to write a block into a buffer
+	public static void putBlock(ByteBuffer buf, Block b) {
+		byte[] data = utf8(b.data);
+		buf.putLong(b.timestamp);
+		buf.putInt(b.nonce);
+		buf.put(Block.fromHex(b.previousHash));
+		buf.put(Block.fromHex(b.hash));
+		buf.putInt(data.length);
+		buf.put(data);
+	}
+
+	// Method to read a block out of a buffer
+	public static Block getBlock(ByteBuffer buf) throws ProtocolException {
+		long timestamp = buf.getLong();
+		int nonce = buf.getInt();
+		byte[] previousHash = new byte[Block.HASH_SIZE];
+		buf.get(previousHash);
+		byte[] hash = new byte[Block.HASH_SIZE];
+		buf.get(hash);
+		int dataLength = buf.getInt();
+		if (dataLength < 0 || dataLength > buf.remaining()) {
+			throw new ProtocolException("Bad block data length " + dataLength);
+		}
+		byte[] data = new byte[dataLength];
+		buf.get(data);
+		return new Block(new String(data, StandardCharsets.UTF_8), timestamp, nonce, previousHashToString(previousHash), Block.toHex(hash));
+	}
+
+	// Method to get how many bytes a list of blocks takes up on the wire
+	public static int blocksSize(List<Block> blocks) {
+		int size = 4;
+		for (Block b : blocks) {
+			size += blockSize(b);
+		}
+		return size;
+	}
+
+	// Method to write a list of blocks into a buffer
+	public static void putBlocks(ByteBuffer buf, List<Block> blocks) {
+		buf.putInt(blocks.size());
+		for (Block b : blocks) {
+			putBlock(buf, b);
+		}
+	}
+
+	// Method to read a list of blocks out of a buffer
+	public static List<Block> getBlocks(ByteBuffer buf) throws ProtocolException {
+		int count = buf.getInt();
+		if (count < 0 || (long) count * BLOCK_FIXED_SIZE > buf.remaining()) {
+			throw new ProtocolException("Bad block count " + count);
+		}
+		List<Block> blocks = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			blocks.add(getBlock(buf));
+		}
+		return blocks;
+	}
+
+	// Method to write a list of hashes into a buffer as raw 32-byte values
+	public static void putHashes(ByteBuffer buf, List<String> hashes) {
+		buf.putInt(hashes.size());
+		for (String hash : hashes) {
+			buf.put(Block.fromHex(hash));
+		}
+	}
+
+	// Method to read a list of hashes out of a buffer
+	public static List<String> getHashes(ByteBuffer buf) throws ProtocolException {
+		int count = buf.getInt();
+		if (count < 0 || (long) count * Block.HASH_SIZE > buf.remaining()) {
+			throw new ProtocolException("Bad hash count " + count);
+		}
+		List<String> hashes = new ArrayList<>(count);
+		byte[] hash = new byte[Block.HASH_SIZE];
+		for (int i = 0; i < count; i++) {
+			buf.get(hash);
+			hashes.add(Block.toHex(hash));
+		}
+		return hashes;
+	}
+
+	// Method to read a list of length-prefixed UTF-8 strings out of a buffer
+	public static List<String> getStrings(ByteBuffer buf) throws ProtocolException {
+		int count = buf.getInt();
+		if (count < 0 || (long) count * 4 > buf.remaining()) {
+			throw new ProtocolException("Bad string count " + count);
+		}
+		List<String> strings = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			int length = buf.getInt();
+			if (length < 0 || length > buf.remaining()) {
+				throw new ProtocolException("Bad string length " + length);
+			}
+			byte[] bytes = new byte[length];
+			buf.get(bytes);
+			strings.add(new String(bytes, StandardCharsets.UTF_8));
+		}
+		return strings;
+	}
+
+	// Method to read a single raw hash out of a buffer
+	private static String getHash(ByteBuffer buf) {
+		byte[] hash = new byte[Block.HASH_SIZE];
+		buf.get(hash);
+		return Block.toHex(hash);
+	}
+
+	// The genesis block's previous hash is "0", which goes over the wire as all zeros and has to come back as "0"
+	private static String previousHashToString(byte[] previousHash) {
+		for (byte b : previousHash) {
+			if (b != 0) {
+				return Block.toHex(previousHash);
+			}
+		}
+		return "0";
+	}
+
+	private static byte[] utf8(String s) {
+		return (s == null ? "null" : s).getBytes(StandardCharsets.UTF_8);
+	}
+
+	// Method to deflate a payload, prefixed with its original length
+	private static byte[] compress(byte[] payload) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(payload);
+		deflater.finish();
+		ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 2 + 4);
+		out.write(payload.length >>> 24);
+		out.write(payload.length >>> 16);
+		out.write(payload.length >>> 8);
+		out.write(payload.length);
+		byte[] chunk = new byte[8192];
+		while (!deflater.finished()) {
+			int n = deflater.deflate(chunk);
+			out.write(chunk, 0, n);
+		}
+		deflater.end();
+		return out.toByteArray();
+	}
+
+	// Method to inflate a payload written by compress, which can't be bigger than max
+	// The length up front comes from the peer, so it isn't trusted to size the buffer: a length bigger than the deflated bytes
+	// we got could ever inflate to is rejected, and the buffer only grows as the data actually inflates
+	private static byte[] decompress(byte[] payload, int max) throws ProtocolException {
+		ByteBuffer buf = ByteBuffer.wrap(payload);
+		if (buf.remaining() < 4) {
+			throw new ProtocolException("Compressed payload is truncated");
+		}
+		int length = buf.getInt();
+		if (length < 0 || length > max || length > (long) (payload.length - 4) * MAX_INFLATE_RATIO) {
+			throw new ProtocolException("Bad uncompressed length " + length);
+		}
+		Inflater inflater = new Inflater();
+		inflater.setInput(payload, 4, payload.length - 4);
+		byte[] result = new byte[Math.min(length, Math.max(payload.length * 4, 8192))];
+		try {
+			int n = 0;
+			while (n < length && !inflater.finished()) {
+				if (n == result.length) {
+					result = Arrays.copyOf(result, (int) Math.min(length, result.length * 2L));
+				}
+				int read = inflater.inflate(result, n, result.length - n);
+				if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				n += read;
+			}
+			if (n != length) {
+				throw new ProtocolException("Compressed payload is truncated");
+			}
+		} catch (DataFormatException e) {
+			throw new ProtocolException("Compressed payload is corrupt: " + e.getMessage());
+		} finally {
+			inflater.end();
+		}
+		return result;
+	}
+}
@@ -0,0 +1,140 @@
+package blockchain;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// A QueuedWriter gives a peer its own bounded outbound queue and writer thread, so sending to a peer never blocks the sender.
+// Frames that pile up while the writer is busy are written together and flushed once.
+// If a peer's queue fills up, frames for it are thrown away instead of holding everyone else up, and if it stays full for
+// MAX_DROPS frames in a row the peer is disconnected. Only frames that will be asked for again can be thrown away (replies
+// to GET_DATA and GET_BLOCKS are retried by the Inventory and ChainSync); a frame that nothing would send again, like a
+// relayed block, is sent with writeFrameOrDisconnect, which disconnects the peer straight away if it doesn't fit (the peer
+// catches up through ChainSync when it reconnects).
+public class QueuedWriter extends MessageWriter implements Runnable {
+    public static final int DEFAULT_CAPACITY = 1024;  // How many frames can wait for a peer before new ones are thrown away
+    public static final int MAX_DROPS = 64;           // How many frames in a row can be thrown away before the peer is disconnected
+    private static final int MAX_BATCH = 64;          // Most frames written between flushes
+
+    private Socket socket;                  // The peer's socket (closed if the peer is dropped)
+    private OutputStream out;               // The socket's output stream, buffered so a batch goes out in as few writes as possible
+    private ArrayBlockingQueue<byte[]> queue;  // Frames waiting to be written
+    private Thread writer;                  // The thread draining the queue
+    private volatile boolean closed;        // Set once the peer has been dropped or disconnected
+    private LongAdder dropped = new LongAdder();           // How many frames were thrown away because the queue was full
+    private AtomicInteger droppedInARow = new AtomicInteger();  // How many of them since a frame last fit in the queue
+
+    // Constructor to create a queued writer for a socket with the default queue size
+    public QueuedWriter(Socket socket) throws IOException {
+        this(socket, DEFAULT_CAPACITY);
+    }
+
+    // Constructor to create a queued writer for a socket with a platform writer thread
+    public QueuedWriter(Socket socket, int capacity) throws IOException {
+        this(socket, capacity, Threads.factory("peer-writer", false));
+    }
+
+    // Constructor to create a queued writer for a socket, and start its writer thread from the given factory
+    // (the node's, so in VIRTUAL mode the writer is a virtual thread)
+    public QueuedWriter(Socket socket, int capacity, ThreadFactory threads) throws IOException {
+        this.socket = socket;
+        this.out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.writer = threads.newThread(this);
+        this.writer.setName("peer-writer-" + socket.getPort());
+        this.writer.start();
+    }
+
+    // Method to queue a frame for the peer, throwing it away if the queue is full; this never blocks
+    @Override
+    public void writeFrame(byte[] frame) {
+        this.enqueue(frame, MAX_DROPS);
+    }
+
+    // Method to queue a frame for the peer, disconnecting the peer if the queue is full; this never blocks
+    @Override
+    public void writeFrameOrDisconnect(byte[] frame) {
+        this.enqueue(frame, 1);
+    }
+
+    // Method to queue a frame, or throw it away and disconnect the peer once maxDrops frames in a row haven't fit
+    private void enqueue(byte[] frame, int maxDrops) {
+        if (this.closed) {
+            return;
+        }
+        if (this.queue.offer(frame)) {
+            this.droppedInARow.set(0);
+            return;
+        }
+        // The peer isn't keeping up, so throw the frame away rather than let it slow down the rest of the network
+        this.dropped.increment();
+        if (this.droppedInARow.incrementAndGet() >= maxDrops) {
+            System.out.println("Send queue full for peer on port " + this.socket.getPort() + ", dropping it");
+            this.close();
+        }
+    }
+
+    @Override
+    public void run() {
+        List<byte[]> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (!this.closed) {
+                batch.add(this.queue.take());  // Wait for something to send
+                this.queue.drainTo(batch, MAX_BATCH - 1);  // Grab anything else that's already waiting
+                for (byte[] frame : batch) {
+                    this.out.write(frame);
+                    this.bytesOut.add(frame.length);
+                }
+                this.out.flush();  // One flush for the whole batch
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // close() interrupts us to stop the thread
+        } catch (IOException e) {
+            // The connection broke; the ReadHandler for this peer will notice and remove the node
+            this.close();
+        }
+    }
+
+    // Method to get how many frames are waiting to be written
+    @Override
+    public int queueSize() {
+        return this.queue.size();
+    }
+
+    // Method to get how many frames were dropped because the queue was full
+    @Override
+    public long droppedFrames() {
+        return this.dropped.sum();
+    }
+
+    // Method to name the peer by its port
+    @Override
+    public String peerName() {
+        return String.valueOf(this.socket.getPort());
+    }
+
+    // Method to stop the writer thread and close the socket
+    // Closing the socket makes the peer's ReadHandler fail its next read, which removes the node
+    @Override
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.writer.interrupt();
+        this.queue.clear();
+        try {
+            this.socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -2,21 +2,20 @@ package blockchain;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.SocketException;
 import java.security.NoSuchAlgorithmException;
 
 public class ReadHandler implements Runnable {
     public BCNode node;                    // Reference to the node running this ReadHandler
-    public ObjectInputStream in;           // Input stream to read data from the socket
-    public ObjectOutputStream out;         // Output stream to send data to the socket
+    public MessageReader in;               // Input stream to read data from the socket
+    public MessageWriter out;              // Output stream to send data to the socket
     public int connectionNumber;           // Keeps track of the connection number (unique for each connection)
     public Socket socket;                  // The socket connection with the other node
 
     // Constructor to initialize the ReadHandler with the node, input/output streams, socket, and connection number
-    public ReadHandler(BCNode node, ObjectInputStream in, ObjectOutputStream out, Socket s, int numberOfConnections) {
+    public ReadHandler(BCNode node, MessageReader in, MessageWriter out, Socket s, int numberOfConnections) {
         this.node = node;
         this.in = in;
         this.out = out;
@@ -27,35 +26,52 @@ public class ReadHandler implements Runnable {
     @Override
     public void run() {
         // The run() method contains the main logic that gets executed when the thread is started
-        while (true) {
-            try {
-                // Attempt to read an object from the input stream
-                Object obj = this.in.readObject();
-
-                // If the object read is a Block, handle it
-                if (obj instanceof Block) {
-                    Block b = (Block) obj;
-
-                    // Add the block to the node's blockchain if it's valid
-                    if (this.node.addExistingBlock(b)) {
-                        // Broadcast the block to other connected nodes if successfully added
-                        this.node.sendBlock(b);
+        // However the loop ends, the peer is removed on the way out (in the finally), so its socket, writer and
+        // peer-list entry never outlive this thread
+        try {
+            while (true) {
+                // Attempt to read a message from the input stream
+                Message m = this.in.read();
+                this.out.heard();  // Any message at all shows the peer is still alive
+
+                try {
+                    // If the message is a Block, handle it
+                    if (m.type == Protocol.BLOCK) {
+                        Block b = m.block;
+
+                        // Add the block to the node's blockchain if it's valid
+                        if (this.node.addExistingBlock(b, this.out)) {
+                            // Broadcast the block to the other connected nodes (not back to this one) if successfully added
+                            this.node.sendBlock(b, this.out);
+                        }
+                    } else {
+                        // Anything else is part of a chain sync (ours or the other node's) or a block announcement
+                        this.node.onPeerMessage(m, this.out);
                     }
+                } catch (NoSuchAlgorithmException e) {
+                    // Handle issues related to cryptographic algorithms
+                    e.printStackTrace();
                 }
+            }
 
-            } catch (SocketException | EOFException e) {
-                // If there's a socket error (like the connection closing), remove the node
-                this.node.removeNode(this.socket, this.in, this.out, this.connectionNumber);
-                break;  // Exit the loop and end the thread
+        } catch (SocketException | EOFException e) {
+            // If there's a socket error (like the connection closing), the node is removed below
 
-            } catch (ClassNotFoundException | IOException e) {
-                // Handle any issues with reading the object
-                e.printStackTrace();
+        } catch (ProtocolException e) {
+            // The peer sent something we can't parse, so we can't trust where the next message starts; drop it
+            System.out.println("Bad message from peer: " + e.getMessage());
 
-            } catch (NoSuchAlgorithmException e) {
-                // Handle issues related to cryptographic algorithms
-                e.printStackTrace();
-            }
+        } catch (IOException e) {
+            // Any other read error leaves the stream in an unknown state, so the connection can't be used any more
+            e.printStackTrace();
+
+        } catch (RuntimeException e) {
+            // Something went wrong handling the message (like a block log read failing during a sync); drop the peer
+            // rather than leave it connected with nobody reading from it
+            e.printStackTrace();
+
+        } finally {
+            this.node.removeNode(this.socket, this.in, this.out, this.connectionNumber);
         }
     }
 }
@@ -0,0 +1,7 @@
+package blockchain;
+
+// How a node passes new blocks on to its peers
+public enum RelayMode {
+	PUSH,      // Send every block in full to every peer (the original design)
+	INVENTORY  // Announce the block's hash and height, and let each peer ask for the block only if it doesn't have it yet
+}
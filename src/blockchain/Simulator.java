@@ -0,0 +1,397 @@
+package blockchain;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// The Simulator runs a whole network of nodes in one JVM and puts it under load, to find out how the network behaves
+// as it grows: how long blocks take to reach every node, how often the network forks, how many duplicate messages
+// are sent, and how much CPU and memory each node uses.
+// The nodes are real BCNodes talking over real sockets, but every connection goes through a LinkProxy, which adds
+// latency and loses relay messages as asked. Blocks are mined on random nodes at the given average rate.
+// Each node (and everything it starts) runs in its own thread group, which is how its CPU time is told apart from the others'
+// (virtual threads aren't in a node's group, so with --network virtual the per-node CPU only covers its platform threads).
+//   java -cp blockchain-node.jar blockchain.Simulator --nodes 50 --topology mesh --degree 3 --latency 20 --jitter 5 --loss 0.01 --rate 2 --duration 60
+// Options (defaults in brackets): --nodes [10], --topology line|ring|mesh [mesh], --degree [3], --latency ms [0],
+// --jitter ms [0], --loss fraction [0], --rate blocks per second [1], --duration seconds [30], --settle seconds [5],
+// --difficulty [2], --network threads|virtual|nio [threads], --relay push|inventory [push], --port first node's port [9000],
+// --seed [random], --cut seconds into the run to cut one random link [never], --outage seconds the cut link stays down [3],
+// --verbose (show what the nodes print)
+// A cut link drops its connection and refuses new ones until the outage is over, so the node that dialled it has to keep
+// redialling (with backoff) until it gets through; the report says whether it did, and how long it took.
+public class Simulator {
+	// The settings, which can be changed by the command line options
+	public int nodes = 10;
+	public Topology topology = Topology.MESH;
+	public int degree = 3;
+	public int latency;      // Milliseconds each frame takes to cross a link
+	public int jitter;       // Up to this many milliseconds more or less, at random
+	public double loss;      // The fraction of relay frames (see LinkProxy) that are lost
+	public double rate = 1;  // Blocks mined per second, across the whole network
+	public int duration = 30;
+	public int settle = 5;   // Seconds to wait after the last block, for it to finish spreading
+	public int difficulty = 2;
+	public NetworkMode network = NetworkMode.THREADS;
+	public RelayMode relay = RelayMode.PUSH;
+	public int basePort = 9000;
+	public long seed = new Random().nextLong();
+	public int cut = -1;     // Seconds into the run to cut a link, or -1 for never
+	public int outage = 3;   // Seconds a cut link stays down
+	public boolean verbose;
+
+	private List<BCNode> nodeList = new ArrayList<>();
+	private List<ThreadGroup> groups = new ArrayList<>();        // Each node's threads, for measuring its CPU time
+	private List<ExecutorService> producers = new ArrayList<>(); // Mines blocks on each node, one at a time
+	private List<LinkProxy> links = new ArrayList<>();
+	private LinkProxy cutLink;  // The link that was cut, if one was
+	private long cutAt;         // When it was cut (System.currentTimeMillis)
+	private Map<String, BlockRecord> blocks = new ConcurrentHashMap<>();  // Every block seen crossing a link, by hash
+	private AtomicInteger sequence = new AtomicInteger();        // Numbers the mined blocks
+	private LongAdder produced = new LongAdder();                // Blocks a node mined and put on its chain
+	private LongAdder duplicates = new LongAdder();              // Blocks delivered to a node that already had them
+	private AtomicLongArray frames = new AtomicLongArray(16);    // Frames sent, by type
+	private AtomicLongArray bytes = new AtomicLongArray(16);     // Bytes sent, by type
+	private AtomicLongArray lost = new AtomicLongArray(16);      // Frames lost, by type
+	private PrintStream out = System.out;                        // Where the report goes (the nodes' own output is hidden unless --verbose)
+
+	// What we know about one block: when it was made, which node mined it, and when each node got it
+	private static class BlockRecord {
+		String hash;
+		long created;     // The block's timestamp (when mining started)
+		int origin = -1;  // The node that mined it, once we know
+		long[] arrived;   // When each node got it (System.currentTimeMillis), or 0 if it hasn't
+
+		BlockRecord(String hash, long created, int nodes) {
+			this.hash = hash;
+			this.created = created;
+			this.arrived = new long[nodes];
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Simulator sim = new Simulator();
+		sim.parse(args);
+		// Every node shares the JVM, so they all share BCNode.DIFFICULTY; this has to be set before anything touches BCNode
+		System.setProperty("blockchain.difficulty", Integer.toString(sim.difficulty));
+		sim.start();
+		sim.run();
+		sim.report();
+		sim.stop();
+	}
+
+	// Method to read the command line options
+	public void parse(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String option = args[i];
+			if (option.equals("--verbose")) {
+				this.verbose = true;
+				continue;
+			}
+			if (i + 1 == args.length) {
+				throw new IllegalArgumentException("Missing value for " + option);
+			}
+			String value = args[++i];
+			switch (option) {
+			case "--nodes": this.nodes = Integer.parseInt(value); break;
+			case "--topology": this.topology = Topology.valueOf(value.toUpperCase()); break;
+			case "--degree": this.degree = Integer.parseInt(value); break;
+			case "--latency": this.latency = Integer.parseInt(value); break;
+			case "--jitter": this.jitter = Integer.parseInt(value); break;
+			case "--loss": this.loss = Double.parseDouble(value); break;
+			case "--rate": this.rate = Double.parseDouble(value); break;
+			case "--duration": this.duration = Integer.parseInt(value); break;
+			case "--settle": this.settle = Integer.parseInt(value); break;
+			case "--difficulty": this.difficulty = Integer.parseInt(value); break;
+			case "--network": this.network = NetworkMode.valueOf(value.toUpperCase()); break;
+			case "--relay": this.relay = RelayMode.valueOf(value.toUpperCase()); break;
+			case "--port": this.basePort = Integer.parseInt(value); break;
+			case "--seed": this.seed = Long.parseLong(value); break;
+			case "--cut": this.cut = Integer.parseInt(value); break;
+			case "--outage": this.outage = Integer.parseInt(value); break;
+			default: throw new IllegalArgumentException("Unknown option " + option);
+			}
+		}
+	}
+
+	// Method to start every node, one at a time, each connecting to its earlier peers through a LinkProxy
+	public void start() throws Exception {
+		if (!this.verbose) {
+			System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+		}
+		this.out.printf("Starting %d nodes (%s, seed %d)%n", this.nodes, this.topology, this.seed);
+		Random random = new Random(this.seed);
+		for (int i = 0; i < this.nodes; i++) {
+			List<Integer> remotePorts = new ArrayList<>();
+			for (int peer : this.topology.peersOf(i, this.nodes, this.degree, random)) {
+				LinkProxy link = new LinkProxy(this, i, peer, this.basePort + peer, random.nextLong());
+				remotePorts.add(link.port());
+				this.links.add(link);
+			}
+			ThreadGroup group = new ThreadGroup("node-" + i);
+			int port = this.basePort + i;
+			// Start the node from a thread in its group, so every thread it starts is in the group too
+			FutureTask<BCNode> starting = new FutureTask<>(() -> new BCNode(port, remotePorts, 1, this.network));
+			new Thread(group, starting, "node-" + i + "-start").start();
+			BCNode node = starting.get();
+			node.relay = this.relay;
+			this.nodeList.add(node);
+			this.groups.add(group);
+			this.producers.add(Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(group, r, "node-" + port + "-producer");
+				t.setDaemon(true);
+				return t;
+			}));
+		}
+	}
+
+	// Method to mine blocks on random nodes for the length of the run, then wait for the last ones to spread
+	public void run() throws InterruptedException {
+		this.out.printf("Mining %.1f blocks/s for %d s over %d links%n", this.rate, this.duration, this.links.size());
+		Random random = new Random(this.seed);
+		long start = System.currentTimeMillis();
+		long end = start + this.duration * 1000L;
+		long nextProgress = start + 5000;
+		while (System.currentTimeMillis() < end) {
+			if (this.cut >= 0 && this.cutLink == null && System.currentTimeMillis() >= start + this.cut * 1000L && !this.links.isEmpty()) {
+				this.cutLink = this.links.get(random.nextInt(this.links.size()));
+				this.cutAt = System.currentTimeMillis();
+				this.cutLink.cut(this.outage * 1000L);
+				this.out.printf("  %3d s: cut the link from node %d to node %d for %d s%n", this.cut, this.cutLink.from, this.cutLink.to, this.outage);
+			}
+			// Blocks are found at random, so the gaps between them are exponentially distributed
+			Thread.sleep((long) (-Math.log(1 - random.nextDouble()) / this.rate * 1000));
+			int i = random.nextInt(this.nodes);
+			this.producers.get(i).execute(() -> this.produce(i));
+			if (System.currentTimeMillis() >= nextProgress) {
+				nextProgress += 5000;
+				this.out.printf("  %3d s: %d blocks mined, heights %s%n", (System.currentTimeMillis() - start) / 1000, this.produced.sum(), this.heightRange());
+			}
+		}
+		for (ExecutorService producer : this.producers) {
+			producer.shutdown();
+		}
+		for (ExecutorService producer : this.producers) {
+			producer.awaitTermination(1, TimeUnit.MINUTES);
+		}
+		Thread.sleep(this.settle * 1000L);
+	}
+
+	// Method to shut every node down, which lets the JVM exit once the links' threads notice
+	public void stop() throws IOException {
+		for (LinkProxy link : this.links) {
+			link.close();
+		}
+		for (BCNode node : this.nodeList) {
+			node.shutdown();
+		}
+	}
+
+	// Method to mine one block on node i
+	private void produce(int i) {
+		BCNode node = this.nodeList.get(i);
+		try {
+			Block b = new Block("sim block " + this.sequence.incrementAndGet());
+			node.addBlock(b);
+			if (!node.chain.has(b.hash)) {
+				return;  // It didn't make it onto the chain
+			}
+			this.produced.increment();
+			BlockRecord record = this.blocks.computeIfAbsent(b.hash, h -> new BlockRecord(h, b.timestamp, this.nodes));
+			synchronized (record) {
+				record.origin = i;
+				if (record.arrived[i] != 0) {
+					this.duplicates.increment();  // A peer sent it back before we got here
+				}
+				record.arrived[i] = record.created;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Method called by a LinkProxy for every frame it reads
+	void onFrame(byte type, int length, boolean wasLost) {
+		this.frames.incrementAndGet(type);
+		this.bytes.addAndGet(type, length);
+		if (wasLost) {
+			this.lost.incrementAndGet(type);
+		}
+	}
+
+	// Method called by a LinkProxy when it's delivered a frame to a node
+	void onDelivered(int node, byte[] frame) {
+		if (frame[1] != Protocol.BLOCK) {
+			return;
+		}
+		Block b;
+		try {
+			b = Protocol.decode(frame[1], frame[2], Arrays.copyOfRange(frame, Protocol.HEADER_SIZE, frame.length)).block;
+		} catch (ProtocolException e) {
+			return;  // The node will deal with it
+		}
+		BlockRecord record = this.blocks.computeIfAbsent(b.hash, h -> new BlockRecord(h, b.timestamp, this.nodes));
+		synchronized (record) {
+			if (record.arrived[node] != 0) {
+				this.duplicates.increment();
+			} else {
+				record.arrived[node] = System.currentTimeMillis();
+			}
+		}
+	}
+
+	// Method to print what happened
+	public void report() {
+		this.out.println();
+		this.out.printf("== %d nodes, %s topology%s, %d links, latency %d+/-%d ms, loss %.2f%%, %s network, %s relay, difficulty %d%n",
+				this.nodes, this.topology, this.topology == Topology.MESH ? " (degree " + this.degree + ")" : "", this.links.size(),
+				this.latency, this.jitter, this.loss * 100, this.network, this.relay, this.difficulty);
+
+		// Forks: blocks that were mined but didn't end up on the main chain (of the first node, once everything has settled)
+		Set<String> mainChain = new HashSet<>(this.nodeList.get(0).chain.snapshot().hashes(0, Integer.MAX_VALUE));
+		long mined = this.produced.sum();
+		long stale = 0;
+		for (BlockRecord r : this.blocks.values()) {
+			synchronized (r) {
+				if (r.origin >= 0 && !mainChain.contains(r.hash)) {
+					stale++;
+				}
+			}
+		}
+		String tip = this.nodeList.get(0).chain.snapshot().tipHash();
+		int onTip = 0;
+		for (BCNode node : this.nodeList) {
+			if (node.chain.snapshot().tipHash().equals(tip)) {
+				onTip++;
+			}
+		}
+		this.out.printf("Blocks: %d mined (%.2f/s), %d stale (fork rate %.1f%%), heights %s, %d/%d nodes on the same tip%n",
+				mined, mined / (double) this.duration, stale, mined == 0 ? 0 : 100.0 * stale / mined, this.heightRange(), onTip, this.nodes);
+
+		// Propagation: from a block's timestamp to it being delivered to each other node, and to it reaching every node
+		List<Long> each = new ArrayList<>();
+		List<Long> all = new ArrayList<>();
+		long pairs = 0;
+		for (BlockRecord r : this.blocks.values()) {
+			synchronized (r) {
+				if (r.origin < 0) {
+					continue;  // Not a block the simulator mined
+				}
+				long last = 0;
+				boolean everywhere = true;
+				for (int i = 0; i < this.nodes; i++) {
+					if (i == r.origin) {
+						continue;
+					}
+					pairs++;
+					if (r.arrived[i] == 0) {
+						everywhere = false;
+					} else {
+						each.add(r.arrived[i] - r.created);
+						last = Math.max(last, r.arrived[i] - r.created);
+					}
+				}
+				if (everywhere) {
+					all.add(last);
+				}
+			}
+		}
+		this.out.printf("Propagation to each node (ms):   %s, %.1f%% of node/block pairs reached%n", percentiles(each), pairs == 0 ? 100 : 100.0 * each.size() / pairs);
+		this.out.printf("Propagation to every node (ms):  %s, %d of %d blocks reached every node%n", percentiles(all), all.size(), mined);
+		this.out.println("  (timed from the block's timestamp, so it includes the miner's time to solve it, which is small at low difficulties)");
+
+		// The cut link: whether the node that dialled it got back through once the outage was over
+		if (this.cutLink != null) {
+			LinkProxy link = this.cutLink;
+			long back = this.cutAt + this.outage * 1000L;
+			this.out.printf("Cut link %d -> %d: %d dials refused while it was down, %s%n", link.from, link.to, link.refused,
+					link.restored == 0 ? "never reconnected" : "reconnected " + Math.max(0, link.restored - back) + " ms after it came back up");
+		}
+
+		// Messages
+		this.out.printf("Duplicate block deliveries: %d (%.2f per block per node)%n", this.duplicates.sum(),
+				mined == 0 ? 0 : this.duplicates.sum() / (double) mined / this.nodes);
+		String[] names = {"?", "CHAIN_REQUEST", "NO_CHAIN_REQUEST", "BLOCK", "CHAIN", "GET_HEADERS", "HEADERS", "GET_BLOCKS", "BLOCKS", "INV", "GET_DATA", "ENTRIES", "PING", "PONG"};
+		for (int type = 0; type < this.frames.length(); type++) {
+			if (this.frames.get(type) > 0) {
+				this.out.printf("  %-16s %9d frames %12d bytes %7d lost%n", type < names.length ? names[type] : "type " + type,
+						this.frames.get(type), this.bytes.get(type), this.lost.get(type));
+			}
+		}
+
+		// Resources, per node: CPU time of the node's live threads, and (if the JVM can tell us) the bytes they've allocated
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean ? (com.sun.management.ThreadMXBean) threads : null;
+		long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+		this.out.println("Per node (CPU and allocations only count threads still running):");
+		this.out.printf("  %5s %6s %6s %5s %10s %6s %10s %9s %9s %12s%n", "node", "port", "height", "peers", "cpu ms", "cpu %", "alloc MB", "received", "accepted", "lock wait p99");
+		long totalCpu = 0;
+		for (int i = 0; i < this.nodes; i++) {
+			long cpu = 0;
+			long allocated = 0;
+			Thread[] list = new Thread[this.groups.get(i).activeCount() * 2 + 16];
+			int count = this.groups.get(i).enumerate(list);
+			for (int t = 0; t < count; t++) {
+				cpu += Math.max(0, threads.getThreadCpuTime(list[t].getId()));
+				if (allocations != null) {
+					allocated += Math.max(0, allocations.getThreadAllocatedBytes(list[t].getId()));
+				}
+			}
+			totalCpu += cpu;
+			BCNode node = this.nodeList.get(i);
+			Map<String, Number> m = node.metrics.snapshot();
+			this.out.printf("  %5d %6d %6d %5d %10d %6.1f %10s %9s %9s %10s us%n", i, node.myPort, node.chain.snapshot().size() - 1, node.nodeOutputStreams.size(),
+					cpu / 1000000, cpu / 1e4 / uptime, allocations == null ? "-" : Long.toString(allocated >> 20), m.get("blocks_received"),
+					m.get("blocks_accepted"), m.get("lock_wait_us_p99"));
+		}
+		System.gc();
+		long heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		this.out.printf("JVM: %d MB heap in use after GC (%.1f MB per node), %d ms CPU in node threads, %d threads%n",
+				heap >> 20, heap / 1048576.0 / this.nodes, totalCpu / 1000000, threads.getThreadCount());
+	}
+
+	// Method to describe the lowest and highest chain heights across the nodes
+	private String heightRange() {
+		int min = Integer.MAX_VALUE;
+		int max = 0;
+		for (BCNode node : this.nodeList) {
+			int height = node.chain.snapshot().size() - 1;
+			min = Math.min(min, height);
+			max = Math.max(max, height);
+		}
+		return min + "-" + max;
+	}
+
+	// Method to describe the spread of a list of times
+	private static String percentiles(List<Long> values) {
+		if (values.isEmpty()) {
+			return "no samples";
+		}
+		Collections.sort(values);
+		return String.format("p50 %d, p90 %d, p99 %d, max %d (%d samples)", percentile(values, 50), percentile(values, 90),
+				percentile(values, 99), values.get(values.size() - 1), values.size());
+	}
+
+	private static long percentile(List<Long> sorted, double p) {
+		int rank = (int) Math.ceil(sorted.size() * p / 100.0);
+		return sorted.get(Math.max(0, rank - 1));
+	}
+}
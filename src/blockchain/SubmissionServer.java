@@ -0,0 +1,73 @@
+package blockchain;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// The SubmissionServer lets clients add entries to a node's mempool over a plain TCP socket.
+// Each line a client sends is one entry, and it gets one line back per entry: ADDED, DUPLICATE, FULL or INVALID.
+// Clients don't have to wait for replies: lines that are already waiting are submitted together as a batch
+// (and gossiped to peers in one message), and the replies are flushed once the client has nothing more queued up.
+public class SubmissionServer implements Runnable {
+	public static final int MAX_BATCH = 1000;  // Most entries submitted together
+
+	private BCNode node;
+	private ServerSocket ss;
+
+	// Constructor to create a submission server for a node on an already open server socket
+	public SubmissionServer(BCNode node, ServerSocket ss) {
+		this.node = node;
+		this.ss = ss;
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				Socket s = this.ss.accept();
+				// Each client gets a thread from the node (a virtual one in VIRTUAL mode), so many clients don't need many OS threads
+				Thread t = this.node.threads.newThread(() -> this.serve(s));
+				t.setName("submit-" + s.getPort());
+				t.start();
+			} catch (IOException e) {
+				if (this.ss.isClosed()) {
+					return;
+				}
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// Method to read entries from one client until it disconnects
+	private void serve(Socket s) {
+		try (Socket socket = s;
+				BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+				BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+			List<String> batch = new ArrayList<>();
+			String line;
+			while ((line = in.readLine()) != null) {
+				batch.add(line);
+				if (batch.size() < MAX_BATCH && in.ready()) {
+					continue;  // More is already waiting, so take it too
+				}
+				for (Mempool.Result result : this.node.submit(batch, null)) {
+					out.write(result.name());
+					out.newLine();
+				}
+				batch.clear();
+				if (!in.ready()) {
+					out.flush();
+				}
+			}
+		} catch (IOException e) {
+			// The client went away
+		}
+	}
+}
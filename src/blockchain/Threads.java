@@ -0,0 +1,48 @@
+package blockchain;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Threads makes the threads a node runs its blocking work on: accepting peers, reading from each peer, writing to each
+// peer and dialling peers. In VIRTUAL mode (see NetworkMode) these are virtual threads, so a node can have thousands of
+// peers, each with its own simple blocking read loop, without an OS thread per peer. Virtual threads only exist from
+// Java 21 on, and the project builds for Java 17, so they're looked up when the node starts; on an older JVM the node
+// falls back to platform threads and says so.
+public class Threads {
+	private static final ThreadFactory VIRTUAL = findVirtual();  // Makes virtual threads, or null if this JVM doesn't have them
+
+	// Method to check if this JVM can run virtual threads
+	public static boolean virtualAvailable() {
+		return VIRTUAL != null;
+	}
+
+	// Method to get a factory for a node's blocking work: virtual threads if virtual is set and the JVM has them,
+	// and daemon platform threads otherwise. Threads are named name-0, name-1, ...
+	public static ThreadFactory factory(String name, boolean virtual) {
+		AtomicInteger count = new AtomicInteger();
+		if (virtual && VIRTUAL != null) {
+			return r -> {
+				Thread t = VIRTUAL.newThread(r);
+				t.setName(name + "-" + count.getAndIncrement());
+				return t;
+			};
+		}
+		return r -> {
+			Thread t = new Thread(r, name + "-" + count.getAndIncrement());
+			t.setDaemon(true);  // The node stops its threads itself (see BCNode.shutdown), so they shouldn't keep the JVM alive
+			return t;
+		};
+	}
+
+	// Method to look up Thread.ofVirtual().factory() (Java 21+) without needing it to compile
+	private static ThreadFactory findVirtual() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (ReflectiveOperationException e) {
+			return null;  // Java 17-20 (or 19-20 without --enable-preview)
+		}
+	}
+}
@@ -0,0 +1,42 @@
+package blockchain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+// How the nodes in a Simulator are wired together. Nodes start one at a time, and each one connects to
+// some of the nodes that started before it (peersOf), which always gives a connected network
+public enum Topology {
+	LINE,  // Each node connects to the one before it: 0 - 1 - 2 - ... (the slowest way for a block to get across)
+	RING,  // A line whose last node also connects back to the first
+	MESH;  // Each node connects to up to degree random earlier nodes
+
+	// Method to get the nodes that node i (out of n) connects to when it starts
+	public List<Integer> peersOf(int i, int n, int degree, Random random) {
+		List<Integer> peers = new ArrayList<>();
+		if (i == 0) {
+			return peers;
+		}
+		switch (this) {
+		case LINE:
+			peers.add(i - 1);
+			break;
+		case RING:
+			peers.add(i - 1);
+			if (i == n - 1 && n > 2) {
+				peers.add(0);  // Close the ring
+			}
+			break;
+		case MESH:
+			List<Integer> earlier = new ArrayList<>();
+			for (int j = 0; j < i; j++) {
+				earlier.add(j);
+			}
+			Collections.shuffle(earlier, random);
+			peers.addAll(earlier.subList(0, Math.min(degree, i)));
+			break;
+		}
+		return peers;
+	}
+}
@@ -5,4 +5,7 @@
  * 
  */
 module Blockchain {
-}
\ No newline at end of file
+	requires java.management;  // For exposing Metrics over JMX
+	requires jdk.httpserver;   // For the Metrics text endpoint
+	requires jdk.management;   // For the Simulator's per-thread allocation counts
+}